@@ -0,0 +1,74 @@
+package ru.lakin.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import ru.lakin.network.BroadcastFrame;
+
+// Сколько мусора и времени стоит одна рассылка на N получателей:
+//   old   - как было: каждый получатель сам приклеивает "\r\n" и кодирует строку своим BufferedWriter
+//   frame - кодируем один раз в BroadcastFrame, каждому получателю - дубликат общего буфера
+//   direct - то же, но кадр вне кучи
+// Сокеты заменены на "пустые" потоки: меряем только кодирование и выделение памяти, без системных вызовов.
+//
+// Запуск: BroadcastAllocationBench [получателей через запятую] [рассылок на замер] [длина сообщения]
+public class BroadcastAllocationBench {
+    private static final String PREFIX = "Клиент TCPConnection: /127.0.0.1: 51234 говорит: ";
+    private static String message;
+
+    public static void main (String[] args) throws IOException {
+        String[] sizes = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int length = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        message = PREFIX + "Всем привет! ".repeat(Math.max(1, (length - PREFIX.length()) / 13));
+        System.out.println("Сообщение: " + message.length() + " символов");
+        System.out.printf("%-8s %10s %16s %14s%n", "путь", "получателей", "байт/рассылку", "нс/рассылку");
+        for ( String size : sizes ) {
+            int n = Integer.parseInt(size.trim());
+            run("old", n, broadcasts);
+            run("frame", n, broadcasts);
+            run("direct", n, broadcasts);
+        }
+    }
+
+    private static void run (String path, int recipients, int broadcasts) throws IOException {
+        BufferedWriter[] writers = new BufferedWriter[recipients];
+        WritableByteChannel[] channels = new WritableByteChannel[recipients];
+        for ( int i = 0; i < recipients; i++ ) {
+            writers[i] = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+            channels[i] = Channels.newChannel(OutputStream.nullOutputStream());
+        }
+        int warmup = Math.max(1, broadcasts / 4);
+        for ( int i = 0; i < warmup; i++ ) broadcast(path, writers, channels); // Прогрев JIT
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0; i < broadcasts; i++ ) broadcast(path, writers, channels);
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        System.out.printf("%-8s %10d %16d %14d%n", path, recipients, bytes / broadcasts, nanos / broadcasts);
+    }
+
+    private static void broadcast (String path, BufferedWriter[] writers, WritableByteChannel[] channels)
+            throws IOException {
+        switch ( path ) {
+            case "old" -> {
+                for ( BufferedWriter out : writers ) { out.write(message + "\r\n"); out.flush(); }
+            }
+            case "frame", "direct" -> {
+                BroadcastFrame frame = BroadcastFrame.ofLine(message, path.equals("direct"));
+                for ( WritableByteChannel channel : channels ) channel.write(frame.slice());
+            }
+        }
+    }
+
+    private static long allocatedBytes () {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,148 @@
+package ru.lakin.bench;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.*;
+
+import ru.lakin.chat.client.ChatLog;
+import ru.lakin.network.LatencyHistogram;
+
+// Окно клиента под потоком сообщений, без экрана (java.awt.headless).
+// Нить "сети" шлёт rate строк в секунду, как нить соединения ClientWindow. EDT 60 раз в секунду рисует
+// ленту в картинку окна 480x300 (как рисовал бы на экран). Отдельная нить-щуп каждые 5 мс ставит в EDT
+// пустую задачу и меряет, через сколько та выполнилась: это задержка EDT, то есть насколько окно
+// запаздывает с ответом на клик или клавишу.
+//
+// Режимы:
+//   textarea - как было: JTextArea, задача в EDT на каждую строку, append и каретка в конец;
+//   chatlog  - ChatLog: пачка за кадр, кольцо на scrollback строк, JList.
+// Итог: задержка EDT (p50/p99/макс), куча после сборки мусора, сколько строк в ленте.
+//
+// Запуск: ClientRenderBench [строк/с] [секунд] [textarea|chatlog|both] [scrollback]
+//   например: ClientRenderBench 10000 10 both 10000
+public class ClientRenderBench {
+    private static final int WIDTH = 480, HEIGHT = 300;
+
+    public static void main (String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String mode = args.length > 2 ? args[2] : "both";
+        int scrollback = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        if ( !"chatlog".equals(mode) ) run(new TextAreaSink(), rate, seconds);
+        if ( !"textarea".equals(mode) ) run(new ChatLogSink(scrollback), rate, seconds);
+        System.exit(0);
+    }
+
+    private static void run (Sink sink, int rate, int seconds) throws Exception {
+        SwingUtilities.invokeAndWait(sink::create);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Timer painter = new Timer(16, e -> {
+            Graphics2D g = screen.createGraphics();
+            layout(sink.component());
+            sink.component().paint(g);
+            g.dispose();
+        });
+        SwingUtilities.invokeAndWait(painter::start);
+
+        LatencyHistogram lag = new LatencyHistogram();
+        running = true;
+        Thread probe = new Thread( () -> {
+            while ( running ) {
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater( () -> lag.record(System.nanoTime() - posted) );
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }, "edt-probe");
+        probe.start();
+
+        // Строки по расписанию: отстали - догоняем пачкой, как и пришли бы из сокета
+        long total = (long) rate * seconds, start = System.nanoTime();
+        for ( long sent = 0; sent < total; ) {
+            long due = Math.min(total, (System.nanoTime() - start) * rate / 1_000_000_000L + 1);
+            for ( ; sent < due; sent++ )
+                sink.post("[общая #" + sent + "] user" + sent % 50 + ": сообщение номер " + sent);
+            LockSupport.parkNanos(200_000);
+        }
+        long produced = System.nanoTime() - start;
+        SwingUtilities.invokeAndWait( () -> {} ); // Ждём, пока EDT разгребёт всё, что в нём стоит
+        long caughtUp = System.nanoTime() - start;
+        running = false;
+        probe.join();
+        SwingUtilities.invokeAndWait(painter::stop);
+        System.gc();
+        System.gc();
+        long heapKb = ProcessStats.heapUsedKb();
+        int[] lines = new int[1];
+        SwingUtilities.invokeAndWait( () -> lines[0] = sink.lines() );
+        System.out.printf("%-8s %,d строк/с, %d с: задержка EDT p50 %,d мкс, p99 %,d мкс, макс %,d мкс; "
+                          + "EDT догнал через %,d мс после последней строки; куча %,d МБ; строк в ленте %,d%s%n",
+                          sink.name(), rate, seconds, lag.getPercentileNanos(50) / 1000,
+                          lag.getPercentileNanos(99) / 1000, lag.getMaxNanos() / 1000,
+                          (caughtUp - produced) / 1_000_000, heapKb / 1024, lines[0], sink.extra());
+        SwingUtilities.invokeAndWait(sink::dispose);
+    }
+
+    private static volatile boolean running; // Щуп EDT работает
+
+    // Без экрана validate() не раскладывает компоненты - раскладываем сами
+    private static void layout (Component component) {
+        component.doLayout();
+        if ( component instanceof Container container )
+            for ( Component child : container.getComponents() ) layout(child);
+    }
+
+    private interface Sink {
+        String name ();
+        void create ();          // EDT
+        JComponent component (); // EDT
+        void post (String line); // Нить "сети"
+        int lines ();            // EDT
+        String extra ();
+        void dispose ();         // EDT
+    }
+
+    // Как было в ClientWindow.printMsg
+    private static final class TextAreaSink implements Sink {
+        private JTextArea log;
+        private JScrollPane pane;
+        public String name () { return "textarea"; }
+        public void create () {
+            log = new JTextArea();
+            log.setEditable(false);
+            log.setLineWrap(true);
+            pane = new JScrollPane(log);
+            pane.setSize(WIDTH, HEIGHT);
+        }
+        public JComponent component () { return pane; }
+        public synchronized void post (String line) {
+            SwingUtilities.invokeLater( () -> {
+                log.append(line + "\n");
+                log.setCaretPosition(log.getDocument().getLength());
+            });
+        }
+        public int lines () { return log.getLineCount(); }
+        public String extra () { return ""; }
+        public void dispose () { log = null; pane = null; }
+    }
+
+    private static final class ChatLogSink implements Sink {
+        private final int scrollback;
+        private ChatLog log;
+        private JScrollPane pane;
+        ChatLogSink (int scrollback) { this.scrollback = scrollback; }
+        public String name () { return "chatlog"; }
+        public void create () {
+            log = new ChatLog(scrollback);
+            pane = log.createView();
+            pane.setSize(WIDTH, HEIGHT);
+        }
+        public JComponent component () { return pane; }
+        public void post (String line) { log.post(line); }
+        public int lines () { return log.getSize(); }
+        public String extra () { return ", выкинуто до показа " + log.getDropped(); }
+        public void dispose () { log = null; pane = null; }
+    }
+}
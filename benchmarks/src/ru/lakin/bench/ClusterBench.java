@@ -0,0 +1,77 @@
+package ru.lakin.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.lakin.chat.server.ChatServer;
+import ru.lakin.chat.server.ServerMetrics;
+import ru.lakin.network.*;
+
+// Пропускная способность связи между узлами кластера на loopback.
+// Два узла ChatServer в одном процессе, связаны по настоящим сокетам (joinCluster). На узле A один отправитель
+// пишет в комнату, на узле B в этой комнате сидят receivers клиентов (соединения без сокета, BenchConnections).
+// Отправитель держит в пути не больше window сообщений (сколько отправлено минус сколько узел B принял
+// от соседа) - иначе мерили бы не связь, а вытеснение из кольца досылки.
+// Печатает сообщений и мегабайт в секунду через связь, сколько кадров уходило за одну запись в сокет
+// и повторы/пропуски на приёмной стороне (должны быть нули).
+//
+// Запуск: ClusterBench [сообщений] [получателей_на_B] [окно] [байт_текста]
+public class ClusterBench {
+
+    public static void main (String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Журнал серверов не печатаем
+        int portA = freePort(), portB = freePort();
+        ChatServer a = new ChatServer(), b = new ChatServer();
+        a.limitInbound(0, 0); // Один отправитель шлёт миллион сообщений
+        a.joinCluster("A", portA, List.of(new InetSocketAddress("127.0.0.1", portB)));
+        b.joinCluster("B", portB, List.of(new InetSocketAddress("127.0.0.1", portA)));
+        ServerMetrics metricsA = a.getMetrics(), metricsB = b.getMetrics();
+        while ( metricsA.getClusterLinksUp() == 0 || metricsB.getClusterLinksUp() == 0 ) Thread.sleep(10);
+
+        List<TCPConnection> clients = new ArrayList<>();
+        for ( int i = 0; i < receivers; i++ ) {
+            TCPConnection receiver = BenchConnections.discarding(b);
+            b.onReceiveString(receiver, "/join bench");
+            clients.add(receiver);
+        }
+        TCPConnection sender = BenchConnections.discarding(a);
+        a.onReceiveString(sender, "/join bench");
+        clients.add(sender);
+        String value = "x".repeat(size);
+
+        long baseIn = metricsB.getClusterRelayedIn(), baseOut = metricsA.getClusterRelayedOut();
+        long baseWrites = metricsA.getClusterWrites(), baseBytes = metricsB.getBytesIn();
+        long start = System.nanoTime();
+        for ( int sent = 0; sent < messages; sent++ ) {
+            while ( sent - (metricsB.getClusterRelayedIn() - baseIn) >= window ) Thread.onSpinWait();
+            a.onReceiveString(sender, value);
+        }
+        while ( metricsB.getClusterRelayedIn() - baseIn < messages ) Thread.onSpinWait();
+        long nanos = System.nanoTime() - start;
+
+        long frames = metricsA.getClusterRelayedOut() - baseOut, writes = metricsA.getClusterWrites() - baseWrites;
+        double mb = (metricsB.getBytesIn() - baseBytes) / 1e6;
+        System.setOut(console);
+        System.out.printf("сообщений %,d, текст %d байт, окно %,d, получателей на B %d%n", messages, size, window, receivers);
+        System.out.printf("через связь: %,.0f сообщ/с, %.1f МБ/с, кадров за запись %.1f, повторов %d, пропусков %d%n",
+                          messages * 1e9 / nanos, mb * 1e9 / nanos, (double) frames / Math.max(1, writes),
+                          metricsB.getClusterDuplicates(), metricsB.getClusterGaps());
+        System.out.println(ProcessStats.line());
+        for ( TCPConnection client : clients ) client.disconnect();
+        System.exit(0); // Нити связей и приёма - демоны, но селекторы NioServer держат процесс
+    }
+
+    private static int freePort () throws Exception {
+        try ( ServerSocket socket = new ServerSocket(0) ) { return socket.getLocalPort(); }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.lakin.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.lakin.network.*;
+import static ru.lakin.network.NetworkEnv.IP_ADDR;
+import static ru.lakin.network.NetworkEnv.PORT;
+
+// Нагрузочный тест движков: сколько стоят N простаивающих соединений в нитях и в памяти (RSS и куча).
+// Каждый клиент в режиме local пишет одну строку и замолкает - как обычный участник чата.
+//
+// Запуск:
+//   server  <blocking|nio> [port]          - сервер, раз в 5 секунд печатает число соединений, нитей и RSS
+//   clients <count> [host] [port]          - держит count открытых соединений к серверу (без нитей, на каналах)
+//   local   <blocking|nio> [count] [port]  - всё в одном процессе, печатает итог и выходит
+//
+// Движок blocking на виртуальных нитях (JDK 21+): -Deasychat.threads=virtual
+//
+// Для честного RSS сервера лучше запускать server и clients в разных процессах.
+// Каждому соединению нужен файловый дескриптор (а в режиме local - два), так что для 10k соединений
+// поднимите лимит: ulimit -n 65536.
+public class ConnectionLoadTest {
+
+    public static void main (String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "local";
+        switch ( mode ) {
+            case "server" -> {
+                CountingListener listener = new CountingListener();
+                startServer(arg(args, 1, "nio"), listener, intArg(args, 2, PORT));
+                while ( true ) {
+                    Thread.sleep(5000);
+                    System.out.println("соединений: " + listener.active.get() + ", " + ProcessStats.line());
+                }
+            }
+            case "clients" -> {
+                List<SocketChannel> clients = openClients(intArg(args, 1, 10_000), arg(args, 2, IP_ADDR), intArg(args, 3, PORT));
+                System.out.println("Открыто соединений: " + clients.size() + ". Держим, Ctrl+C для выхода");
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            case "local" -> runLocal(arg(args, 1, "nio"), intArg(args, 2, 10_000), intArg(args, 3, PORT));
+            default -> System.out.println("Режимы: server | clients | local");
+        }
+    }
+
+    private static void runLocal (String engine, int count, int port) throws Exception {
+        CountingListener listener = new CountingListener();
+        System.gc();
+        long heapBefore = ProcessStats.heapUsedKb();
+        System.out.println("До старта: " + ProcessStats.line());
+        startServer(engine, listener, port);
+        long start = System.nanoTime();
+        List<SocketChannel> clients = openClients(count, IP_ADDR, port);
+        while ( listener.ready.get() < clients.size() ) Thread.sleep(50);
+        for ( SocketChannel client : clients ) client.write(ByteBuffer.wrap("привет\r\n".getBytes(StandardCharsets.UTF_8)));
+        while ( listener.received.get() < clients.size() ) Thread.sleep(50);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Thread.sleep(2L * NetworkEnv.POOL_IDLE_MS); // Блокирующий движок отдаёт буферы после тишины
+        System.gc();
+        Thread.sleep(500);
+        System.out.println("Движок " + engine + " (нити: " + NetworkEnv.THREADS + "), соединений: " + listener.active.get() + " за " + millis + " мс, "
+                           + ProcessStats.line());
+        System.out.printf("куча на соединение (вместе с клиентским каналом): %.1f КБ%n",
+                          (double) (ProcessStats.heapUsedKb() - heapBefore) / Math.max(1, clients.size()));
+        System.out.println(BufferPool.heap());
+        for ( SocketChannel client : clients ) client.close();
+        System.exit(0);
+    }
+
+    // Сервер без рассылки: нам нужна цена самих соединений, а не трафика
+    private static void startServer (String engine, TCPConnectionListener listener, int port) throws IOException {
+        Thread acceptor;
+        if ( "nio".equals(engine) ) {
+            NioServer server = new NioServer(listener, port, NetworkEnv.NIO_LOOPS);
+            acceptor = new Thread( () -> {
+                try { server.run(); } catch ( IOException e ) { System.out.println("Сервер упал: " + e); }
+            });
+        } else {
+            ServerSocket serverSocket = new ServerSocket(port, 1024);
+            acceptor = ThreadFactories.of("accept-").newThread( () -> {
+                while ( true ) {
+                    try { new TCPConnection(listener, serverSocket.accept()); }
+                    catch ( IOException e ) { System.out.println("Сервер упал: " + e); return; }
+                }
+            });
+        }
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Клиенты - голые каналы без нитей, чтобы в режиме local они не портили счёт нитей сервера
+    private static List<SocketChannel> openClients (int count, String host, int port) {
+        List<SocketChannel> clients = new ArrayList<>(count);
+        try {
+            for ( int i = 0; i < count; i++ ) {
+                clients.add(SocketChannel.open(new InetSocketAddress(host, port)));
+                if ( (i + 1) % 1000 == 0 ) System.out.println("  открыто " + (i + 1));
+            }
+        } catch ( IOException e ) {
+            System.out.println("Остановились на " + clients.size() + " соединениях: " + e + " (ulimit -n?)");
+        }
+        return clients;
+    }
+
+    private static String arg (String[] args, int i, String def) { return args.length > i ? args[i] : def; }
+    private static int intArg (String[] args, int i, int def) { return args.length > i ? Integer.parseInt(args[i]) : def; }
+
+    private static final class CountingListener implements TCPConnectionListener {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger ready = new AtomicInteger();
+        final AtomicInteger received = new AtomicInteger();
+        @Override public void onConnectionReady (TCPConnection c) { active.incrementAndGet(); ready.incrementAndGet(); }
+        @Override public void onReceiveString (TCPConnection c, String value) { received.incrementAndGet(); }
+        @Override public void onDisconnect (TCPConnection c) { active.decrementAndGet(); }
+        @Override public void onException (TCPConnection c, Exception e) {}
+    }
+}
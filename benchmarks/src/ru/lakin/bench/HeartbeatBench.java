@@ -0,0 +1,140 @@
+package ru.lakin.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ru.lakin.network.*;
+
+// Сколько стоит пульс многих соединений.
+// 1. connections - connections двоичных соединений без сокета (BenchConnections) с пульсом раз в period мс:
+//    каждое молчит, так что каждые period мс колесо (TimerWheel) шлёт ему PING и переставляет его таймер.
+//    Итог: PING в секунду, процессор нити колеса (% одного ядра) и куча.
+// 2. wheel / executor - то же без соединений: connections таймеров, каждый по срабатыванию ставит себя заново
+//    через period мс (так ходит таймер соединения). Колесо против ScheduledThreadPoolExecutor - очереди
+//    с приоритетом под замком. Процессор считаем по нити таймеров. Колесо срабатывает позже срока,
+//    до шага стрелки (NetworkEnv.TIMER_TICK_MS), поэтому срабатываний в секунду у него чуть меньше.
+//
+// Запуск: HeartbeatBench [соединений] [period_мс] [секунд]
+//   например: HeartbeatBench 100000 1000 10
+public class HeartbeatBench {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main (String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int period = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        connections(count, period, seconds);
+        wheel(count, period, seconds);
+        executor(count, period, seconds);
+        System.exit(0);
+    }
+
+    private static void connections (int count, int period, int seconds) throws Exception {
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override public void onConnectionReady (TCPConnection c) {}
+            @Override public void onReceiveString (TCPConnection c, String value) {}
+            @Override public void onDisconnect (TCPConnection c) {}
+            @Override public void onException (TCPConnection c, Exception e) {}
+        };
+        List<TCPConnection> connections = new ArrayList<>(count);
+        for ( int i = 0; i < count; i++ ) {
+            TCPConnection connection = BenchConnections.discardingBinary(listener);
+            connection.startHeartbeat(period, 0, 0);
+            connections.add(connection);
+        }
+        long pings = NetworkMetrics.get().getPings();
+        long cpu = cpuOf("timer-wheel");
+        Thread.sleep(seconds * 1000L);
+        report("соединения", count, period, seconds, NetworkMetrics.get().getPings() - pings,
+               cpuOf("timer-wheel") - cpu);
+        for ( TCPConnection connection : connections ) connection.disconnect();
+    }
+
+    private static void wheel (int count, int period, int seconds) throws Exception {
+        TimerWheel wheel = new TimerWheel("bench-wheel", NetworkEnv.TIMER_TICK_MS, NetworkEnv.TIMER_SLOTS);
+        LongAdder fired = new LongAdder();
+        List<WheelTimer> timers = new ArrayList<>(count);
+        for ( int i = 0; i < count; i++ ) timers.add(new WheelTimer(wheel, fired, period));
+        Thread.sleep(period); // Пусть таймеры разойдутся по колесу
+        long base = fired.sum(), cpu = cpuOf("bench-wheel");
+        Thread.sleep(seconds * 1000L);
+        report("wheel", count, period, seconds, fired.sum() - base, cpuOf("bench-wheel") - cpu);
+        for ( WheelTimer timer : timers ) timer.stop();
+    }
+
+    private static void executor (int count, int period, int seconds) throws Exception {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1, task -> new Thread(task, "bench-stpe"));
+        LongAdder fired = new LongAdder();
+        List<ExecutorTimer> timers = new ArrayList<>(count);
+        for ( int i = 0; i < count; i++ ) timers.add(new ExecutorTimer(executor, fired, period));
+        Thread.sleep(period);
+        long base = fired.sum(), cpu = cpuOf("bench-stpe");
+        Thread.sleep(seconds * 1000L);
+        report("executor", count, period, seconds, fired.sum() - base, cpuOf("bench-stpe") - cpu);
+        executor.shutdownNow();
+    }
+
+    private static void report (String name, int count, int period, int seconds, long fired, long cpuNanos) {
+        System.gc();
+        System.out.printf("%-10s %,d таймеров по %d мс: срабатываний %,.0f/с (точно в срок было бы %,.0f), "
+                          + "нить таймеров %.1f%% ядра, %.2f мкс на срабатывание; куча %,d МБ%n",
+                          name, count, period, fired / (double) seconds, count * 1000.0 / period,
+                          cpuNanos * 100.0 / (seconds * 1e9), cpuNanos / 1000.0 / Math.max(1, fired),
+                          ProcessStats.heapUsedKb() / 1024);
+    }
+
+    private static long cpuOf (String threadName) {
+        for ( long id : threads.getAllThreadIds() ) {
+            var info = threads.getThreadInfo(id);
+            if ( info != null && threadName.equals(info.getThreadName()) ) return threads.getThreadCpuTime(id);
+        }
+        return 0;
+    }
+
+    // Таймер, который по срабатыванию ставит себя заново - как таймер пульса соединения
+    private static final class WheelTimer implements Runnable {
+        private final TimerWheel wheel;
+        private final LongAdder fired;
+        private final int period;
+        private volatile boolean stopped;
+
+        WheelTimer (TimerWheel wheel, LongAdder fired, int period) {
+            this.wheel = wheel;
+            this.fired = fired;
+            this.period = period;
+            wheel.schedule(this, (long) (Math.random() * period));
+        }
+
+        @Override public void run () {
+            fired.increment();
+            if ( !stopped ) wheel.schedule(this, period);
+        }
+
+        void stop () { stopped = true; }
+    }
+
+    private static final class ExecutorTimer implements Runnable {
+        private final ScheduledThreadPoolExecutor executor;
+        private final LongAdder fired;
+        private final int period;
+
+        ExecutorTimer (ScheduledThreadPoolExecutor executor, LongAdder fired, int period) {
+            this.executor = executor;
+            this.fired = fired;
+            this.period = period;
+            executor.schedule(this, (long) (Math.random() * period), TimeUnit.MILLISECONDS);
+        }
+
+        @Override public void run () {
+            fired.increment();
+            executor.schedule(this, period, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ru.lakin.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.lakin.chat.server.ChatServer;
+import ru.lakin.network.*;
+
+// Нагрузка на чат-сервер без окошек: N соединений через loopback, из них S пишут в общий чат с заданной
+// частотой, а все N читают рассылку. Итог - задержка рассылки (p50/p99/p999: от момента, когда сообщение
+// должно было уйти, до его прихода каждому получателю) и сколько сообщений в секунду доставлено.
+// Время отправки берём по расписанию, а не по факту: если отправитель сам отстал, задержка это покажет
+// (иначе тормоза сервера прятались бы в отставании отправителя).
+//
+// Все соединения - неблокирующие каналы на одном селекторе в одной нити, строки режет LineDecoder.
+// Сервер свой, в этом же процессе (embedded-blocking, embedded-nio), или внешний (host:port).
+// Консоль своего сервера глушим: печатал бы каждое сообщение вперемешку с нашим итогом.
+//
+// Запуск: LoadGenerator [соединений] [отправителей] [сообщений/с] [секунд] [embedded-nio|embedded-blocking|host:port]
+//   например: LoadGenerator 1000 10 1000 10 embedded-nio
+public class LoadGenerator {
+    private static final String MARK = "#lg ";
+
+    public static void main (String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int senders = Math.min(connections, args.length > 1 ? Integer.parseInt(args[1]) : 10);
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String target = args.length > 4 ? args[4] : "embedded-nio";
+        int warmupSeconds = Math.max(1, seconds / 5);
+
+        PrintStream out = System.out;
+        if ( target.startsWith("embedded-") ) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        InetSocketAddress address = target.startsWith("embedded-")
+                ? startEmbedded(target.substring("embedded-".length()))
+                : new InetSocketAddress(target.substring(0, target.lastIndexOf(':')),
+                                        Integer.parseInt(target.substring(target.lastIndexOf(':') + 1)));
+        out.printf("Цель %s, соединений %d, отправителей %d, %d сообщ/с, %d с (+%d с разогрев)%n",
+                          target, connections, senders, rate, seconds, warmupSeconds);
+
+        Receiver receiver = new Receiver();
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        for ( int i = 0; i < connections; i++ ) channels.add(receiver.connect(address));
+        Thread reader = new Thread(receiver, "lg-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread.sleep(500); // Пусть утихнут объявления о подключениях
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        receiver.measureFrom = measureFrom;
+        long sent = send(channels.subList(0, senders), rate, start, measureFrom, end);
+        Thread.sleep(1000); // Дожидаемся отставших
+        receiver.running = false;
+        reader.join();
+
+        LatencyHistogram latency = receiver.latency;
+        long expected = sent * connections;
+        out.printf("отправлено %d, доставлено %d из %d (%.2f%%), %,.0f доставок/с%n",
+                          sent, latency.getCount(), expected, 100.0 * latency.getCount() / Math.max(1, expected),
+                          latency.getCount() / (double) seconds);
+        out.printf("задержка: p50 %d мкс, p99 %d мкс, p999 %d мкс, макс %d мкс%n",
+                          micros(latency.getPercentileNanos(50)), micros(latency.getPercentileNanos(99)),
+                          micros(latency.getPercentileNanos(99.9)), micros(latency.getMaxNanos()));
+        out.println(ProcessStats.line());
+        for ( SocketChannel channel : channels ) channel.close();
+        System.exit(0);
+    }
+
+    // Отправители по кругу, по расписанию: сообщение i должно уйти в start + i/rate. Вернёт, сколько отправлено
+    // за время замера (после разогрева)
+    private static long send (List<SocketChannel> senders, int rate, long start, long measureFrom, long end)
+            throws IOException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long sent = 0;
+        for ( long i = 0; ; i++ ) {
+            long due = start + i * intervalNanos;
+            if ( due >= end ) return sent;
+            long wait;
+            while ( (wait = due - System.nanoTime()) > 0 ) LockSupport.parkNanos(wait); // Не крутимся: ядро нужно серверу
+            ByteBuffer line = ByteBuffer.wrap((MARK + due + "\r\n").getBytes(StandardCharsets.UTF_8));
+            SocketChannel channel = senders.get((int) (i % senders.size()));
+            while ( line.hasRemaining() ) channel.write(line); // Канал неблокирующий: сокет забит - крутимся
+            if ( due >= measureFrom ) sent++;
+        }
+    }
+
+    private static InetSocketAddress startEmbedded (String engine) throws Exception {
+        int port;
+        try ( ServerSocket probe = new ServerSocket(0) ) { port = probe.getLocalPort(); } // Свободный порт
+        // Тысячи соединений с одного адреса и сотни сообщений в секунду от отправителя: допуск и ограничитель
+        // частоты сервера выключаем, иначе мерили бы их
+        ChatServer chatServer = new ChatServer();
+        chatServer.limitConnections(0, 0, 0);
+        chatServer.limitInbound(0, 0);
+        Thread server = new Thread( () -> chatServer.listen(engine, port), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for ( int attempt = 0; ; attempt++ ) { // Ждём, пока сервер начнёт слушать
+            try { SocketChannel.open(address).close(); break; }
+            catch ( IOException e ) { if ( attempt > 50 ) throw e; Thread.sleep(100); }
+        }
+        return address;
+    }
+
+    private static long micros (long nanos) { return TimeUnit.NANOSECONDS.toMicros(nanos); }
+
+    // Читает все соединения одной нитью и записывает задержку каждой доставки
+    private static final class Receiver implements Runnable {
+        final LatencyHistogram latency = new LatencyHistogram();
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        volatile long measureFrom = Long.MAX_VALUE;
+        volatile boolean running = true;
+
+        Receiver () throws IOException { selector = Selector.open(); }
+
+        SocketChannel connect (InetSocketAddress address) throws IOException {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new LineDecoder(64 * 1024));
+            return channel;
+        }
+
+        @Override
+        public void run () {
+            try {
+                while ( running ) {
+                    selector.select(100);
+                    for ( SelectionKey key : selector.selectedKeys() ) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        readBuffer.clear();
+                        if ( channel.read(readBuffer) < 0 ) { key.cancel(); continue; }
+                        readBuffer.flip();
+                        long now = System.nanoTime();
+                        LineDecoder decoder = (LineDecoder) key.attachment();
+                        String line;
+                        while ( (line = decoder.next(readBuffer)) != null ) onLine(line, now);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch ( IOException e ) {
+                System.err.println("Чтение упало: " + e);
+            }
+        }
+
+        private void onLine (String line, long now) {
+            int at = line.lastIndexOf(MARK);
+            if ( at < 0 ) return; // Чужие строки: объявления сервера о подключениях
+            long due = Long.parseLong(line.substring(at + MARK.length()).trim());
+            if ( due >= measureFrom ) latency.record(now - due);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.lakin.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Снимок затрат процесса: сколько нитей живо и сколько памяти реально занято (RSS, только Linux).
+public final class ProcessStats {
+    private ProcessStats () {}
+
+    public static int threadCount () { return ManagementFactory.getThreadMXBean().getThreadCount(); }
+
+    // Resident Set Size из /proc/self/status, в килобайтах. Вне Linux - -1
+    public static long rssKb () {
+        try {
+            for ( String line : Files.readAllLines(Path.of("/proc/self/status")) )
+                if ( line.startsWith("VmRSS:") ) return Long.parseLong(line.replaceAll("\\D", ""));
+        } catch ( IOException | NumberFormatException e ) { return -1; }
+        return -1;
+    }
+
+    public static long heapUsedKb () {
+        Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / 1024;
+    }
+
+    public static String line () {
+        return "нитей: " + threadCount() + ", RSS: " + rssKb() / 1024 + " МБ, куча: " + heapUsedKb() / 1024 + " МБ";
+    }
+}
@@ -0,0 +1,60 @@
+package ru.lakin.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.lakin.network.*;
+
+// Склейка исходящих строк: сколько строк в секунду пролезает через одно соединение и сколько их уходит
+// за один сброс в сокет (WriteStats) при разных настройках TCPConnection.setBatching.
+//
+// Запуск: WriteBatchingBench [строк] [байт_пачки:мкс,...]
+//   например: WriteBatchingBench 200000 0:0,4096:200,16384:1000
+public class WriteBatchingBench {
+
+    public static void main (String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String[] modes = (args.length > 1 ? args[1] : "0:0,1024:100,4096:200,16384:1000").split(",");
+        String line = "Клиент TCPConnection: /127.0.0.1: 51234 говорит: привет, как дела?";
+        for ( String mode : modes ) {
+            String[] parts = mode.split(":");
+            run(lines, line, Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+        }
+    }
+
+    private static void run (int lines, String line, int flushBytes, long flushMicros) throws Exception {
+        CountDownLatch received = new CountDownLatch(lines);
+        try ( ServerSocket serverSocket = new ServerSocket(0) ) {
+            // Приёмная сторона просто считает строки
+            Thread acceptor = new Thread( () -> {
+                try { new TCPConnection(new Sink(received), serverSocket.accept()); }
+                catch ( IOException e ) { System.out.println("Сервер упал: " + e); }
+            });
+            acceptor.start();
+            TCPConnection sender = new TCPConnection(new Sink(null), "127.0.0.1", serverSocket.getLocalPort());
+            acceptor.join();
+            sender.setBatching(flushBytes, flushMicros);
+
+            long start = System.nanoTime();
+            for ( int i = 0; i < lines; i++ ) sender.sendString(line);
+            sender.flush();
+            received.await();
+            long nanos = System.nanoTime() - start;
+            System.out.printf("пачка %6d байт / %5d мкс: %,10.0f строк/с, %s%n", flushBytes, flushMicros,
+                              lines * 1e9 / nanos, sender.getWriteStats());
+            sender.disconnect();
+        }
+    }
+
+    private static final class Sink implements TCPConnectionListener {
+        private final CountDownLatch received;
+        private final AtomicInteger errors = new AtomicInteger();
+        Sink (CountDownLatch received) { this.received = received; }
+        @Override public void onConnectionReady (TCPConnection c) {}
+        @Override public void onReceiveString (TCPConnection c, String value) { if ( received != null ) received.countDown(); }
+        @Override public void onDisconnect (TCPConnection c) {}
+        @Override public void onException (TCPConnection c, Exception e) { errors.incrementAndGet(); }
+    }
+}
@@ -0,0 +1,94 @@
+package ru.lakin.bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.*;
+
+import ru.lakin.network.*;
+
+// Сжатие кадров (FrameCompressor): сколько стоит и сколько даёт, по размеру сообщения.
+// compress - сжать кадр, как это делает рассылка (один раз на всех получателей); inflate - разжать у получателя.
+// contextPerConnection - для сравнения: один Deflater на соединение, поток не сбрасывается между кадрами
+// (SYNC_FLUSH). Сжимает плотнее (помнит прошлые сообщения), но кадр рассылки пришлось бы сжимать заново
+// для каждого получателя, и у каждого соединения - свои ~256 КБ памяти zlib.
+// Во сколько раз сжалось, печатается в начале каждого прогона (строка "сжатие:"; кириллица в выводе -
+// с -jvmArgsAppend -Dstdout.encoding=UTF-8).
+// Текст - строки чата или лога, собранные из частых слов, с разбросом: не повторение одного и того же.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBench {
+    @Param({ "64", "256", "1024", "16384", "65536" })
+    public int size;
+
+    @Param({ "chat", "log" })
+    public String text;
+
+    private static final String[] CHAT = { "привет", "как", "дела", "что", "нового", "это", "да", "нет", "сервер",
+            "сообщение", "спасибо", "хорошо", "сегодня", "вечером", "ссылка", "https://example.com/", "ок", "ну" };
+    private static final String[] LOG = { "INFO", "WARN", "ERROR", "at ru.lakin.chat.server.ChatServer.deliver",
+            "(ChatServer.java:", "java.io.IOException:", "Connection reset", "2026-10-17T12:", "\tat java.base/",
+            "thread=nio-1", "bytes=", "queue=", "\n" };
+
+    private static final int MESSAGES = 64; // Разные сообщения по кругу: иначе поток на соединение сжимал бы повтор
+
+    private final ByteBuffer[] plain = new ByteBuffer[MESSAGES];
+    private final ByteBuffer[] packed = new ByteBuffer[MESSAGES];
+    private final BenchConnections.Inflate inflate = new BenchConnections.Inflate();
+    private Deflater connectionDeflater;
+    private byte[] out;
+    private int next;
+
+    @Setup
+    public void setup () {
+        String[] words = "chat".equals(text) ? CHAT : LOG;
+        Random random = new Random(size);
+        long plainBytes = 0, packedBytes = 0;
+        for ( int i = 0; i < MESSAGES; i++ ) {
+            StringBuilder sb = new StringBuilder();
+            int bytes = 0;
+            while ( bytes < size ) { // size - примерно в байтах UTF-8, кириллица - по два
+                String word = words[random.nextInt(words.length)] + random.nextInt(100) + ' ';
+                sb.append(word);
+                bytes += word.getBytes(StandardCharsets.UTF_8).length;
+            }
+            plain[i] = FrameCodec.encode(FrameType.TEXT, 42, sb.toString());
+            packed[i] = FrameCompressor.compress(plain[i]);
+            plainBytes += plain[i].remaining();
+            packedBytes += packed[i].remaining();
+        }
+        connectionDeflater = new Deflater(NetworkEnv.COMPRESSION_LEVEL);
+        out = new byte[plain[0].remaining() * 2 + 1024];
+        long streamBytes = 0;
+        for ( int i = 0; i < MESSAGES; i++ ) streamBytes += contextPerConnection();
+        System.out.printf("%nсжатие: кадр в среднем %d байт -> %d (%.2f раза); поток на соединение -> %d (%.2f раза)%n",
+                          plainBytes / MESSAGES, packedBytes / MESSAGES, (double) plainBytes / packedBytes,
+                          streamBytes / MESSAGES, (double) plainBytes / streamBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer compress () {
+        return FrameCompressor.compress(plain[next++ & (MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public int inflate () {
+        return inflate.inflate(packed[next++ & (MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public int contextPerConnection () {
+        connectionDeflater.setInput(plain[next++ & (MESSAGES - 1)].duplicate());
+        return connectionDeflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+    }
+
+    @TearDown
+    public void tearDown () { connectionDeflater.end(); }
+}
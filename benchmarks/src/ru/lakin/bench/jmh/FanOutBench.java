@@ -0,0 +1,58 @@
+package ru.lakin.bench.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ru.lakin.chat.server.ChatServer;
+import ru.lakin.network.*;
+
+// Рассылка по комнате ChatServer.sendToRoom: одно входящее сообщение - recipients получателей. Все подключённые
+// сидят в комнате по умолчанию (DEFAULT_ROOM), туда же пишет отправитель - рассылка идёт по её участникам.
+// Получатели - соединения без сокета (BenchConnections): кадр кладётся в их очередь и выбрасывается,
+// так что меряем ровно то, что платит нить сервера на каждое сообщение. Время - на одно сообщение целиком.
+// Консольный вывод сервера на время замера глушим: печать строки в консоль тоже часть цены,
+// но в выводе JMH нам её не надо.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBench {
+    @Param({ "10", "100", "1000" })
+    public int recipients;
+
+    @Param({ "64" })
+    public int length;
+
+    private PrintStream console;
+    private ChatServer server;
+    private final List<TCPConnection> connections = new ArrayList<>();
+    private String value;
+
+    @Setup
+    public void setup () {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer();
+        server.limitInbound(0, 0); // Один отправитель шлёт миллионы сообщений - меряем рассылку, а не ограничитель
+        for ( int i = 0; i < recipients; i++ ) connections.add(BenchConnections.discarding(server));
+        value = "x".repeat(length);
+    }
+
+    @Benchmark
+    public void sendToRoom () {
+        server.onReceiveString(connections.get(0), value); // Сервер рассылает принятую строку по комнате
+    }
+
+    @TearDown
+    public void tearDown () {
+        for ( TCPConnection connection : connections ) connection.disconnect();
+        System.setOut(console);
+    }
+}
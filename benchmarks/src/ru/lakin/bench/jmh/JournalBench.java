@@ -0,0 +1,93 @@
+package ru.lakin.bench.jmh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import ru.lakin.chat.server.ChatServer;
+import ru.lakin.network.*;
+
+// Цена истории сообщений (ChatServer.openJournal) для рассылки и цена её выдачи.
+// sendToRoom - сообщение в комнату из roomSize человек без истории и с историей: на пути рассылки
+// история - только номер и постановка в очередь, писать будет своя нить.
+// history - "/history N": двоичному клиенту кадры уходят куском отображённой памяти, текстовому
+// перекладываются в строки. Соединения - без сокета (BenchConnections), так что меряем работу сервера.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBench {
+    @Param({ "off", "on" })
+    public String journal;
+
+    @Param({ "50" })
+    public int roomSize;
+
+    @Param({ "100" })
+    public int replay;
+
+    private PrintStream console;
+    private Path dir;
+    private ChatServer server;
+    private final List<TCPConnection> connections = new ArrayList<>();
+    private TCPConnection binaryReader;
+    private TCPConnection textReader;
+    private String value;
+    private String historyCommand;
+
+    @Setup
+    public void setup () throws IOException {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer();
+        server.limitInbound(0, 0); // Один отправитель шлёт миллионы сообщений - меряем рассылку, а не ограничитель
+        if ( "on".equals(journal) ) {
+            dir = Files.createTempDirectory("journal-bench");
+            server.openJournal(dir.toString());
+        }
+        for ( int i = 0; i < roomSize; i++ ) connections.add(BenchConnections.discarding(server));
+        binaryReader = BenchConnections.discardingBinary(server);
+        textReader = BenchConnections.discarding(server);
+        value = "x".repeat(64);
+        for ( int i = 0; i < replay; i++ ) server.onReceiveString(connections.get(0), value); // Есть что выдавать
+        historyCommand = "/history " + replay;
+    }
+
+    @Benchmark
+    public void sendToRoom () {
+        server.onReceiveString(connections.get(0), value);
+    }
+
+    @Benchmark
+    public void historyBinary () {
+        server.onReceiveString(binaryReader, historyCommand);
+    }
+
+    @Benchmark
+    public void historyText () {
+        server.onReceiveString(textReader, historyCommand);
+    }
+
+    @TearDown
+    public void tearDown () throws IOException {
+        for ( TCPConnection connection : connections ) connection.disconnect();
+        binaryReader.disconnect();
+        textReader.disconnect();
+        System.setOut(console);
+        if ( dir == null ) return;
+        try ( Stream<Path> files = Files.walk(dir) ) {
+            for ( Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator ) Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.lakin.bench.jmh;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ru.lakin.network.*;
+
+// Разбор входящего потока: старый BufferedReader.readLine() против LineDecoder (строки) и FrameDecoder (кадры).
+// Поток из MESSAGES сообщений заранее лежит в памяти и скармливается разборщикам кусками по 8 КБ, как из сокета.
+// Результат - сообщений в секунду. frameHeaders - разбор кадров без превращения текста в String: цена самого
+// разбора, которую кадры платят вместо поиска '\n' по каждому байту.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineDecodeBench {
+    private static final int MESSAGES = 1000;
+    private static final int CHUNK = 8192;
+
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    private byte[] lines;
+    private byte[] frames;
+
+    @Setup
+    public void setup () throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while ( sb.length() < length ) sb.append("привет, как дела? ");
+        String text = sb.substring(0, length);
+        ByteArrayOutputStream lineStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream frameStream = new ByteArrayOutputStream();
+        for ( int i = 0; i < MESSAGES; i++ ) {
+            lineStream.write((text + "\r\n").getBytes(StandardCharsets.UTF_8));
+            ByteBuffer frame = FrameCodec.encode(FrameType.TEXT, i, text);
+            frameStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        lines = lineStream.toByteArray();
+        frames = frameStream.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readLine (Blackhole bh) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(lines),
+                                                                     StandardCharsets.UTF_8), CHUNK);
+        String line;
+        while ( (line = in.readLine()) != null ) bh.consume(line);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void lineDecoder (Blackhole bh) throws IOException {
+        LineDecoder decoder = new LineDecoder(64 * 1024);
+        for ( int off = 0; off < lines.length; off += CHUNK ) {
+            ByteBuffer chunk = ByteBuffer.wrap(lines, off, Math.min(CHUNK, lines.length - off));
+            String line;
+            while ( (line = decoder.next(chunk)) != null ) bh.consume(line);
+        }
+        decoder.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void frameDecoder (Blackhole bh) throws IOException {
+        decodeFrames(bh, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void frameHeaders (Blackhole bh) throws IOException {
+        decodeFrames(bh, false);
+    }
+
+    private void decodeFrames (Blackhole bh, boolean toString) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(FrameCodec.MAX_FRAME_LENGTH);
+        for ( int off = 0; off < frames.length; off += CHUNK ) {
+            ByteBuffer chunk = ByteBuffer.wrap(frames, off, Math.min(CHUNK, frames.length - off));
+            Frame frame;
+            while ( (frame = decoder.next(chunk)) != null ) {
+                if ( toString ) bh.consume(frame.payloadAsString());
+                else bh.consume(frame.payloadLength() + frame.senderId());
+            }
+        }
+        decoder.release();
+    }
+}
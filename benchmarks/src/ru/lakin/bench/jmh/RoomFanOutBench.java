@@ -0,0 +1,69 @@
+package ru.lakin.bench.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ru.lakin.chat.server.ChatServer;
+import ru.lakin.network.*;
+
+// Цена сообщения в комнату и личного сообщения при росте числа клиентов на сервере.
+// users клиентов (соединения без сокета, см. BenchConnections) рассажены по комнатам по roomSize человек,
+// у каждого свой ник. Сообщение в комнату должно стоить как рассылка roomSize получателям, личное -
+// как одна доставка, сколько бы всего ни было клиентов. Сравнить с FanOutBench, где все в одной комнате.
+// Комнату по умолчанию выключаем (-Deasychat.room.default=), иначе все сидели бы в одной общей.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Deasychat.room.default=")
+public class RoomFanOutBench {
+    @Param({ "1000", "10000", "100000" })
+    public int users;
+
+    @Param({ "50" })
+    public int roomSize;
+
+    private PrintStream console;
+    private ChatServer server;
+    private final List<TCPConnection> connections = new ArrayList<>();
+    private String value;
+    private String privateValue;
+
+    @Setup
+    public void setup () {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer();
+        server.limitInbound(0, 0); // Один отправитель шлёт миллионы сообщений - меряем рассылку, а не ограничитель
+        for ( int i = 0; i < users; i++ ) {
+            TCPConnection connection = BenchConnections.discarding(server);
+            server.onReceiveString(connection, "/nick u" + i);
+            server.onReceiveString(connection, "/join r" + i / roomSize);
+            connections.add(connection);
+        }
+        value = "x".repeat(64);
+        privateValue = "/msg u" + (users - 1) + " " + value; // Адресат - в другой комнате, последний из всех
+    }
+
+    @Benchmark
+    public void sendToRoom () {
+        server.onReceiveString(connections.get(0), value); // Сервер рассылает строку комнате отправителя
+    }
+
+    @Benchmark
+    public void sendPrivate () {
+        server.onReceiveString(connections.get(0), privateValue);
+    }
+
+    @TearDown
+    public void tearDown () {
+        for ( TCPConnection connection : connections ) connection.disconnect();
+        System.setOut(console);
+    }
+}
@@ -0,0 +1,80 @@
+package ru.lakin.bench.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ru.lakin.network.*;
+
+// Цена TCPConnection.sendString на живом соединении через loopback: кодирование строки, замок и запись в сокет.
+// Приёмная сторона - голый сокет с нитью, которая читает и выбрасывает байты, чтобы мерить только отправку.
+// batchBytes = 0 - каждая строка своим системным вызовом, иначе - склейка (TCPConnection.setBatching).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendStringBench {
+    @Param({ "64", "1024" })
+    public int length;
+
+    @Param({ "0", "4096" })
+    public int batchBytes;
+
+    private ServerSocket serverSocket;
+    private Socket receiver;
+    private Thread drain;
+    private TCPConnection connection;
+    private String value;
+
+    @Setup
+    public void setup () throws IOException, InterruptedException {
+        value = "x".repeat(length);
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread( () -> {
+            try { receiver = serverSocket.accept(); }
+            catch ( IOException e ) { throw new RuntimeException(e); }
+        });
+        acceptor.start();
+        connection = new TCPConnection(new Quiet(), "127.0.0.1", serverSocket.getLocalPort());
+        acceptor.join();
+        drain = new Thread(SendStringBench.this::drain, "drain");
+        drain.setDaemon(true);
+        drain.start();
+        connection.setBatching(batchBytes, 200);
+    }
+
+    private void drain () {
+        byte[] bytes = new byte[64 * 1024];
+        try ( InputStream in = receiver.getInputStream() ) {
+            while ( in.read(bytes) >= 0 ) { /* выбрасываем */ }
+        } catch ( IOException e ) {
+            // Соединение закрыли - бенчмарк кончился
+        }
+    }
+
+    @Benchmark
+    public void sendString () {
+        connection.sendString(value);
+    }
+
+    @TearDown
+    public void tearDown () throws IOException {
+        connection.flush();
+        connection.disconnect();
+        receiver.close();
+        serverSocket.close();
+    }
+
+    static final class Quiet implements TCPConnectionListener {
+        @Override public void onConnectionReady (TCPConnection c) {}
+        @Override public void onReceiveString (TCPConnection c, String value) {}
+        @Override public void onDisconnect (TCPConnection c) {}
+        @Override public void onException (TCPConnection c, Exception e) {}
+    }
+}
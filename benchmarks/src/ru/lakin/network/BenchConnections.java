@@ -0,0 +1,89 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Соединения для бенчмарков, у которых вместо сокета - пустота: байты считаются и выбрасываются.
+// Лежит в пакете ru.lakin.network, чтобы дотянуться до Transport и до внутреннего конструктора TCPConnection,
+// не открывая их всем остальным. Нужна, чтобы мерить цену рассылки без шума от сокетов и нитей записи.
+public final class BenchConnections {
+    private BenchConnections () {}
+
+    // Соединение сразу готово: слушатель получает onConnectionReady прямо из этого вызова
+    public static TCPConnection discarding (TCPConnectionListener listener) {
+        return new TCPConnection(listener, new DiscardTransport());
+    }
+
+    // То же, но собеседник уже договорился о двоичном протоколе: получает кадры, а не строки
+    public static TCPConnection discardingBinary (TCPConnectionListener listener) {
+        TCPConnection connection = discarding(listener);
+        try {
+            connection.onBytesReceived(ByteBuffer.wrap((FrameCodec.HELLO + "\r\n").getBytes(StandardCharsets.UTF_8)));
+        } catch ( IOException e ) {
+            throw new UncheckedIOException(e);
+        }
+        return connection;
+    }
+
+    // Разжатие кадра DEFLATE так, как его делает соединение (FrameInflater). Длина нагрузки исходного кадра
+    public static final class Inflate {
+        private final FrameInflater inflater = new FrameInflater();
+        private final FrameDecoder decoder = new FrameDecoder(FrameCodec.MAX_FRAME_LENGTH);
+
+        public int inflate (ByteBuffer frame) {
+            try {
+                Frame packed = decoder.next(frame.duplicate());
+                Frame plain = packed.type() == FrameType.DEFLATE ? inflater.inflate(packed) : packed;
+                return plain.payloadLength();
+            } catch ( IOException e ) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final class DiscardTransport implements Transport {
+        private final WriteStats stats = new WriteStats();
+        private TCPConnection connection;
+        private boolean closed;
+
+        @Override
+        public void start (TCPConnection connection) {
+            this.connection = connection;
+            connection.fireConnectionReady();
+        }
+
+        @Override
+        public WriteStats stats () { return stats; }
+
+        @Override
+        public void write (ByteBuffer[] data, int count) {
+            long total = 0;
+            for ( int i = 0; i < count; i++ ) total += data[i].remaining();
+            stats.record(count, total);
+        }
+
+        @Override
+        public void enqueue (ByteBuffer data) { stats.record(1, data.remaining()); }
+
+        @Override
+        public void enqueueLossless (ByteBuffer data, boolean mayWait) { enqueue(data); }
+
+        @Override
+        public void setReadPaused (boolean paused) {}
+
+        @Override
+        public int queuedCount () { return 0; }
+
+        @Override
+        public void close () {
+            if ( closed ) return;
+            closed = true;
+            connection.fireDisconnect();
+        }
+
+        @Override
+        public String remoteAddress () { return "никуда"; }
+    }
+}
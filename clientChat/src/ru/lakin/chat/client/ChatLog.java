@@ -0,0 +1,110 @@
+package ru.lakin.chat.client;
+import javax.swing.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Лента чата: последние capacity строк и список (JList), который их показывает.
+//
+// Почему не JTextArea с append на каждую строку. Каждая строка - отдельная задача в очереди EDT, документ растёт
+// без конца, а перенос строк и каретка пересчитываются на каждое сообщение. В шумной комнате EDT отстаёт,
+// память растёт, окно замерзает.
+//
+// Здесь так:
+// - post() из любой нити только кладёт строку во входящую очередь. Задачу в EDT ставит лишь первая строка
+//   после прошлого разбора - сколько бы строк ни пришло, в очереди EDT от нас не больше одной задачи;
+// - задача забирает из очереди всё разом, не чаще раза за кадр (FRAME_NANOS), и сообщает списку об изменениях
+//   двумя событиями на пачку, а не по событию на строку;
+// - строки лежат в кольце на capacity строк: новая вытесняет самую старую. Входящая очередь тоже не больше
+//   capacity: если EDT совсем встал, лишнее выкидываем сразу (всё равно вытеснилось бы из кольца);
+// - JList рисует только видимые строки, а с постоянной высотой строки (setFixedCellHeight) и не меряет
+//   остальные. Цена кадра не зависит от того, сколько строк в ленте.
+public final class ChatLog extends AbstractListModel<String> {
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16); // Разбираем не чаще ~60 раз в секунду
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<String> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // Задача разбора уже стоит в EDT
+    private final LongAdder dropped = new LongAdder();
+    private final Timer frameTimer = new Timer(0, e -> drain()); // Досрочно пришедший разбор ждёт конца кадра
+    // Всё ниже - только EDT
+    private final String[] ring;
+    private int head;   // Индекс самой старой строки в кольце
+    private int size;
+    private long lastDrain = System.nanoTime() - FRAME_NANOS;
+    private JList<String> view;
+
+    public ChatLog (int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.ring = new String[this.capacity];
+        frameTimer.setRepeats(false);
+    }
+
+    // Строку - в ленту. Из любой нити, не ждёт EDT
+    public void post (String line) {
+        inbox.add(line);
+        if ( queued.incrementAndGet() > capacity && inbox.poll() != null ) { // EDT отстал на целое кольцо
+            queued.decrementAndGet();
+            dropped.increment();
+        }
+        if ( scheduled.compareAndSet(false, true) ) SwingUtilities.invokeLater(this::drain);
+    }
+
+    // Список для окна, в полосе прокрутки. Если лента была прокручена до конца - держим её в конце.
+    // Выделенные строки копируются по Ctrl+C (так умеет сам JList)
+    public JScrollPane createView () {
+        view = new JList<>(this);
+        view.setFixedCellHeight(view.getFontMetrics(view.getFont()).getHeight() + 2);
+        view.setFixedCellWidth(1); // Ширину не меряем: список растянется по ширине окна
+        return new JScrollPane(view, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                               ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    }
+
+    // --- EDT: забираем всё, что накопилось, в кольцо и сообщаем списку двумя событиями
+    private void drain () {
+        long now = System.nanoTime();
+        long wait = lastDrain + FRAME_NANOS - now;
+        if ( wait > 0 ) { // Прошлый разбор был в этом же кадре - ждём следующего
+            frameTimer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            frameTimer.restart();
+            return;
+        }
+        lastDrain = now;
+        scheduled.set(false); // Строки, пришедшие с этого момента, поставят новую задачу
+        boolean follow = isAtEnd();
+        int oldSize = size, added = 0, removed = 0;
+        for ( String line; (line = inbox.poll()) != null; added++ ) {
+            queued.decrementAndGet();
+            ring[(head + size) % capacity] = line;
+            if ( size < capacity ) size++;
+            else { head = (head + 1) % capacity; removed++; }
+        }
+        if ( added == 0 ) return;
+        if ( added >= capacity ) { // Сменилось всё
+            if ( oldSize > 0 ) fireIntervalRemoved(this, 0, oldSize - 1);
+            fireIntervalAdded(this, 0, size - 1);
+        } else {
+            if ( removed > 0 ) fireIntervalRemoved(this, 0, removed - 1);
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+        if ( follow && view != null ) view.ensureIndexIsVisible(size - 1);
+    }
+
+    // Лента прокручена до последней строки (или ещё не показана)
+    private boolean isAtEnd () {
+        if ( view == null || !(view.getParent() instanceof JViewport viewport) ) return true;
+        int bottom = viewport.getViewPosition().y + viewport.getExtentSize().height;
+        return bottom >= view.getHeight() - view.getFixedCellHeight();
+    }
+
+    // --- МОДЕЛЬ СПИСКА. Только EDT
+    @Override public int getSize () { return size; }
+    @Override public String getElementAt (int index) { return ring[(head + index) % capacity]; }
+
+    public int getCapacity () { return capacity; }
+    public long getDropped () { return dropped.sum(); } // Строк выкинуто, не дойдя до ленты
+    public int getQueued () { return queued.get(); }     // Строк ждут разбора
+}
@@ -4,8 +4,19 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
 import ru.lakin.network.*;
+import static ru.lakin.network.NetworkEnv.CLIENT_SCROLLBACK;
+import static ru.lakin.network.NetworkEnv.HANDSHAKE_TIMEOUT_MS;
+import static ru.lakin.network.NetworkEnv.HEARTBEAT_MS;
+import static ru.lakin.network.NetworkEnv.IDLE_TIMEOUT_MS;
 import static ru.lakin.network.NetworkEnv.IP_ADDR;
 import static ru.lakin.network.NetworkEnv.PORT;
 
@@ -34,6 +45,8 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     // Размеры окна
     private static final int WIDTH = 480;
     private static final int HEIGHT = 320;
+    // Сколько последних сообщений комнаты просить у сервера при подключении
+    private static final int HISTORY_ON_CONNECT = 20;
 
     public static void main (String[] args) {
         // Графические интерфейсы, как правило, требуют работы только в одной нити - главной
@@ -52,12 +65,18 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         SwingUtilities.invokeLater (ClientWindow::new);
     }
 
-    private final JTextArea log = new JTextArea(); // Поле чата. Класс библиотеки JTextArea
+    // Лента чата: последние CLIENT_SCROLLBACK строк, показывает их список JList (см. ChatLog)
+    private final ChatLog log = new ChatLog(CLIENT_SCROLLBACK);
     private final JTextField fieldNickname = new JTextField("Аноним"); // Простое однострочное поле ввода имени
     private final JTextField fieldInput = new JTextField(); // Простое однострочное поле ввода сообщения
 
-    // Нужно установить сетевое соединение с помощью нашего класса TCPConnection
-    private TCPConnection connection;
+    // Нужно установить сетевое соединение с помощью нашего класса TCPConnection.
+    // Подключаемся в своей нити (см. connect), так что до конца знакомства с сервером здесь null
+    private volatile TCPConnection connection;
+    // Большие сообщения, которые сейчас принимаем кусками: номер потока -> имя и сколько байт пришло.
+    // Только нить соединения
+    private final Map<Long, String> streamNames = new HashMap<>();
+    private final Map<Long, Long> streamBytes = new HashMap<>();
 
     // ------- Конструктор ---------------------------
     private ClientWindow() {
@@ -66,19 +85,44 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         setSize(WIDTH, HEIGHT); // Устанавливаем размеры окна
         setLocationRelativeTo(null); // Окно в середину экрана
         setAlwaysOnTop(true); // Окно всегда наверху
-        log.setEditable(false); // Не разрешаем редактировать поле чата
-        log.setLineWrap(true); // Разрешаем перенос строк в поле чата
-        add(log, BorderLayout.CENTER); // Поле чата ставим в центр окна
+        add(log.createView(), BorderLayout.CENTER); // Ленту чата ставим в центр окна
 
         // На нижнем поле ждём в нижнем поле ввода и ентера. Вешаем на него ActionListener и передаём ему экземпляр,
         // который реализует интерфейс addActionListener. В данном случае в нашем классе ClientWindow мы реализовали
         // интерфейс addActionListener и передали туда себя.
         fieldInput.addActionListener(this);
+        // Ник - не приписка к каждому сообщению, а имя, которое мы занимаем на сервере (/nick).
+        // Поменяли ник и нажали Enter - занимаем новый
+        fieldNickname.addActionListener(this);
         add(fieldInput, BorderLayout.SOUTH); // Поле сообщения вниз
         add(fieldNickname, BorderLayout.NORTH); // Поле имени наверх
 
         setVisible(true); // Окно видимо
-        try { connection = new TCPConnection(this, IP_ADDR, PORT); } // Передаём себя в TCPConnection
+        // Подключаемся не в EDT: старый сервер на просьбу о кадрах не ответит, и мы прождём его до
+        // HANDSHAKE_TIMEOUT_MS - всё это время окно бы не рисовалось. Ник берём здесь: поля трогаем только в EDT
+        String nickname = fieldNickname.getText().trim();
+        Thread connector = new Thread( () -> connect(nickname), "connect");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    private void connect(String nickname) {
+        try {
+            TCPConnection connection = new TCPConnection(this, IP_ADDR, PORT); // Передаём себя в TCPConnection
+            // Просим сервер говорить двоичными кадрами. Старый сервер не ответит - останемся на строках
+            boolean binary = connection.requestBinary(HANDSHAKE_TIMEOUT_MS);
+            if ( binary ) connection.requestCompression(); // Согласится сервер - кадры пойдут сжатыми
+            // Сервер пропал без FIN (уснул ноутбук, упала сеть) - узнаем по молчанию в ответ на PING.
+            // Старый сервер PING не понимает: его не рвём (0), сколько бы он ни молчал
+            connection.startHeartbeat(HEARTBEAT_MS, IDLE_TIMEOUT_MS, 0);
+            this.connection = connection; // Теперь окно может писать
+            if ( !binary ) { // Старый сервер команд не знает: /nick и /history разослал бы всем как обычные строки
+                printMsg("Сервер говорит только строками: ник и историю не попросить");
+                return;
+            }
+            if ( !nickname.isEmpty() ) connection.sendString("/nick " + nickname);
+            connection.sendString("/history " + HISTORY_ON_CONNECT); // Что говорили в комнате до нас
+        }
         catch (IOException e) { printMsg ( "Ошибка соединения: " + e ); }
     }
     @Override
@@ -86,11 +130,44 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     // На текстовом поле ActionEvent происходит когда нажимается Enter.
     // На кнопке ActionEvent происходит когда мышь кликает по кнопке.
     public void actionPerformed(ActionEvent e) {
-        // Берем введённую строчку msg
+        TCPConnection connection = this.connection;
+        if ( connection == null ) return; // Ещё не подключились (или не вышло) - набранное остаётся в поле
+        if ( e.getSource() == fieldNickname ) { sendNickname(connection); return; }
+        // Берем введённую строчку msg. Подписывать её ником не надо - сервер знает, кто мы.
+        // Строки с косой черты - команды серверу: /join комната, /msg ник текст и т.д.
         String msg = fieldInput.getText();
         if ( msg.equals("")) return;
         fieldInput.setText(null);
-        connection.sendString(fieldNickname.getText() + ": " + msg);
+        if ( msg.startsWith("/send ") ) {
+            sendFile(connection, Path.of(msg.substring("/send ".length()).trim()));
+            return;
+        }
+        connection.sendString(msg);
+    }
+
+    // /send <файл>: файл уходит в комнату кусками (TCPConnection.openStream), целиком в память не читаем.
+    // Пишем из своей нити: запись куска ждёт сети, а окно ждать не должно
+    private void sendFile(TCPConnection connection, Path file) {
+        if ( !connection.isBinary() ) { printMsg("Сервер говорит только строками - файл не отправить"); return; }
+        Thread sender = new Thread( () -> {
+            try ( InputStream in = Files.newInputStream(file);
+                  OutputStream out = connection.openStream(file.getFileName().toString()) ) {
+                long bytes = in.transferTo(out);
+                printMsg("Отправлено " + file.getFileName() + ": " + bytes + " байт");
+            } catch ( IOException e ) {
+                printMsg("Файл не отправлен: " + e);
+            }
+        }, "send-file");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // Занимаем на сервере ник из верхнего поля. Занят - сервер так и ответит, а мы останемся под старым
+    private void sendNickname(TCPConnection connection) {
+        String nickname = fieldNickname.getText().trim();
+        if ( nickname.isEmpty() ) return;
+        if ( connection.isBinary() ) connection.sendString("/nick " + nickname);
+        else printMsg("Сервер говорит только строками - ник не занять");
     }
 
     // ----- Методы интерфейса TCPConnectionListener. Синхронизировать их не надо, так как они будут вызываться из
@@ -103,6 +180,29 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     public void onReceiveString(TCPConnection tcpConnection, String value) {
         printMsg(value);
     }
+    // Принимаем большое сообщение кусками: здесь только считаем байты (сохранять файлы окошко не умеет)
+    @Override
+    public void onStreamOpen(TCPConnection tcpConnection, long streamId, String name) {
+        streamNames.put(streamId, name);
+        streamBytes.put(streamId, 0L);
+    }
+    @Override
+    public void onStreamChunk(TCPConnection tcpConnection, long streamId, ByteBuffer chunk) {
+        streamBytes.computeIfPresent(streamId, (id, bytes) -> bytes + chunk.remaining());
+    }
+    @Override
+    public void onStreamClose(TCPConnection tcpConnection, long streamId) {
+        Long bytes = streamBytes.remove(streamId);
+        String name = streamNames.remove(streamId);
+        if ( name != null ) printMsg("Принято " + name + ": " + bytes + " байт");
+    }
+    // Поток оборвали (отправитель отключился или мы не успевали принимать) - принятое неполно
+    @Override
+    public void onStreamAbort(TCPConnection tcpConnection, long streamId, String reason) {
+        Long bytes = streamBytes.remove(streamId);
+        String name = streamNames.remove(streamId);
+        if ( name != null ) printMsg("Оборвано " + name + " после " + bytes + " байт: " + reason);
+    }
     @Override
     public void onDisconnect(TCPConnection tcpConnection) {
         printMsg("Соединение отвалилось...");
@@ -112,24 +212,11 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         printMsg ( "Ошибка соединения: " + e );
     }
 
-    // Метод будет писать в наше текстовое поле. Будем писать из нити нашего окошка и из нити соединения,
-    // поэтому синхронизируем. И снова шаманство для запуска Swing.
-    private synchronized void printMsg(String msg) {
-/*
-        SwingUtilities.invokeLater ( new Runnable() {
-            @Override
-            public void run() {
-                log.append(msg + "\n");
-                // Гарантированное срабатывание скролла: ставим каретку в конец
-                log.setCaretPosition(log.getDocument().getLength());
-            }
-        });
-*/      // Так красиво-непонятно переписала ИДЕА закоментаренный ВЫШЕ код
-        SwingUtilities.invokeLater (() -> {
-            log.append(msg + "\n");
-            // Гарантированное срабатывание скролла: ставим каретку в конец
-            log.setCaretPosition(log.getDocument().getLength());
-        });
+    // Метод будет писать в ленту чата. Будем писать из нити нашего окошка и из нити соединения.
+    // Синхронизировать не надо, и задачу в EDT на каждую строку не ставим: ChatLog копит строки сам
+    // и разбирает их в EDT пачкой, не чаще раза за кадр
+    private void printMsg(String msg) {
+        log.post(msg);
     }
 }
 
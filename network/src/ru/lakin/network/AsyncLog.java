@@ -0,0 +1,70 @@
+package ru.lakin.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Асинхронный журнал в консоль вместо System.out.println.
+// println синхронизирован и пишет в консоль прямо в вызывающей нити: на каждом сообщении рассылки это замок
+// и системный вызов, а медленная консоль тормозит сервер. Здесь вызывающая нить лишь кладёт строку в очередь,
+// а печатает одна нить-писатель log-writer.
+// Ограничение частоты: не больше NetworkEnv.LOG_RATE строк в секунду. Лишние строки и строки, не влезшие
+// в очередь, выбрасываем, а писатель время от времени сообщает, сколько пропустил.
+public final class AsyncLog {
+    private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(Math.max(1, NetworkEnv.LOG_QUEUE));
+    private static final LongAdder dropped = new LongAdder();
+    // Счётчик строк текущей секунды: старшие биты - номер секунды, младшие 32 - сколько строк в ней уже было
+    private static final AtomicLong window = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(AsyncLog::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private AsyncLog () {}
+
+    public static void info (String message) { offer(message, null); }
+    public static void error (String message, Throwable cause) { offer(message, cause); }
+
+    // Сколько строк выбросили за всё время: по частоте или из-за полной очереди
+    public static long getDropped () { return dropped.sum(); }
+
+    private static void offer (String message, Throwable cause) {
+        if ( !permit() || !queue.offer(new Entry(message, cause)) ) dropped.increment();
+    }
+
+    private static boolean permit () {
+        long second = System.nanoTime() / 1_000_000_000L;
+        while ( true ) {
+            long current = window.get();
+            long count = (current >>> 32) == second ? (current & 0xFFFFFFFFL) : 0;
+            if ( count >= NetworkEnv.LOG_RATE ) return false;
+            if ( window.compareAndSet(current, (second << 32) | (count + 1)) ) return true;
+        }
+    }
+
+    private static void drain () {
+        long reported = 0;
+        while ( true ) {
+            try {
+                Entry entry = queue.poll(1, TimeUnit.SECONDS);
+                long lost = dropped.sum();
+                if ( lost != reported ) { // System.out берём каждый раз: его могут подменить (бенчмарки глушат консоль)
+                    System.out.println("... пропущено строк журнала: " + (lost - reported));
+                    reported = lost;
+                }
+                if ( entry == null ) continue;
+                System.out.println(entry.message);
+                if ( entry.cause != null ) entry.cause.printStackTrace(System.out);
+            } catch ( InterruptedException e ) {
+                return;
+            } catch ( RuntimeException e ) {
+                // Писатель журнала не роняем ни при каких условиях
+            }
+        }
+    }
+
+    private record Entry (String message, Throwable cause) {}
+}
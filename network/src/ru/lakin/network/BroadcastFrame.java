@@ -0,0 +1,89 @@
+package ru.lakin.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Готовое к отправке сообщение, закодированное один раз на всех получателей.
+// Для рассылки кодируем один раз и раздаём всем получателям один и тот же буфер: каждому - свой
+// read-only дубликат (slice) со своей позицией, а байты общие. N получателей - одно кодирование вместо N.
+// Получатели бывают текстовые (строка UTF-8 с "\r\n") и двоичные (кадр FrameCodec). Каждый вид кодируем
+// лениво, при первой просьбе, и тоже один раз.
+// Буфер можно держать вне кучи (direct): тогда NioTransport пишет его в сокет без промежуточного копирования.
+public final class BroadcastFrame {
+    private final FrameType type;
+    private final long senderId;
+    private final String text;
+    private final boolean direct;
+    // Закодированные виды: read-only, position = 0. Гонка при ленивом кодировании безвредна:
+    // в худшем случае две нити закодируют одно и то же дважды
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer compressed; // Сжатый кадр (FrameCompressor) или тот же binary, если сжимать незачем
+
+    private BroadcastFrame (FrameType type, long senderId, String text, boolean direct) {
+        this.type = type;
+        this.senderId = senderId;
+        this.text = text;
+        this.direct = direct;
+    }
+
+    // Кадр из строки. Вне кучи или нет - по NetworkEnv.DIRECT_FRAMES
+    public static BroadcastFrame ofLine (String value) { return of(FrameType.TEXT, 0, value); }
+
+    public static BroadcastFrame ofLine (String value, boolean direct) {
+        return new BroadcastFrame(FrameType.TEXT, 0, value, direct);
+    }
+
+    // Кадр с типом и отправителем (для двоичных получателей; текстовым уйдёт просто строка text)
+    public static BroadcastFrame of (FrameType type, long senderId, String text) {
+        return new BroadcastFrame(type, senderId, text, NetworkEnv.DIRECT_FRAMES);
+    }
+
+    // Свой взгляд на байты для одного текстового получателя: позиция у каждого своя, байты не копируются
+    public ByteBuffer slice () { return slice(false); }
+
+    // То же для получателя нужного протокола
+    public ByteBuffer slice (boolean binaryProtocol) {
+        return binaryProtocol ? binaryForm().duplicate() : lineForm().duplicate();
+    }
+
+    // То же для двоичного получателя, договорившегося о сжатии: сжимаем тоже один раз на всех
+    public ByteBuffer slice (boolean binaryProtocol, boolean compressed) {
+        return binaryProtocol && compressed ? compressedForm().duplicate() : slice(binaryProtocol);
+    }
+
+    private ByteBuffer lineForm () {
+        ByteBuffer form = line;
+        if ( form == null ) line = form = share(ByteBuffer.wrap((text + "\r\n").getBytes(StandardCharsets.UTF_8)));
+        return form;
+    }
+
+    private ByteBuffer binaryForm () {
+        ByteBuffer form = binary;
+        if ( form == null ) binary = form = share(FrameCodec.encode(type, senderId, text));
+        return form;
+    }
+
+    private ByteBuffer compressedForm () {
+        ByteBuffer form = compressed;
+        if ( form == null ) {
+            ByteBuffer plain = binaryForm();
+            ByteBuffer packed = FrameCompressor.compress(plain);
+            compressed = form = packed == plain ? plain : share(packed);
+        }
+        return form;
+    }
+
+    private ByteBuffer share (ByteBuffer heap) {
+        if ( !direct ) return heap.asReadOnlyBuffer();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(heap.remaining());
+        buffer.put(heap).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public FrameType type () { return type; }
+    public long senderId () { return senderId; }
+    public String text () { return text; }
+    public int size () { return lineForm().remaining(); }
+    public boolean isDirect () { return direct; }
+}
@@ -0,0 +1,175 @@
+package ru.lakin.network;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Общий пул буферов для всех соединений.
+// Раньше каждое соединение держало свои буферы чтения и записи по 8 КБ всю жизнь, даже если клиент молчит часами.
+// Теперь буфер берут из пула только на время работы с данными (прочитать кусок, записать пачку, докопить
+// разрезанную строку) и сразу возвращают. Молчащее соединение буферов не держит вовсе.
+// Буферы разложены по классам размеров - степеням двойки от MIN_SIZE до MAX_SIZE; просьба округляется вверх
+// до класса. Больше MAX_SIZE - выделяем мимо пула и после возврата отдаём сборщику мусора.
+// В каждом классе храним не больше maxPooled свободных буферов, лишние тоже отдаём сборщику.
+//
+// Отладка утечек (-Deasychat.pool.leakDetection=true): запоминаем, где взяли каждый буфер. Если взятый
+// буфер потеряли, не вернув, - сборщик мусора это заметит, мы напечатаем место, где его брали,
+// и вернём память в пул. Стоит это стек вызовов на каждую выдачу, поэтому только для отладки.
+public final class BufferPool {
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    // Общие пулы: в куче (буферы с массивом - для потоков и разборщиков) и вне кучи (для каналов NIO)
+    private static final BufferPool HEAP = new BufferPool(false, NetworkEnv.POOL_MAX_PER_CLASS, NetworkEnv.POOL_LEAK_DETECTION);
+    private static final BufferPool DIRECT = new BufferPool(true, NetworkEnv.POOL_MAX_PER_CLASS, NetworkEnv.POOL_LEAK_DETECTION);
+
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final AtomicLong allocated = new AtomicLong(); // Сколько буферов выделили за всё время
+    private final AtomicLong inUse = new AtomicLong();     // Сколько сейчас на руках
+    private final AtomicLong leaks = new AtomicLong();     // Сколько потерянных буферов нашли
+    // Отладка утечек: следим за каждой выданной ручкой. null - отладка выключена
+    private final Set<LeakRef> tracked;
+    private final ReferenceQueue<PooledBuffer> lost;
+
+    public BufferPool (boolean direct, int maxPooled, boolean leakDetection) {
+        this.direct = direct;
+        for ( int i = 0; i < CLASSES; i++ ) classes[i] = new SizeClass(MIN_SIZE << i, maxPooled);
+        tracked = leakDetection ? ConcurrentHashMap.newKeySet() : null;
+        lost = leakDetection ? new ReferenceQueue<>() : null;
+    }
+
+    public static BufferPool heap () { return HEAP; }
+    public static BufferPool direct () { return DIRECT; }
+
+    // Берём буфер не меньше size байт: position = 0, limit = size. Вернуть - PooledBuffer.release()
+    public PooledBuffer acquire (int size) {
+        if ( tracked != null ) reapLost();
+        int index = classIndex(size);
+        ByteBuffer buffer = index < CLASSES ? classes[index].pop() : null;
+        if ( buffer == null ) {
+            int capacity = index < CLASSES ? classes[index].size : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocated.incrementAndGet();
+        }
+        PooledBuffer pooled = new PooledBuffer(this, index, buffer, size); // Ручка - новая на каждую выдачу
+        inUse.incrementAndGet();
+        if ( tracked != null ) {
+            pooled.leak = new LeakRef(pooled, lost, new Throwable("Буфер " + pooled.buffer.capacity() + " байт взяли здесь"));
+            tracked.add(pooled.leak);
+        }
+        return pooled;
+    }
+
+    // Вызывает PooledBuffer.release()
+    void release (PooledBuffer pooled) {
+        if ( pooled.leak != null ) {
+            tracked.remove(pooled.leak);
+            pooled.leak.clear();
+            pooled.leak = null;
+        }
+        inUse.decrementAndGet();
+        if ( pooled.sizeClass < CLASSES ) classes[pooled.sizeClass].push(pooled.buffer);
+    }
+
+    // Сборщик мусора нашёл ручки, которые взяли и бросили, не вернув. Память спасаем - возвращаем в пул
+    private void reapLost () {
+        LeakRef ref;
+        while ( (ref = (LeakRef) lost.poll()) != null ) {
+            if ( !tracked.remove(ref) ) continue;
+            leaks.incrementAndGet();
+            inUse.decrementAndGet();
+            AsyncLog.error("Утечка буфера: его не вернули в пул", ref.site);
+            if ( ref.sizeClass < CLASSES ) classes[ref.sizeClass].push(ref.buffer);
+        }
+    }
+
+    private static int classIndex (int size) {
+        if ( size <= MIN_SIZE ) return 0;
+        if ( size > MAX_SIZE ) return CLASSES; // Мимо пула
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+    }
+
+    // --- МЕТРИКИ
+    public long getAllocated () { return allocated.get(); }
+    public long getInUse () { return inUse.get(); }
+    public long getLeaks () { return leaks.get(); }
+    public boolean isDirect () { return direct; }
+
+    // Сколько свободных буферов лежит в пуле и сколько в них байт
+    public int getPooled () {
+        int count = 0;
+        for ( SizeClass c : classes ) count += c.count();
+        return count;
+    }
+
+    public long getPooledBytes () {
+        long bytes = 0;
+        for ( SizeClass c : classes ) bytes += (long) c.count() * c.size;
+        return bytes;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("пул %s: на руках %d, в пуле %d (%d КБ), выделено всего %d, утечек %d",
+                             direct ? "вне кучи" : "в куче", getInUse(), getPooled(), getPooledBytes() / 1024,
+                             getAllocated(), getLeaks());
+    }
+
+    // Свободные буферы одного размера: стопка на массиве. Последний вернувшийся выдаётся первым -
+    // он ещё тёплый в кэше процессора. Замок держим на пару присваиваний.
+    private static final class SizeClass {
+        final int size;
+        private final ByteBuffer[] stack;
+        private int top;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        SizeClass (int size, int maxPooled) {
+            this.size = size;
+            this.stack = new ByteBuffer[Math.max(0, maxPooled)];
+        }
+
+        ByteBuffer pop () {
+            lock.lock();
+            try {
+                if ( top == 0 ) return null;
+                ByteBuffer buffer = stack[--top];
+                stack[top] = null;
+                return buffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void push (ByteBuffer buffer) {
+            lock.lock();
+            try { if ( top < stack.length ) stack[top++] = buffer; } // Пул полон - лишний буфер заберёт сборщик
+            finally { lock.unlock(); }
+        }
+
+        int count () {
+            lock.lock();
+            try { return top; }
+            finally { lock.unlock(); }
+        }
+    }
+
+    // Слежка за выданной ручкой. Саму память держим крепко, чтобы после утечки вернуть её в пул
+    static final class LeakRef extends WeakReference<PooledBuffer> {
+        final ByteBuffer buffer;
+        final int sizeClass;
+        final Throwable site;
+
+        LeakRef (PooledBuffer pooled, ReferenceQueue<PooledBuffer> queue, Throwable site) {
+            super(pooled, queue);
+            this.buffer = pooled.buffer;
+            this.sizeClass = pooled.sizeClass;
+            this.site = site;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+// Поток большого сообщения (файла, вставленного лога) по кускам - см. TCPConnection.openStream.
+// Копим не больше одного куска и отправляем его кадром STREAM_DATA, как только он заполнился:
+// сколько бы ни было всего, у нас в памяти - один кусок. Куски не теряются, а запись куска ждёт:
+// на блокирующем транспорте - сокета, на неблокирующем (NioTransport) - места в очереди соединения,
+// до OUTBOUND_CAPACITY кусков (не дольше SLOW_CONSUMER_TIMEOUT_MS; не дождались - соединение рвётся,
+// запись бросает IOException). Так быстрый писатель сам притормаживает под скорость сети.
+// close() досылает остаток и кадр STREAM_CLOSE.
+// Не нитебезопасен: пишет одна нить (как и в любой OutputStream).
+final class ChunkedOutputStream extends OutputStream {
+    private final TCPConnection connection;
+    private final long streamId;
+    private final byte[] chunk;
+    private int count;
+    private boolean closed;
+
+    ChunkedOutputStream (TCPConnection connection, long streamId, int chunkSize) {
+        this.connection = connection;
+        this.streamId = streamId;
+        this.chunk = new byte[chunkSize];
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+        ensureOpen();
+        chunk[count++] = (byte) b;
+        if ( count == chunk.length ) sendChunk();
+    }
+
+    @Override
+    public void write (byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        while ( len > 0 ) {
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if ( count == chunk.length ) sendChunk();
+        }
+    }
+
+    // Недобранный кусок - отправить сейчас
+    @Override
+    public void flush () throws IOException {
+        ensureOpen();
+        if ( count > 0 ) sendChunk();
+    }
+
+    @Override
+    public void close () throws IOException {
+        if ( closed ) return;
+        flush();
+        closed = true;
+        connection.closeStream(streamId);
+    }
+
+    private void sendChunk () throws IOException {
+        connection.sendChunk(streamId, chunk, count);
+        count = 0;
+    }
+
+    private void ensureOpen () throws IOException {
+        if ( closed ) throw new IOException("Поток уже закрыт");
+    }
+}
@@ -0,0 +1,20 @@
+package ru.lakin.network;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Одна общая нить-будильник на все соединения: сбрасывает накопленную пачку, если она слишком долго ждёт
+// (см. TCPConnection.setBatching). Своего таймера на каждое соединение не заводим.
+final class FlushTimer {
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "flush-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FlushTimer () {}
+
+    static void schedule (Runnable task, long delayMicros) {
+        timer.schedule(task, delayMicros, TimeUnit.MICROSECONDS);
+    }
+}
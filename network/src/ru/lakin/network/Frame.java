@@ -0,0 +1,49 @@
+package ru.lakin.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Принятый кадр двоичного протокола: тип, отправитель и полезная нагрузка.
+// Кадр - многоразовый "взгляд" на буфер приёма, а не копия: FrameDecoder на каждое сообщение перенастраивает
+// один и тот же объект. Поэтому пользоваться кадром можно только внутри onReceiveFrame. Нужно дольше -
+// забирайте payloadAsString() или copyPayload().
+public final class Frame {
+    private FrameType type;
+    private long senderId;
+    private ByteBuffer buffer; // Где лежит нагрузка: буфер приёма или буфер накопления FrameDecoder
+    private int offset;
+    private int length;
+
+    void set (FrameType type, long senderId, ByteBuffer buffer, int offset, int length) {
+        this.type = type;
+        this.senderId = senderId;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public FrameType type () { return type; }
+    public long senderId () { return senderId; } // 0 - сервер
+    public int payloadLength () { return length; }
+
+    public byte[] copyPayload () {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    // Нагрузка без копии: read-only взгляд на буфер приёма. Действителен, как и сам кадр, только внутри вызова
+    public ByteBuffer payload () { return buffer.slice(offset, length).asReadOnlyBuffer(); }
+
+    // Дописать нагрузку в out (места должно хватить)
+    public void copyPayloadTo (ByteBuffer out) {
+        out.put(out.position(), buffer, offset, length);
+        out.position(out.position() + length);
+    }
+
+    // Нагрузка как строка UTF-8. Из буфера в куче декодируем прямо из его массива, без лишней копии
+    public String payloadAsString () {
+        if ( buffer.hasArray() ) return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        return new String(copyPayload(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Двоичный протокол easyChat. Кадр:
+//   [длина: varint] [тип: 1 байт] [id отправителя: varint] [нагрузка: длина - 1 - размер id байт]
+// varint - беззнаковое целое по 7 бит в байте, старший бит байта = "дальше ещё байт" (как в protobuf).
+// В отличие от текстового протокола, нагрузка может содержать что угодно, включая переводы строк,
+// а приёмнику не надо искать конец строки в каждом байте: длина известна из заголовка.
+//
+// Переход на двоичный протокол договаривается в начале соединения (см. TCPConnection.requestBinary):
+// клиент шлёт текстовую строку HELLO, сервер отвечает HELLO_OK, и дальше обе стороны говорят кадрами.
+// Старые клиенты HELLO не шлют и остаются на текстовом протоколе.
+public final class FrameCodec {
+    public static final String HELLO = "#easychat binary/1";
+    public static final String HELLO_OK = "#easychat binary/1 ok";
+    public static final int MAX_VARINT_LENGTH = 10;
+    public static final int MAX_FRAME_LENGTH = 1 << 20; // Защита от испорченной или злонамеренной длины
+
+    private FrameCodec () {}
+
+    public static ByteBuffer encode (FrameType type, long senderId, String text) {
+        return encode(type, senderId, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Готовый к записи кадр в куче: position = 0, limit = размер кадра
+    public static ByteBuffer encode (FrameType type, long senderId, byte[] payload) {
+        return encode(type, senderId, payload, 0, payload.length);
+    }
+
+    // То же с нагрузкой из куска массива
+    public static ByteBuffer encode (FrameType type, long senderId, byte[] payload, int offset, int length) {
+        int body = 1 + varintSize(senderId) + length;
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(body) + body);
+        putVarint(frame, body);
+        frame.put((byte) type.code());
+        putVarint(frame, senderId);
+        frame.put(payload, offset, length);
+        return frame.flip();
+    }
+
+    // То же с нагрузкой из буфера: копируем его остаток прямо в кадр. payload не трогаем
+    public static ByteBuffer encode (FrameType type, long senderId, ByteBuffer payload) {
+        int length = payload.remaining();
+        int body = 1 + varintSize(senderId) + length;
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(body) + body);
+        putVarint(frame, body);
+        frame.put((byte) type.code());
+        putVarint(frame, senderId);
+        frame.put(payload.duplicate());
+        return frame.flip();
+    }
+
+    // Кадры, лежащие подряд в frames, - строками текстового протокола ("\r\n" после каждой), в новом буфере.
+    // Кадры неизвестного типа пропускаем. Строка всегда короче своего кадра (заголовок кадра - не меньше 3 байт,
+    // а к строке добавляется 2), так что буфера размером с кадры хватает. frames не трогаем
+    public static ByteBuffer toLines (ByteBuffer frames) throws IOException {
+        ByteBuffer in = frames.duplicate();
+        ByteBuffer out = ByteBuffer.allocate(in.remaining());
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME_LENGTH);
+        try {
+            Frame frame;
+            while ( (frame = decoder.next(in)) != null ) {
+                if ( frame.type() == null ) continue;
+                frame.copyPayloadTo(out);
+                out.put((byte) '\r').put((byte) '\n');
+            }
+        } finally {
+            decoder.release(); // Обрезанный последний кадр - не наша забота, просто не отдаём его
+        }
+        return out.flip();
+    }
+
+    public static int varintSize (long value) {
+        int size = 1;
+        while ( (value >>>= 7) != 0 ) size++;
+        return size;
+    }
+
+    public static void putVarint (ByteBuffer buffer, long value) {
+        while ( (value & ~0x7FL) != 0 ) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.lakin.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+// Сжатие кадров двоичного протокола (deflate из JDK, без сторонних библиотек).
+// Сжатый кадр - обычный кадр типа DEFLATE: [длина] [DEFLATE] [varint: длина тела исходного кадра] [deflate тела],
+// где тело - всё, что после длины: тип, отправитель и нагрузка. Так сжимается любой кадр, и приёмник,
+// разжав, разбирает его как обычный (FrameInflater).
+//
+// Каждый кадр сжимается сам по себе, без общего потока на соединение: тогда рассылка по-прежнему сжимает
+// кадр один раз на всех получателей (BroadcastFrame). Чтобы короткие сообщения всё же сжимались, и сжатие,
+// и разжатие начинают с общего словаря DICTIONARY - частых строк чата, а Deflater-ы не создаём на каждый
+// кадр, а берём из пула и сбрасываем (reset) - в них дорогие внутренние буферы zlib.
+// Словарь - часть протокола: поменяли словарь - меняйте и NAME.
+//
+// Договариваются о сжатии после перехода на двоичный протокол (см. TCPConnection.requestCompression):
+// клиент шлёт кадр OPTIONS с NAME, сервер, если тоже умеет, отвечает тем же. Старый сервер OPTIONS
+// молча пропустит, и соединение останется без сжатия.
+public final class FrameCompressor {
+    public static final String NAME = "deflate/1";
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    // Чем чаще строка, тем ближе к концу словаря: так до неё короче ссылка
+    static final byte[] DICTIONARY = String.join("",
+            "Exception: java.io.IOException: Connection reset\tat java.base/\tat ru.lakin.",
+            "ERROR WARN INFO DEBUG https://http://www.com .ru .txt .log .java ",
+            "История комнаты , дальше - /history since Нет такого ника: Ник  занят Вы не в комнате. ",
+            "Команды: /nick /join /leave /msg /rooms /history /who ",
+            " что это как так да нет привет спасибо хорошо сообщение сервер клиент",
+            " вышел из комнаты  зашёл в комнату  теперь Теперь вы ",
+            "Клиент отвалился: Клиент подключился: TCPConnection: /127.0.0.1: ",
+            "[лично  → ] [общая #] ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private FrameCompressor () {}
+
+    // Сжатие включено в этом процессе (-Deasychat.compression)
+    public static boolean isEnabled () { return "deflate".equals(NetworkEnv.COMPRESSION); }
+
+    // Сжатый вариант готового кадра frame (позиция - начало кадра, не трогаем) или сам frame,
+    // если кадр короче NetworkEnv.COMPRESSION_MIN_BYTES или сжатие ничего не даёт. Из любой нити
+    public static ByteBuffer compress (ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        if ( in.remaining() < NetworkEnv.COMPRESSION_MIN_BYTES ) return frame;
+        long bodyLength = 0;
+        for ( int shift = 0; ; shift += 7 ) { // Пропускаем длину: сжимаем только тело
+            byte b = in.get();
+            bodyLength |= (long) (b & 0x7F) << shift;
+            if ( b >= 0 ) break;
+        }
+        byte[] packed = new byte[in.remaining()]; // Больше исходного не надо: не влезло - значит, и не сжалось
+        int packedLength;
+        Deflater deflater = borrow();
+        try {
+            deflater.setInput(in);
+            deflater.finish();
+            packedLength = deflater.deflate(packed);
+            if ( !deflater.finished() ) return frame;
+        } finally {
+            giveBack(deflater);
+        }
+        int length = 1 + FrameCodec.varintSize(bodyLength) + packedLength;
+        if ( FrameCodec.varintSize(length) + length >= frame.remaining() ) return frame;
+        ByteBuffer result = ByteBuffer.allocate(FrameCodec.varintSize(length) + length);
+        FrameCodec.putVarint(result, length);
+        result.put((byte) FrameType.DEFLATE.code());
+        FrameCodec.putVarint(result, bodyLength);
+        result.put(packed, 0, packedLength).flip();
+        NetworkMetrics.get().compressed(frame.remaining(), result.remaining());
+        return result;
+    }
+
+    private static Deflater borrow () {
+        Deflater deflater = pool.poll();
+        if ( deflater != null ) {
+            pooled.decrementAndGet();
+            return deflater;
+        }
+        deflater = new Deflater(NetworkEnv.COMPRESSION_LEVEL);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    private static void giveBack (Deflater deflater) {
+        if ( pooled.incrementAndGet() > POOL_SIZE ) { // Лишние - закрываем, память zlib вне кучи
+            pooled.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY); // reset() забывает словарь
+        pool.add(deflater);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Разборщик кадров двоичного протокола (см. FrameCodec) из потока байтов.
+// Если кадр целиком лежит в буфере приёма - отдаём его прямо оттуда, ничего не копируя и не выделяя.
+// Кадр, разрезанный между двумя чтениями, докапливаем в буфере накопления. Его берём из BufferPool, только пока
+// есть что докапливать, и возвращаем, как только кадр отдан.
+// Не нитебезопасен: каждым экземпляром пользуется одна нить чтения соединения.
+public final class FrameDecoder {
+    private final int maxFrameLength;
+    private final Frame frame = new Frame(); // Один многоразовый кадр на все сообщения
+    private PooledBuffer pooled; // Откуда взят partial. null - накапливать нечего
+    private ByteBuffer partial;  // Накопление разрезанного кадра
+    private boolean partialDelivered; // Кадр из partial уже отдан - при следующем вызове буфер возвращаем
+    private long varint;   // Результат readVarint
+    private int varintEnd; // Где varint закончился; -1 - байтов не хватило
+
+    public FrameDecoder (int maxFrameLength) { this.maxFrameLength = maxFrameLength; }
+
+    // Следующий кадр из in или null, если нужен следующий кусок потока (всё, что было в in, мы запомнили).
+    // Кадр действителен до следующего вызова next.
+    public Frame next (ByteBuffer in) throws IOException {
+        if ( partialDelivered ) release();
+        if ( partial == null ) {
+            // Обычный случай: разбираем прямо в буфере приёма
+            int end = frameEnd(in, in.position(), in.limit());
+            if ( end >= 0 ) {
+                parseBody(in, in.position(), end);
+                in.position(end);
+                return frame;
+            }
+            if ( !in.hasRemaining() ) return null;
+            ensureCapacity(256);
+        }
+        return nextPartial(in);
+    }
+
+    // Отдать буфер накопления в пул. Вызывать, когда соединение закрыто
+    public void release () {
+        if ( pooled != null ) pooled.release();
+        pooled = null;
+        partial = null;
+        partialDelivered = false;
+    }
+
+    // Кадр разрезан: докладываем в partial ровно столько байтов, сколько нужно до конца кадра
+    private Frame nextPartial (ByteBuffer in) throws IOException {
+        while ( in.hasRemaining() ) {
+            int end = frameEnd(partial, 0, partial.position());
+            if ( end < 0 ) {
+                int need = varintEnd < 0 ? 1 : (int) varint + (varintEnd) - partial.position();
+                if ( varintEnd < 0 && partial.position() >= FrameCodec.MAX_VARINT_LENGTH )
+                    throw new IOException("Испорченная длина кадра");
+                ensureCapacity(partial.position() + need);
+                int len = Math.min(need, in.remaining());
+                partial.put(partial.position(), in, in.position(), len);
+                partial.position(partial.position() + len);
+                in.position(in.position() + len);
+                continue;
+            }
+            parseBody(partial, 0, end);
+            partialDelivered = true;
+            return frame;
+        }
+        int end = frameEnd(partial, 0, partial.position());
+        if ( end < 0 ) return null;
+        parseBody(partial, 0, end);
+        partialDelivered = true;
+        return frame;
+    }
+
+    // Конец кадра, который начинается в from, или -1, если кадр ещё не весь
+    private int frameEnd (ByteBuffer buffer, int from, int limit) throws IOException {
+        readVarint(buffer, from, limit);
+        if ( varintEnd < 0 ) return -1;
+        if ( varint < 2 || varint > maxFrameLength ) throw new IOException("Недопустимая длина кадра: " + varint);
+        long end = varintEnd + varint;
+        return end <= limit ? (int) end : -1;
+    }
+
+    private void parseBody (ByteBuffer buffer, int from, int end) throws IOException {
+        readVarint(buffer, from, end); // Длина - уже проверена
+        int typeAt = varintEnd;
+        FrameType type = FrameType.of(buffer.get(typeAt));
+        readVarint(buffer, typeAt + 1, end);
+        if ( varintEnd < 0 ) throw new IOException("Испорченный заголовок кадра");
+        frame.set(type, varint, buffer, varintEnd, end - varintEnd);
+    }
+
+    // Читает varint по абсолютным индексам, позицию буфера не двигает. Итог - в полях varint и varintEnd
+    private void readVarint (ByteBuffer buffer, int from, int limit) throws IOException {
+        long value = 0;
+        for ( int i = from, shift = 0; i < limit; i++, shift += 7 ) {
+            if ( shift >= 64 ) throw new IOException("Слишком длинный varint");
+            byte b = buffer.get(i);
+            value |= (long) (b & 0x7F) << shift;
+            if ( b >= 0 ) { varint = value; varintEnd = i + 1; return; }
+        }
+        varintEnd = -1;
+    }
+
+    private void ensureCapacity (int capacity) {
+        if ( partial != null && capacity <= partial.capacity() ) return;
+        PooledBuffer bigger = BufferPool.heap().acquire(Math.max(capacity, partial == null ? 0 : partial.capacity() * 2));
+        ByteBuffer buffer = bigger.buffer().clear();
+        if ( partial != null ) {
+            partial.flip();
+            buffer.put(partial);
+            pooled.release();
+        }
+        pooled = bigger;
+        partial = buffer;
+    }
+}
@@ -0,0 +1,63 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Разжатие кадров DEFLATE (см. FrameCompressor) одного соединения. Inflater и буфер тела - на всё соединение,
+// между кадрами только сбрасываем (reset): ни zlib, ни буфер не создаём заново на каждый кадр.
+// Тело больше MAX_KEPT_BODY разжимаем во временный массив, чтобы соединение потом не держало его зря.
+// Не нитебезопасен: зовёт только нить чтения соединения. Заводится при первом сжатом кадре.
+final class FrameInflater {
+    private static final int MAX_KEPT_BODY = 64 * 1024;
+
+    private final Inflater inflater = new Inflater();
+    private final Frame frame = new Frame(); // Разжатый кадр, многоразовый - как и у FrameDecoder
+    private byte[] body = new byte[1024];
+    private ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+
+    // Разжатый кадр из сжатого packed. Действителен до следующего вызова
+    Frame inflate (Frame packed) throws IOException {
+        long length = packed.senderId(); // У кадра DEFLATE на месте отправителя - длина тела исходного кадра
+        if ( length < 2 || length > FrameCodec.MAX_FRAME_LENGTH )
+            throw new IOException("Недопустимая длина сжатого кадра: " + length);
+        byte[] out = body;
+        ByteBuffer outBuffer = bodyBuffer;
+        if ( length > out.length ) {
+            out = new byte[(int) length];
+            outBuffer = ByteBuffer.wrap(out);
+            if ( length <= MAX_KEPT_BODY ) { body = out; bodyBuffer = outBuffer; }
+        }
+        inflater.reset();
+        inflater.setInput(packed.payload());
+        int size = 0;
+        try {
+            while ( size < length ) {
+                int n = inflater.inflate(out, size, (int) length - size);
+                if ( n == 0 ) {
+                    if ( inflater.needsDictionary() ) inflater.setDictionary(FrameCompressor.DICTIONARY);
+                    else break; // Данные кончились раньше, чем обещано
+                }
+                size += n;
+            }
+        } catch ( DataFormatException e ) {
+            throw new IOException("Испорченный сжатый кадр: " + e.getMessage(), e);
+        }
+        if ( size != length || !inflater.finished() ) throw new IOException("Сжатый кадр не той длины");
+        // Тело: [тип] [отправитель: varint] [нагрузка]
+        long senderId = 0;
+        int position = 1;
+        for ( int shift = 0; ; shift += 7 ) {
+            if ( position >= size || shift >= 64 ) throw new IOException("Испорченный заголовок сжатого кадра");
+            byte b = out[position++];
+            senderId |= (long) (b & 0x7F) << shift;
+            if ( b >= 0 ) break;
+        }
+        frame.set(FrameType.of(out[0]), senderId, outBuffer, position, size - position);
+        return frame;
+    }
+
+    // Соединение закрыто: отдаём память zlib (она вне кучи)
+    void release () { inflater.end(); }
+}
@@ -0,0 +1,33 @@
+package ru.lakin.network;
+
+// Типы сообщений двоичного протокола (см. FrameCodec). Код типа - один байт кадра.
+// Кадры неизвестного типа принимающая сторона молча пропускает: так старый клиент переживёт новые типы.
+public enum FrameType {
+    TEXT(1),   // Сообщение чата
+    SYSTEM(2), // Служебное объявление сервера: подключился, отвалился и т.п.
+    OPTIONS(3),      // Договор о сжатии: нагрузка - FrameCompressor.NAME (см. TCPConnection.requestCompression)
+    DEFLATE(4),      // Сжатый кадр (FrameCompressor): номер - длина тела исходного кадра
+    // Большое сообщение по кускам (TCPConnection.openStream); номер - номер потока у отправителя
+    STREAM_OPEN(5),  // Начало потока, нагрузка - имя (например, имя файла)
+    STREAM_DATA(6),  // Очередной кусок
+    STREAM_CLOSE(7), // Конец потока. Нагрузка пустая, а если поток оборван недопереданным - причина
+    // Пульс (TCPConnection.startHeartbeat): собеседник молчит - спрашиваем, жив ли. Слушателю не приходят
+    PING(8),
+    PONG(9),         // Ответ на PING, шлёт само соединение
+    // Связи между узлами кластера серверов, клиентам не приходят
+    NODE(16),     // Знакомство узлов: номер - эпоха (или подтверждённый номер сообщения), нагрузка - имя узла
+    RELAY(17),    // Пересылаемое сообщение: номер - порядковый номер у узла-источника
+    PRESENCE(18); // Ник появился или пропал на узле-источнике; номер - тоже порядковый
+
+    private static final FrameType[] byCode = new FrameType[256];
+    static { for ( FrameType type : values() ) byCode[type.code] = type; }
+
+    private final int code;
+
+    FrameType (int code) { this.code = code; }
+
+    public int code () { return code; }
+
+    // Тип по коду или null, если такого типа мы не знаем
+    public static FrameType of (int code) { return byCode[code & 0xFF]; }
+}
@@ -0,0 +1,74 @@
+package ru.lakin.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Гистограмма задержек в духе HdrHistogram: считаем не каждое значение, а попадания в корзины.
+// Корзины логарифмически-линейные: каждый интервал [2^k, 2^(k+1)) поделён на SUB_BUCKETS равных частей,
+// так что относительная ошибка любого перцентиля не больше 1/SUB_BUCKETS (~1.6%), а памяти - пара
+// тысяч счётчиков на весь диапазон long. Значения - в наносекундах.
+// Писать можно из любых нитей одновременно, без замков. Читать - тоже, но снимок будет чуть размытым.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;                 // 64 корзины на удвоение
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;    // Хватает до Long.MAX_VALUE
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record (long nanos) {
+        if ( nanos < 0 ) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        total.increment();
+        max.accumulate(nanos);
+    }
+
+    public void reset () {
+        for ( int i = 0; i < BUCKETS; i++ ) counts.set(i, 0);
+        total.reset();
+        max.reset();
+    }
+
+    public long getCount () { return total.sum(); }
+    public long getMaxNanos () { return max.get(); }
+
+    // Значение, не больше которого percentile процентов замеров (верхняя граница корзины). 0 - замеров нет
+    public long getPercentileNanos (double percentile) {
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) count += counts.get(i);
+        if ( count == 0 ) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts.get(i);
+            if ( seen >= rank ) return Math.min(upperBound(i), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    // Корзина: до 2*SUB_BUCKETS - само значение, дальше - старшие SUB_BITS+1 бит и сдвиг
+    private static int index (long value) {
+        if ( value < 2 * SUB_BUCKETS ) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upperBound (int index) {
+        if ( index < 2 * SUB_BUCKETS ) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("замеров: %d, p50: %d мкс, p99: %d мкс, p999: %d мкс, макс: %d мкс", getCount(),
+                             micros(getPercentileNanos(50)), micros(getPercentileNanos(99)),
+                             micros(getPercentileNanos(99.9)), micros(getMaxNanos()));
+    }
+
+    private static long micros (long nanos) { return TimeUnit.NANOSECONDS.toMicros(nanos); }
+}
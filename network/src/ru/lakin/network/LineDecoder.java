@@ -0,0 +1,88 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// Разборщик строк из потока байтов - замена BufferedReader.readLine() для обоих транспортов.
+// Байты приходят кусками как попало: строка может прийти по частям, а в одном куске может быть несколько строк.
+// Поэтому недописанный хвост копим до прихода '\n'. Конец строки - "\n" или "\r\n".
+// Массив для хвоста берём из BufferPool, только пока хвост есть: строка дописалась - массив вернули.
+// Не нитебезопасен: каждым экземпляром пользуется одна нить чтения соединения.
+public final class LineDecoder {
+    private final int maxLineLength; // Защита от бесконечной строки без '\n'
+    private PooledBuffer pooled;     // Откуда взят pending. null - хвоста нет
+    private byte[] pending;          // Накопленный хвост недописанной строки
+    private int pendingLength;
+
+    public LineDecoder (int maxLineLength) { this.maxLineLength = maxLineLength; }
+
+    // Разбирает всё, что есть в buffer (от position до limit), и отдаёт готовые строки в sink.
+    // После вызова buffer полностью вычитан.
+    public void decode (ByteBuffer buffer, Consumer<String> sink) throws IOException {
+        String line;
+        while ( (line = next(buffer)) != null ) sink.accept(line);
+    }
+
+    // Следующая строка из buffer или null, если строка ещё не пришла целиком (хвост запомнили).
+    // Позиция buffer сдвигается ровно за прочитанную строку - остаток можно разбирать уже чем-то другим
+    // (так TCPConnection переходит с текстового протокола на двоичный посреди буфера).
+    public String next (ByteBuffer buffer) throws IOException {
+        if ( !buffer.hasRemaining() ) return null;
+        int start = buffer.position();
+        int end = indexOfNewLine(buffer, start, buffer.limit());
+        if ( end < 0 ) { // Конца строки нет - копим хвост до следующего раза
+            append(buffer, start, buffer.limit());
+            buffer.position(buffer.limit());
+            return null;
+        }
+        buffer.position(end + 1); // Проглотили '\n'
+        if ( pendingLength == 0 && buffer.hasArray() ) {
+            // Вся строка целиком лежит в буфере - декодируем прямо из его массива, без копирования
+            int len = trimCR(buffer.array(), buffer.arrayOffset() + start, end - start);
+            checkLength(len);
+            return new String(buffer.array(), buffer.arrayOffset() + start, len, StandardCharsets.UTF_8);
+        }
+        append(buffer, start, end);
+        int len = trimCR(pending, 0, pendingLength);
+        String line = new String(pending, 0, len, StandardCharsets.UTF_8);
+        release();
+        return line;
+    }
+
+    // Отдать хвост в пул. Вызывать, когда соединение закрыто: недописанная строка уже не допишется
+    public void release () {
+        if ( pooled != null ) pooled.release();
+        pooled = null;
+        pending = null;
+        pendingLength = 0;
+    }
+
+    private static int indexOfNewLine (ByteBuffer buffer, int from, int to) {
+        for ( int i = from; i < to; i++ ) if ( buffer.get(i) == '\n' ) return i;
+        return -1;
+    }
+    // Длина строки без завершающего '\r'
+    private static int trimCR (byte[] bytes, int offset, int length) {
+        return ( length > 0 && bytes[offset + length - 1] == '\r' ) ? length - 1 : length;
+    }
+    private void append (ByteBuffer buffer, int from, int to) throws IOException {
+        int len = to - from;
+        checkLength(pendingLength + len);
+        if ( pending == null || pendingLength + len > pending.length ) grow(pendingLength + len);
+        buffer.get(from, pending, pendingLength, len);
+        pendingLength += len;
+    }
+    private void grow (int length) {
+        PooledBuffer bigger = BufferPool.heap().acquire(Math.max(length, pending == null ? 0 : pending.length * 2));
+        byte[] array = bigger.buffer().array(); // Буфер из пула в куче - массив у него свой, с нуля
+        if ( pendingLength > 0 ) System.arraycopy(pending, 0, array, 0, pendingLength);
+        if ( pooled != null ) pooled.release();
+        pooled = bigger;
+        pending = array;
+    }
+    private void checkLength (int length) throws IOException {
+        if ( length > maxLineLength ) throw new IOException("Слишком длинная строка: больше " + maxLineLength + " байт");
+    }
+}
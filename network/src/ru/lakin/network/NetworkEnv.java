@@ -15,5 +15,101 @@ import java.io.File;
     public static String myLogFilePathName = myHomePath + File.separator + "Log.txt";
 // ---------------- IP сервера для написания и отладки клиент-серверных приложений. (!!!!! ЗАГЛУШКА)
     public static final String IP_ADDR = "127.0.0.1";
-    public static final int PORT = 8187;
+//                  Порт можно задать при запуске: -Deasychat.port=8188 (несколько узлов кластера на одной машине)
+    public static final int PORT = Integer.getInteger("easychat.port", 8187);
+// ---------------- Сетевой движок сервера: "blocking" - нить на каждое соединение, "nio" - селекторы NioServer
+//                  Задаётся при запуске: -Deasychat.engine=nio
+    public static final String ENGINE = System.getProperty("easychat.engine", "blocking");
+// ---------------- Сколько циклов-селекторов держит NioServer (по умолчанию - по одному на ядро)
+    public static final int NIO_LOOPS = Integer.getInteger("easychat.nio.loops",
+                                                           Runtime.getRuntime().availableProcessors());
+// ---------------- Нити соединений и цикла приёма: "platform" - обычные, "virtual" - виртуальные (JDK 21+)
+//                  Задаётся при запуске: -Deasychat.threads=virtual. На старом JDK откатывается на обычные
+    public static final String THREADS = System.getProperty("easychat.threads", "platform");
+// ---------------- Очередь исходящих сообщений соединения: сколько сообщений влезает и что делать с медленным
+//                  клиентом, когда она полна (DROP_OLDEST | DISCONNECT | BLOCK с таймаутом в миллисекундах)
+    public static final int OUTBOUND_CAPACITY = Integer.getInteger("easychat.outbound.capacity", 1024);
+    public static final SlowConsumerPolicy SLOW_CONSUMER =
+            SlowConsumerPolicy.valueOf(System.getProperty("easychat.slowConsumer", "DROP_OLDEST").toUpperCase());
+    public static final long SLOW_CONSUMER_TIMEOUT_MS = Long.getLong("easychat.slowConsumer.timeoutMs", 1000);
+// ---------------- Кадры рассылки (BroadcastFrame) держать вне кучи: -Deasychat.frames.direct=true
+//                  Для nio это запись в сокет без лишнего копирования, но сам кадр выделять дороже
+    public static final boolean DIRECT_FRAMES = Boolean.getBoolean("easychat.frames.direct");
+// ---------------- Склейка исходящих строк соединения (см. TCPConnection.setBatching). По умолчанию выключена.
+//                  Сбрасываем, когда накопилось BATCH_BYTES байт или первая строка пачки ждёт BATCH_MICROS мкс
+    public static final int BATCH_BYTES = Integer.getInteger("easychat.batch.bytes", 0);
+    public static final long BATCH_MICROS = Long.getLong("easychat.batch.micros", 200);
+// ---------------- Сколько клиент ждёт ответа на просьбу перейти на двоичный протокол (см. FrameCodec.HELLO).
+//                  Не дождался - сервер старый, говорим с ним строками
+    public static final long HANDSHAKE_TIMEOUT_MS = Long.getLong("easychat.handshake.timeoutMs", 1000);
+// ---------------- Сжатие кадров (см. FrameCompressor): "deflate" - клиент просит, сервер соглашается; "none" - нет.
+//                  Кадры короче minBytes не сжимаем. Уровень deflate: 1 - быстрее всего, 9 - плотнее всего
+    public static final String COMPRESSION = System.getProperty("easychat.compression", "deflate");
+    public static final int COMPRESSION_MIN_BYTES = Integer.getInteger("easychat.compression.minBytes", 128);
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("easychat.compression.level", 1);
+// ---------------- Размер куска большого сообщения (TCPConnection.openStream). В памяти отправителя - один кусок
+    public static final int STREAM_CHUNK_BYTES = Integer.getInteger("easychat.stream.chunkBytes", 64 * 1024);
+// ---------------- Поток через сервер (см. ChatServer.Stream). У получателя в очереди highWater сообщений - перестаём
+//                  читать отправителя, пока у всех не станет не больше lowWater. Не разгрёбся за stallMs -
+//                  обрываем поток этому получателю, остальные получают дальше
+    public static final int STREAM_HIGH_WATER = Integer.getInteger("easychat.stream.highWater", 32);
+    public static final int STREAM_LOW_WATER = Integer.getInteger("easychat.stream.lowWater", 8);
+    public static final long STREAM_STALL_MS = Long.getLong("easychat.stream.stallMs", 10_000);
+// ---------------- Колесо таймеров (см. TimerWheel): шаг стрелки, мс, и число ячеек (шаг * ячейки - один оборот)
+    public static final long TIMER_TICK_MS = Long.getLong("easychat.timer.tickMs", 100);
+    public static final int TIMER_SLOTS = Integer.getInteger("easychat.timer.slots", 512);
+// ---------------- Пульс и простой соединений (см. TCPConnection.startHeartbeat). Двоичный собеседник молчит
+//                  HEARTBEAT_MS - шлём ему PING; молчит IDLE_TIMEOUT_MS - рвём соединение. Текстовому PING не послать
+//                  (старый клиент показал бы его как сообщение), его рвём после IDLE_TEXT_TIMEOUT_MS тишины.
+//                  0 - не рвём
+    public static final long HEARTBEAT_MS = Long.getLong("easychat.heartbeat.ms", 15_000);
+    public static final long IDLE_TIMEOUT_MS = Long.getLong("easychat.idle.timeoutMs", 45_000);
+    public static final long IDLE_TEXT_TIMEOUT_MS = Long.getLong("easychat.idle.textTimeoutMs", 600_000);
+// ---------------- Допуск соединений на сервер (см. ChatServer.admit): сколько всего соединений, сколько новых
+//                  соединений в секунду с одного адреса (и сколько подряд разом), 0 - без ограничения
+    public static final int MAX_CONNECTIONS = Integer.getInteger("easychat.maxConnections", 10_000);
+    public static final double CONNECT_RATE = Double.parseDouble(System.getProperty("easychat.connect.rate", "5"));
+    public static final int CONNECT_BURST = Integer.getInteger("easychat.connect.burst", 20);
+// ---------------- Сколько сообщений в секунду (и сколько подряд разом) сервер принимает от одного клиента.
+//                  Лишние выкидывает и предупреждает клиента. 0 - без ограничения
+    public static final double INBOUND_RATE = Double.parseDouble(System.getProperty("easychat.inbound.rate", "20"));
+    public static final int INBOUND_BURST = Integer.getInteger("easychat.inbound.burst", 50);
+// ---------------- Сколько последних строк чата держит окно клиента (см. ChatLog). Старые уходят из памяти
+    public static final int CLIENT_SCROLLBACK = Integer.getInteger("easychat.client.scrollback", 10000);
+// ---------------- Общий пул буферов (см. BufferPool). Сколько свободных буферов держать в каждом классе размеров,
+//                  читать ли NIO в буферы вне кучи, искать ли утечки (дорого, только для отладки)
+    public static final int POOL_MAX_PER_CLASS = Integer.getInteger("easychat.pool.maxPerClass", 256);
+    public static final boolean POOL_DIRECT = Boolean.getBoolean("easychat.pool.direct");
+    public static final boolean POOL_LEAK_DETECTION = Boolean.getBoolean("easychat.pool.leakDetection");
+// ---------------- Блокирующий движок держит буфер чтения, пока идут данные, и отдаёт его в пул,
+//                  если клиент молчит дольше POOL_IDLE_MS (дальше ждёт данных без буфера)
+    public static final int POOL_IDLE_MS = Integer.getInteger("easychat.pool.idleMs", 100);
+// ---------------- Журнал в консоль (см. AsyncLog): не больше LOG_RATE строк в секунду, в очереди не больше LOG_QUEUE
+    public static final int LOG_RATE = Integer.getInteger("easychat.log.rate", 1000);
+    public static final int LOG_QUEUE = Integer.getInteger("easychat.log.queue", 8192);
+// ---------------- Порт, на котором сервер отдаёт метрики простым текстом (http://host:порт/metrics). 0 - не отдавать
+    public static final int METRICS_PORT = Integer.getInteger("easychat.metrics.port", 0);
+// ---------------- Комната, в которую сервер сажает каждого нового клиента (см. Rooms). Пустая строка - никуда,
+//                  клиент сам выбирает комнаты командой /join
+    public static final String DEFAULT_ROOM = System.getProperty("easychat.room.default", "общая");
+// ---------------- Журнал сообщений комнат (см. Journal): папка (пусто - журнал не ведём), размер сегмента,
+//                  сколько сегментов хранить на комнату, как часто сбрасывать на диск (мс, 0 - после каждой пачки),
+//                  сколько сообщений может ждать записи, сколько сообщений истории отдаём за один раз,
+//                  сколько комнат журнал ведёт и через сколько мс простоя закрывает файлы комнаты
+    public static final String JOURNAL_DIR = System.getProperty("easychat.journal.dir", "");
+    public static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger("easychat.journal.segmentBytes", 4 << 20);
+    public static final int JOURNAL_SEGMENTS = Integer.getInteger("easychat.journal.segments", 16);
+    public static final long JOURNAL_FSYNC_MS = Long.getLong("easychat.journal.fsyncMs", 10);
+    public static final int JOURNAL_QUEUE = Integer.getInteger("easychat.journal.queue", 65536);
+    public static final int JOURNAL_REPLAY_MAX = Integer.getInteger("easychat.journal.replayMax", 1000);
+    public static final int JOURNAL_ROOMS = Integer.getInteger("easychat.journal.rooms", 1024);
+    public static final long JOURNAL_IDLE_MS = Long.getLong("easychat.journal.idleMs", 60_000);
+// ---------------- Кластер серверов (см. Cluster): порт для связей с другими узлами (0 - сервер сам по себе),
+//                  имя узла, адреса остальных узлов через запятую (host:порт кластера), сколько последних
+//                  сообщений держать для досылки после обрыва связи и сколько кадров отправлять одной записью
+    public static final int CLUSTER_PORT = Integer.getInteger("easychat.cluster.port", 0);
+    public static final String CLUSTER_NODE = System.getProperty("easychat.cluster.node", "");
+    public static final String CLUSTER_PEERS = System.getProperty("easychat.cluster.peers", "");
+    public static final int CLUSTER_BACKLOG = Integer.getInteger("easychat.cluster.backlog", 65536);
+    public static final int CLUSTER_BATCH = Integer.getInteger("easychat.cluster.batch", 256);
 }
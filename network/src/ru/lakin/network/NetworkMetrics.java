@@ -0,0 +1,88 @@
+package ru.lakin.network;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счётчики всех соединений процесса: сколько открыто и закрыто, сколько принято (и как часто),
+// сколько байтов и сообщений пришло и ушло, сколько сообщений выкинули медленным клиентам, сколько было ошибок
+// и каких. Счётчики - LongAdder: их трогают все нити соединений сразу, а так они друг другу не мешают.
+// Пишут в них TCPConnection, транспорты и серверы, читает - кто угодно (см. ServerMetrics в serverChat).
+public final class NetworkMetrics {
+    private static final NetworkMetrics INSTANCE = new NetworkMetrics();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final RateMeter acceptRate = new RateMeter();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder compressedRaw = new LongAdder();    // Байтов было до сжатия
+    private final LongAdder compressedPacked = new LongAdder(); // ... и стало после
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder idleClosed = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final Map<String, LongAdder> exceptionsByType = new ConcurrentHashMap<>();
+
+    private NetworkMetrics () {}
+
+    public static NetworkMetrics get () { return INSTANCE; }
+
+    // --- ПИШЕМ
+    void connectionOpened () { opened.increment(); }
+    void connectionClosed () { closed.increment(); }
+    void read (long bytes) { bytesIn.add(bytes); }
+    void messageIn () { messagesIn.increment(); }
+    void written (int messages, long bytes) { messagesOut.add(messages); bytesOut.add(bytes); }
+    void droppedMessage () { dropped.increment(); }
+    void compressed (int raw, int packed) {
+        compressedFrames.increment();
+        compressedRaw.add(raw);
+        compressedPacked.add(packed);
+    }
+
+    void pinged () { pings.increment(); }
+    void idleClosed () { idleClosed.increment(); }
+
+    // Сервер принял соединение (зовут циклы приёма серверов)
+    public void accepted () {
+        accepted.increment();
+        acceptRate.mark();
+    }
+
+    public void exception (Throwable e) {
+        exceptions.increment();
+        // Счётчик своего типа заводим при первой такой ошибке, дальше - без выделений
+        exceptionsByType.computeIfAbsent(e.getClass().getSimpleName(), type -> new LongAdder()).increment();
+    }
+
+    // --- ЧИТАЕМ
+    public long getOpened () { return opened.sum(); }
+    public long getClosed () { return closed.sum(); }
+    public long getActive () { return opened.sum() - closed.sum(); }
+    public long getAccepted () { return accepted.sum(); }
+    public double getAcceptRate () { return acceptRate.getRate(10); } // В секунду, за последние 10 секунд
+    public long getBytesIn () { return bytesIn.sum(); }
+    public long getMessagesIn () { return messagesIn.sum(); }
+    public long getBytesOut () { return bytesOut.sum(); }
+    public long getMessagesOut () { return messagesOut.sum(); }
+    public long getDropped () { return dropped.sum(); }
+    // Сжатие: кадр, разосланный многим, сжимается (и считается здесь) один раз
+    public long getCompressedFrames () { return compressedFrames.sum(); }
+    public long getCompressedRawBytes () { return compressedRaw.sum(); }
+    public long getCompressedBytes () { return compressedPacked.sum(); }
+    public long getPings () { return pings.sum(); }
+    public long getIdleClosed () { return idleClosed.sum(); } // Порвано соединений: собеседник молчал
+    public long getExceptions () { return exceptions.sum(); }
+
+    public Map<String, Long> getExceptionsByType () {
+        Map<String, Long> copy = new TreeMap<>();
+        exceptionsByType.forEach( (type, count) -> copy.put(type, count.sum()) );
+        return copy;
+    }
+}
@@ -0,0 +1,102 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Цикл событий на одном селекторе. Одна нить обслуживает сразу много неблокирующих соединений (NioTransport):
+// селектор говорит, в каком канале есть что прочитать или куда снова можно писать, и нить по очереди их обходит.
+// Вместо тысяч нитей rxThread - по одной такой нити на ядро (см. NioServer).
+// Всё, что трогает селектор и ключи, делается только из нити цикла. Другие нити передают работу через execute().
+final class NioEventLoop implements Runnable, AutoCloseable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Работа от других нитей
+    private volatile boolean running = true;
+    // Общая на все соединения цикла пачка для собирающей записи (см. NioTransport.flush). Только из нити цикла
+    private final ByteBuffer[] gather = new ByteBuffer[NioTransport.MAX_GATHER];
+
+    NioEventLoop (String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector selector () { return selector; }
+    boolean inEventLoop () { return Thread.currentThread() == thread; }
+    ByteBuffer[] gather () { return gather; }
+
+    // Выполнить задачу в нити цикла. Если мы уже в ней - выполняем сразу.
+    void execute (Runnable task) {
+        if ( inEventLoop() ) task.run();
+        else executeLater(task);
+    }
+    // Поставить задачу в очередь цикла, даже если мы уже в его нити (выполнится на следующем обороте)
+    void executeLater (Runnable task) {
+        tasks.add(task);
+        selector.wakeup(); // Будим селектор, чтобы он не спал в select() с задачей в очереди
+    }
+
+    @Override
+    public void run () {
+        OutboundQueue.forbidWaiting(); // Ждать места в чужой очереди - значит остановить все соединения цикла
+        while ( running ) {
+            try {
+                selector.select();
+                runTasks();
+                for ( SelectionKey key : selector.selectedKeys() ) {
+                    NioTransport transport = (NioTransport) key.attachment();
+                    try {
+                        if ( key.isWritable() ) transport.onWritable();
+                        if ( key.isValid() && key.isReadable() ) transport.onReadable();
+                    } catch ( CancelledKeyException e ) {
+                        transport.closeQuietly(); // Соединение закрыли из другой нити прямо посреди обработки
+                    } catch ( RuntimeException e ) {
+                        // Упал слушатель этого соединения (onReceiveString, onReceiveFrame...). Цикл не роняем -
+                        // на нём висят и другие соединения; закрываем только это
+                        NetworkMetrics.get().exception(e);
+                        AsyncLog.error("Исключение NioEventLoop: " + transport.remoteAddress() + ": " + e, e);
+                        transport.closeQuietly();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch ( ClosedSelectorException e ) {
+                return; // Цикл закрыли
+            } catch ( IOException e ) {
+                // Сломался сам селектор - с этим ничего не поделать, но соединения сами узнают о закрытии
+                NetworkMetrics.get().exception(e);
+                AsyncLog.info("Исключение NioEventLoop: " + e);
+            }
+        }
+    }
+
+    private void runTasks () {
+        Runnable task;
+        while ( (task = tasks.poll()) != null ) {
+            try { task.run(); }
+            catch ( RuntimeException e ) { // Цикл не роняем
+                NetworkMetrics.get().exception(e);
+                AsyncLog.error("Исключение NioEventLoop: " + e, e);
+            }
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        running = false;
+        execute( () -> {
+            for ( SelectionKey key : selector.keys() ) ((NioTransport) key.attachment()).closeQuietly();
+        });
+        selector.wakeup();
+        try { thread.join(1000); }
+        catch ( InterruptedException e ) { Thread.currentThread().interrupt(); }
+        runTasks(); // Если цикл успел выйти раньше, чем взял последние задачи - доделываем их сами
+        selector.close();
+    }
+}
@@ -0,0 +1,95 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Predicate;
+
+// Неблокирующий сервер: принимает входящие соединения и раскидывает их по небольшому пулу NioEventLoop
+// (по умолчанию - по одному на ядро). Каждое принятое соединение оборачивается в обычный TCPConnection,
+// так что слушатель (например, ChatServer) получает те же самые события, что и при блокирующем движке,
+// только без отдельной нити на каждого клиента.
+// Допуск (admission): кого не пустили, того закрываем сразу после accept(), не заводя TCPConnection.
+public class NioServer implements AutoCloseable {
+    private static final long ACCEPT_BACKOFF_MS = 100; // Сколько ждать, когда кончились дескрипторы (EMFILE)
+
+    private final TCPConnectionListener eventListener;
+    private final Predicate<InetAddress> admission; // Пускать ли соединение с этого адреса. Зовёт нить приёма
+    private final Runnable released; // Пустили, а соединение не завелось: вернуть допуску занятое место
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private int next; // Кому из циклов отдать следующее соединение (по кругу)
+
+    public NioServer (TCPConnectionListener eventListener, int port, int loopCount) throws IOException {
+        this(eventListener, port, loopCount, address -> true, () -> {});
+    }
+
+    public NioServer (TCPConnectionListener eventListener, int port, int loopCount, Predicate<InetAddress> admission,
+                      Runnable released) throws IOException {
+        this.eventListener = eventListener;
+        this.admission = admission;
+        this.released = released;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        loops = new NioEventLoop[Math.max(1, loopCount)];
+        for ( int i = 0; i < loops.length; i++ ) loops[i] = new NioEventLoop("nio-loop-" + i);
+    }
+
+    // Цикл приёма соединений. Как и у ChatServer, принимаем в вызывающей нити, блокируясь в accept(),
+    // а вот читать и писать будут уже нити циклов. Неудачный accept() сервер не останавливает: ECONNABORTED -
+    // клиент ушёл раньше, чем мы его приняли, а EMFILE ("Too many open files") в шквал подключений
+    // пройдёт, как только кто-то отключится. Тогда чуть ждём, чтобы не крутиться впустую. Выходим, только
+    // когда канал закрыли (close)
+    public void run () throws IOException {
+        while ( serverChannel.isOpen() ) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch ( ClosedChannelException e ) {
+                break; // Закрыли сервер
+            } catch ( IOException e ) {
+                if ( !serverChannel.isOpen() ) break;
+                NetworkMetrics.get().exception(e);
+                AsyncLog.info("Не приняли соединение: " + e);
+                if ( String.valueOf(e.getMessage()).contains("Too many open files") ) pause(ACCEPT_BACKOFF_MS);
+                continue;
+            }
+            boolean admitted = false;
+            try {
+                if ( !admission.test(((InetSocketAddress) channel.getRemoteAddress()).getAddress()) ) {
+                    channel.close();
+                    continue;
+                }
+                admitted = true;
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                NioTransport transport = new NioTransport(channel, loop);
+                admitted = false; // Соединение заведено: место вернёт слушатель, когда оно отключится
+                NetworkMetrics.get().accepted();
+                new TCPConnection(eventListener, transport);
+            } catch ( IOException e ) {
+                NetworkMetrics.get().exception(e);
+                AsyncLog.info("Исключение TCPConnection: " + e);
+                if ( admitted ) released.run();
+                try { channel.close(); }
+                catch ( IOException ignored ) { /* Уже закрыт или закрыть нечего - принимаем дальше */ }
+            }
+        }
+    }
+
+    private static void pause (long millis) {
+        try { Thread.sleep(millis); }
+        catch ( InterruptedException e ) { Thread.currentThread().interrupt(); }
+    }
+
+    public int getPort () { return serverChannel.socket().getLocalPort(); }
+
+    @Override
+    public void close () throws IOException {
+        serverChannel.close();
+        for ( NioEventLoop loop : loops ) loop.close();
+    }
+}
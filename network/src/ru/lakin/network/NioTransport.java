@@ -0,0 +1,190 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Неблокирующий транспорт: SocketChannel на селекторе одного из NioEventLoop.
+// Своей нити у соединения нет - читает нить цикла, когда селектор скажет, что пришли байты.
+// Пишет тоже нить цикла: отправитель лишь кладёт данные в ограниченную очередь outbound и будит цикл,
+// а цикл пишет, сколько влезет в сокет. Не влезло - ждём, когда сокет снова будет готов к записи (OP_WRITE).
+// Пишет цикл пачками: до MAX_GATHER буферов одним собирающим (gathering) вызовом write(ByteBuffer[]),
+// то есть одним системным вызовом. Буферы - дубликаты общих кадров рассылки (BroadcastFrame), без копий.
+// Своих буферов у соединения нет: читаем в буфер, взятый из BufferPool на одно чтение, а пачку для записи
+// собираем в общем массиве цикла. Свой массив заводим, только если сокет забит и недописанное надо ждать.
+// Прямая отправка (write: sendString, sendFrames, куски openStream) тоже идёт через очередь, но её сообщения
+// очередь не выкидывает: нет места - чужая нить ждёт его (не дольше SLOW_CONSUMER_TIMEOUT_MS), а нить цикла
+// ждать не может, и соединение рвётся с SlowConsumerException. Молча не теряется ничего.
+final class NioTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 8192;
+    static final int MAX_GATHER = 64; // Сколько буферов отдаём сокету за один системный вызов
+    private static final BufferPool READ_POOL = NetworkEnv.POOL_DIRECT ? BufferPool.direct() : BufferPool.heap();
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final OutboundQueue<ByteBuffer> outbound = new OutboundQueue<>( // Ещё не начатые к записи данные
+            NetworkEnv.OUTBOUND_CAPACITY, NetworkEnv.SLOW_CONSUMER, NetworkEnv.SLOW_CONSUMER_TIMEOUT_MS);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); // Задача записи уже стоит в очереди цикла
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final String remoteAddress; // Запоминаем сразу: после закрытия канал адреса уже не скажет
+    private TCPConnection connection;
+    private SelectionKey key;     // Трогаем только из нити цикла
+    private boolean readPaused;   // Не читаем (setReadPaused). Только из нити цикла
+    // Недописанный хвост пачки, пока сокет забит. null - всё дописано. Только из нити цикла
+    private ByteBuffer[] stalled;
+    private final WriteStats stats = new WriteStats();
+
+    NioTransport (SocketChannel channel, NioEventLoop loop) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        channel.configureBlocking(false);
+        remoteAddress = channel.socket().getInetAddress() + ": " + channel.socket().getPort();
+    }
+
+    @Override
+    public void start (TCPConnection connection) {
+        this.connection = connection;
+        loop.execute( () -> {
+            try {
+                key = channel.register(loop.selector(), readOps(), this);
+                connection.fireConnectionReady();
+                flush(); // Вдруг кто-то успел написать, пока мы регистрировались
+            } catch ( IOException e ) {
+                connection.fireException(e);
+                closeQuietly();
+            }
+        });
+    }
+
+    // --- ЧИТАЕМ. Вызывается нитью цикла, когда в канале есть байты
+    void onReadable () {
+        PooledBuffer pooled = READ_POOL.acquire(READ_BUFFER_SIZE); // Только на это чтение
+        try {
+            ByteBuffer readBuffer = pooled.buffer();
+            int n = channel.read(readBuffer);
+            if ( n < 0 ) { closeQuietly(); return; } // Удалённая сторона закрыла соединение
+            readBuffer.flip();
+            connection.onBytesReceived(readBuffer); // Строки или кадры разберёт соединение
+        } catch ( IOException e ) {
+            // Канал закрыли из другой нити (например, по простою), а селектор успел сказать, что есть что читать -
+            // это не ошибка: ключ отменится на следующем обороте
+            if ( !closed.get() ) connection.fireException(e);
+            closeQuietly();
+        } finally {
+            pooled.release();
+        }
+    }
+
+    // --- ПИШЕМ. Здесь любая отправка неблокирующая: write - та же очередь, только без потерь
+    @Override
+    public void write (ByteBuffer[] data, int count) throws IOException {
+        for ( int i = 0; i < count; i++ ) enqueue(data[i], true, true);
+    }
+
+    @Override
+    public void enqueue (ByteBuffer data) throws IOException { enqueue(data, false, true); }
+
+    @Override
+    public void enqueueLossless (ByteBuffer data, boolean mayWait) throws IOException {
+        enqueue(data, true, mayWait);
+    }
+
+    private void enqueue (ByteBuffer data, boolean lossless, boolean mayWait) throws IOException {
+        if ( closed.get() ) throw new ClosedChannelException();
+        try {
+            // Ждать места нельзя ни в каком цикле: в своём - очередь разгребает он же, в чужом - встали бы
+            // все соединения того цикла (см. OutboundQueue.forbidWaiting)
+            boolean mayBlock = mayWait && OutboundQueue.mayWait();
+            if ( !(lossless ? outbound.put(data, mayBlock) : outbound.offer(data, mayBlock)) )
+                throw new SlowConsumerException("Клиент не успевает читать: в очереди " + outbound.size() + " сообщений");
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new SlowConsumerException("Прервали ожидание места в очереди");
+        }
+        // Будим цикл один раз на пачку сообщений, а не на каждое
+        if ( flushScheduled.compareAndSet(false, true) ) loop.execute(this::flush);
+    }
+
+    @Override
+    public int queuedCount () { return outbound.size(); }
+
+    @Override
+    public WriteStats stats () { return stats; }
+
+    // Нить цикла: сокет снова готов к записи - дописываем
+    void onWritable () { flush(); }
+
+    @Override
+    public void setReadPaused (boolean paused) {
+        loop.execute( () -> {
+            readPaused = paused;
+            if ( key == null || !key.isValid() ) return;
+            key.interestOps(readOps() | (stalled != null ? SelectionKey.OP_WRITE : 0));
+        });
+    }
+
+    private int readOps () { return readPaused ? 0 : SelectionKey.OP_READ; }
+
+    // Нить цикла: пишем из очереди пачками, пока сокет берёт
+    private void flush () {
+        flushScheduled.set(false);
+        if ( key == null || !key.isValid() ) return;
+        ByteBuffer[] batch = loop.gather(); // Пачка batch[start..end)
+        int start = 0, end = 0;
+        if ( stalled != null ) { // Сначала то, что не влезло в прошлый раз
+            end = stalled.length;
+            System.arraycopy(stalled, 0, batch, 0, end);
+            stalled = null;
+        }
+        try {
+            while ( true ) {
+                // Добираем пачку из очереди до MAX_GATHER буферов
+                ByteBuffer next;
+                while ( end < MAX_GATHER && (next = outbound.poll()) != null ) batch[end++] = next;
+                if ( start == end ) break; // Писать нечего
+                long written = channel.write(batch, start, end - start);
+                int done = start;
+                while ( start < end && !batch[start].hasRemaining() ) batch[start++] = null;
+                stats.record(start - done, written); // Сколько сообщений дописали этим вызовом
+                if ( start < end ) { // Сокет забит - недописанное уносим к себе и ждём OP_WRITE
+                    stalled = Arrays.copyOfRange(batch, start, end);
+                    Arrays.fill(batch, start, end, null);
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                start = end = 0;
+            }
+            key.interestOps(readOps()); // Всё дописали - запись больше не ждём
+        } catch ( IOException e ) {
+            // Пачку чистим до слушателя: он может писать в другие соединения этого же цикла
+            Arrays.fill(batch, null);
+            if ( !closed.get() ) connection.fireException(e); // Закрыли посреди записи - тоже не ошибка
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        if ( !closed.compareAndSet(false, true) ) return; // Закрываем ровно один раз
+        outbound.clear();
+        try {
+            channel.close(); // Ключ селектора отменится сам
+        } finally {
+            // О разрыве сообщаем из нити цикла и не изнутри текущего вызова:
+            // close() может прийти из самого слушателя, посреди его рассылки
+            loop.executeLater(connection::fireDisconnect);
+        }
+    }
+
+    void closeQuietly () {
+        try { close(); }
+        catch ( IOException e ) { connection.fireException(e); }
+    }
+
+    @Override
+    public String remoteAddress () { return remoteAddress; }
+}
@@ -0,0 +1,145 @@
+package ru.lakin.network;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ограниченная очередь исходящих сообщений одного соединения.
+// Отправители (рассылка сервера) кладут сообщения и сразу уходят, а забирает их писатель этого соединения:
+// своя нить txThread у SocketTransport или нить цикла у NioTransport. Так медленный клиент копит очередь у себя,
+// а не держит рассылку всем остальным. Что делать при переполнении - решает SlowConsumerPolicy.
+// Замок - ReentrantLock, чтобы ждущие виртуальные нити не прибивали нити-носители.
+//
+// Не всё можно выкидывать. Рассылку (offer) - можно: клиент пропустит строку чата. А прямую отправку
+// и куски большого сообщения (put) - нельзя: пропавший кусок молча испортит файл. Такие сообщения лежат
+// в очереди в обёртке Lossless, DROP_OLDEST их обходит и выкидывает самое старое из остальных.
+// Выкидывать нечего - клиент безнадёжно медленный, как при DISCONNECT.
+final class OutboundQueue<T> {
+    private final ArrayDeque<Object> items = new ArrayDeque<>(); // T или Lossless
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final long blockTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long dropped; // Сколько сообщений выкинули по DROP_OLDEST
+    // Нити, которым ждать места нельзя ни в чьей очереди: на каждой висит много чужих соединений (нити циклов NIO).
+    // Ждёт такая нить одного медленного получателя - стоят все её соединения, и рассылка опять идёт
+    // со скоростью самого медленного. Поэтому отсюда - только без ожидания, а нет места - рвём получателя
+    private static final ThreadLocal<Boolean> NO_WAIT = ThreadLocal.withInitial( () -> false );
+
+    OutboundQueue (int capacity, SlowConsumerPolicy policy, long blockTimeoutMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    private record Lossless (Object item) {}
+
+    // Текущей нити ждать места нельзя (зовёт сама нить при старте)
+    static void forbidWaiting () { NO_WAIT.set(true); }
+
+    // Можно ли текущей нити ждать места в очереди (mayBlock для offer и put)
+    static boolean mayWait () { return !NO_WAIT.get(); }
+
+    // Кладём сообщение. false - клиент безнадёжно медленный, соединение надо рвать.
+    // mayBlock = false запрещает ждать по политике BLOCK (например, в нити цикла, которая сама же и пишет).
+    boolean offer (T item, boolean mayBlock) throws InterruptedException {
+        lock.lock();
+        try {
+            if ( items.size() >= capacity ) {
+                switch ( policy ) {
+                    case DROP_OLDEST -> { if ( !dropOldest() ) return false; }
+                    case DISCONNECT -> { return false; }
+                    case BLOCK -> { if ( !awaitSpace(mayBlock) ) return false; }
+                }
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Кладём сообщение, которое терять нельзя. Места нет - ждём его при любой политике (если mayBlock),
+    // но не дольше таймаута. false - не дождались или ждать нельзя: соединение надо рвать
+    boolean put (T item, boolean mayBlock) throws InterruptedException {
+        lock.lock();
+        try {
+            if ( items.size() >= capacity && !awaitSpace(mayBlock) ) return false;
+            items.addLast(new Lossless(item));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitSpace (boolean mayBlock) throws InterruptedException {
+        if ( !mayBlock ) return false;
+        long nanos = blockTimeoutNanos;
+        while ( items.size() >= capacity ) {
+            if ( nanos <= 0 ) return false;
+            nanos = notFull.awaitNanos(nanos);
+        }
+        return true;
+    }
+
+    // Выкидываем самое старое сообщение, кроме тех, что терять нельзя. false - выкинуть нечего
+    private boolean dropOldest () {
+        for ( Iterator<Object> it = items.iterator(); it.hasNext(); ) {
+            if ( it.next() instanceof Lossless ) continue;
+            it.remove();
+            dropped++;
+            NetworkMetrics.get().droppedMessage();
+            return true;
+        }
+        return false;
+    }
+
+    // Забираем сообщение, если очередь пуста - ждём
+    T take () throws InterruptedException {
+        lock.lock();
+        try {
+            while ( items.isEmpty() ) notEmpty.await();
+            return pollLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Забираем сообщение, если оно есть. Иначе null
+    T poll () {
+        lock.lock();
+        try { return items.isEmpty() ? null : pollLocked(); }
+        finally { lock.unlock(); }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T pollLocked () {
+        Object item = items.pollFirst();
+        notFull.signal();
+        return (T) (item instanceof Lossless lossless ? lossless.item() : item);
+    }
+
+    void clear () {
+        lock.lock();
+        try { items.clear(); notFull.signalAll(); }
+        finally { lock.unlock(); }
+    }
+
+    int size () {
+        lock.lock();
+        try { return items.size(); }
+        finally { lock.unlock(); }
+    }
+
+    long dropped () {
+        lock.lock();
+        try { return dropped; }
+        finally { lock.unlock(); }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.lakin.network;
+
+import java.nio.ByteBuffer;
+
+// Буфер, взятый из BufferPool. Пока он на руках - пользуемся buffer(), закончили - release().
+// После release() буфер трогать нельзя: его уже может писать другое соединение.
+// Вернуть дважды - ошибка, ловим сразу. Ручка на каждую выдачу своя (в пуле лежат сами ByteBuffer):
+// общая ручка после повторной выдачи снова стала бы "взятой", и запоздалый release() прежнего хозяина
+// вернул бы в пул чужой живой буфер.
+public final class PooledBuffer {
+    private final BufferPool pool;
+    final int sizeClass;
+    final ByteBuffer buffer;
+    private boolean taken = true;
+    BufferPool.LeakRef leak; // Слежка за утечкой, только в отладке
+
+    PooledBuffer (BufferPool pool, int sizeClass, ByteBuffer buffer, int size) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+        buffer.clear().limit(size);
+    }
+
+    public ByteBuffer buffer () {
+        if ( !taken ) throw new IllegalStateException("Буфер уже вернули в пул");
+        return buffer;
+    }
+
+    public void release () {
+        if ( !taken ) throw new IllegalStateException("Буфер уже вернули в пул");
+        taken = false;
+        pool.release(this);
+    }
+}
@@ -0,0 +1,36 @@
+package ru.lakin.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Сколько событий в секунду (например, принятых соединений) за последние секунды.
+// Кольцо счётчиков по секундам: событие увеличивает счётчик своей секунды, ничего не выделяя.
+// Новая секунда затирает счётчик, который был её номером SECONDS секунд назад. На стыке секунд
+// пара событий может потеряться - для метрики это не важно.
+public final class RateMeter {
+    private static final int SECONDS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray stamps = new AtomicLongArray(SECONDS); // Чья секунда сейчас в ячейке
+
+    public void mark () {
+        long second = now();
+        int i = (int) (second % SECONDS);
+        long stamp = stamps.get(i);
+        if ( stamp != second && stamps.compareAndSet(i, stamp, second) ) counts.set(i, 0);
+        counts.incrementAndGet(i);
+    }
+
+    // Среднее число событий в секунду за последние seconds полных секунд (текущая, недосчитанная, не в счёт)
+    public double getRate (int seconds) {
+        seconds = Math.max(1, Math.min(seconds, SECONDS - 1));
+        long now = now();
+        long sum = 0;
+        for ( long s = now - seconds; s < now; s++ ) {
+            int i = (int) (s % SECONDS);
+            if ( stamps.get(i) == s ) sum += counts.get(i);
+        }
+        return (double) sum / seconds;
+    }
+
+    private static long now () { return System.nanoTime() / 1_000_000_000L; }
+}
@@ -0,0 +1,9 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+
+// Клиент не успевает забирать сообщения: очередь исходящих полна, и политика велит его отключить.
+// Приходит слушателю в onException, после чего соединение рвётся.
+public class SlowConsumerException extends IOException {
+    public SlowConsumerException (String message) { super(message); }
+}
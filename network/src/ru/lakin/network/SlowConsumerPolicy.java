@@ -0,0 +1,9 @@
+package ru.lakin.network;
+
+// Что делать, когда клиент читает медленнее, чем мы ему пишем, и его очередь исходящих переполнилась.
+// Задаётся при запуске: -Deasychat.slowConsumer=DROP_OLDEST|DISCONNECT|BLOCK
+public enum SlowConsumerPolicy {
+    DROP_OLDEST, // Выкидываем самое старое неотправленное сообщение. Клиент что-то пропустит, зато остальные не ждут
+    DISCONNECT,  // Рвём соединение с медленным клиентом
+    BLOCK        // Отправитель ждёт места в очереди, но не дольше таймаута. Не дождался - рвём соединение
+}
@@ -0,0 +1,208 @@
+package ru.lakin.network;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Классический блокирующий транспорт: на каждое соединение - своя нить rxThread, висящая в чтении сокета.
+// Просто и надёжно, но каждое соединение стоит целую нить со стеком. Если нить виртуальная (см. ThreadFactories),
+// то стоит она копейки: ждущая в чтении виртуальная нить отпускает нить-носитель.
+// Читаем сырые байты и отдаём их TCPConnection: строки или кадры из них разбирает уже он (см. onBytesReceived).
+// Буферы чтения и записи берём из BufferPool. Писатель - на одну запись. Читатель - пока идут данные:
+// клиент молчит дольше NetworkEnv.POOL_IDLE_MS - буфер возвращаем и ждём первый байт без него.
+class SocketTransport implements Transport {
+    private static final int SCRATCH_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_DRAIN = 64; // Сколько сообщений очереди писатель склеивает в одну запись
+
+    private final Socket socket;      // Сокет данного TCP-соединения
+    private final InputStream in;     // Поток ввода сокета
+    private final OutputStream out;   // Поток вывода. Пишем уже закодированные байты (см. BroadcastFrame)
+    private final ThreadFactory threadFactory; // Откуда брать нить rxThread: обычную или виртуальную
+    private Thread rxThread;          // Нить, которая постоянно читает поток ввода
+    // Очередь исходящих для рассылок и её писатель txThread. Нить писателя заводим, только когда в очередь
+    // впервые что-то положили: клиенту, который пишет сам через sendString, она не нужна.
+    // В очереди - дубликаты общих буферов рассылки: байты одни на всех получателей
+    private final OutboundQueue<ByteBuffer> outbound = new OutboundQueue<>(
+            NetworkEnv.OUTBOUND_CAPACITY, NetworkEnv.SLOW_CONSUMER, NetworkEnv.SLOW_CONSUMER_TIMEOUT_MS);
+    private final AtomicBoolean txStarted = new AtomicBoolean();
+    private volatile Thread txThread;
+    private TCPConnection connection;
+    private final WriteStats stats = new WriteStats();
+    // Не читаем (setReadPaused): rxThread ждёт перед следующим чтением
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+    private boolean readPaused; // Под pauseLock
+
+    SocketTransport (Socket socket, ThreadFactory threadFactory) throws IOException {
+        this.socket = socket;
+        this.threadFactory = threadFactory;
+        // На сокете читаем и пишем байты, а кодировки и протоколы - забота TCPConnection
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    @Override
+    public void start (TCPConnection connection) {
+        this.connection = connection;
+        // --- СЛУШАЕМ И ПРИНИМАЕМ СООБЩЕНИЯ
+        rxThread = threadFactory.newThread( () -> {
+            PooledBuffer pooled = null; // Буфер чтения, пока идут данные
+            try {
+                connection.fireConnectionReady();
+                boolean eof = false;
+                while ( !eof && !Thread.currentThread().isInterrupted() ) { // Пока нить не прервана
+                    awaitResumed();
+                    int carry = 0; // Сколько байтов уже лежит в начале буфера
+                    if ( pooled == null ) {
+                        // Тишина: первый байт ждём без буфера и без таймаута
+                        socket.setSoTimeout(0);
+                        int first = in.read();
+                        if ( first < 0 ) break; // Конец потока - удалённая сторона закрыла соединение
+                        pooled = BufferPool.heap().acquire(READ_BUFFER_SIZE);
+                        pooled.buffer().array()[0] = (byte) first;
+                        carry = 1;
+                        socket.setSoTimeout(NetworkEnv.POOL_IDLE_MS);
+                    }
+                    ByteBuffer buffer = pooled.buffer();
+                    boolean idle = false;
+                    int n;
+                    try {
+                        n = in.read(buffer.array(), carry, READ_BUFFER_SIZE - carry);
+                    } catch ( SocketTimeoutException e ) {
+                        n = 0;
+                        idle = true; // Клиент замолчал - буфер больше не держим
+                    }
+                    if ( n < 0 ) { n = 0; eof = true; }
+                    buffer.limit(carry + n).position(0);
+                    if ( buffer.hasRemaining() ) connection.onBytesReceived(buffer);
+                    if ( idle || eof ) { pooled.release(); pooled = null; }
+                }
+            } catch ( IOException e ) {
+                // Коль не сложилось, пусть разбирается eventListener. Но если сокет закрыли по простою,
+                // "Socket closed" - не вторая ошибка: про простой слушатель узнает из fireDisconnect
+                if ( !connection.isIdleEvicted() ) connection.fireException(e);
+            } catch ( InterruptedException e ) {
+                // Соединение закрыли, пока мы не читали
+            } finally {
+                if ( pooled != null ) pooled.release();
+                connection.fireDisconnect(); // Оповещаем eventListener о разрыве соединения
+            }
+        });
+        rxThread.start(); // Запустили нить, слушающую входящее соединение
+    }
+
+    // Вызывается под замком TCPConnection. Буферы обычно read-only (общие кадры рассылки), массивов наружу
+    // не отдают, поэтому копируем их подряд в свой массив и пишем в сокет, когда он заполнится.
+    // Пачка сообщений до 8 КБ уходит одним системным вызовом
+    @Override
+    public void write (ByteBuffer[] data, int count) throws IOException {
+        PooledBuffer pooled = BufferPool.heap().acquire(SCRATCH_SIZE); // Только на эту запись
+        try {
+            byte[] scratch = pooled.buffer().array();
+            int filled = 0;
+            long total = 0;
+            for ( int i = 0; i < count; i++ ) {
+                ByteBuffer buffer = data[i];
+                total += buffer.remaining();
+                while ( buffer.hasRemaining() ) {
+                    if ( filled == SCRATCH_SIZE ) { out.write(scratch, 0, filled); filled = 0; }
+                    int len = Math.min(SCRATCH_SIZE - filled, buffer.remaining());
+                    buffer.get(scratch, filled, len);
+                    filled += len;
+                }
+            }
+            if ( filled > 0 ) out.write(scratch, 0, filled);
+            stats.record(count, total);
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Override
+    public void enqueue (ByteBuffer data) throws IOException { enqueue(data, false, true); }
+
+    @Override
+    public void enqueueLossless (ByteBuffer data, boolean mayWait) throws IOException {
+        enqueue(data, true, mayWait);
+    }
+
+    private void enqueue (ByteBuffer data, boolean lossless, boolean mayWait) throws IOException {
+        try {
+            // Из нити цикла NIO (например, рассылка из кластера) не ждём
+            boolean mayBlock = mayWait && OutboundQueue.mayWait();
+            if ( !(lossless ? outbound.put(data, mayBlock) : outbound.offer(data, mayBlock)) )
+                throw new SlowConsumerException("Клиент не успевает читать: в очереди " + outbound.size() + " сообщений");
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new SlowConsumerException("Прервали ожидание места в очереди");
+        }
+        if ( txStarted.compareAndSet(false, true) ) {
+            txThread = threadFactory.newThread(this::drain);
+            txThread.start();
+        }
+    }
+
+    // Писатель: забирает сообщения из очереди и пишет в сокет. Медленный сокет тормозит только эту нить.
+    // Если, пока писали, в очереди накопилось ещё - забираем всё разом (до MAX_DRAIN) и пишем одной пачкой:
+    // под нагрузкой сообщения склеиваются сами, а в тишине каждое уходит сразу, без задержки
+    private void drain () {
+        ByteBuffer[] batch = new ByteBuffer[MAX_DRAIN];
+        try {
+            while ( !Thread.currentThread().isInterrupted() && !socket.isClosed() ) {
+                int n = 0;
+                batch[n++] = outbound.take();
+                ByteBuffer next;
+                while ( n < MAX_DRAIN && (next = outbound.poll()) != null ) batch[n++] = next;
+                connection.writeNow(batch, n); // Ошибку записи writeNow разберёт сам и порвёт соединение
+                Arrays.fill(batch, 0, n, null);
+            }
+        } catch ( InterruptedException e ) {
+            // Соединение закрыли - писатель больше не нужен
+        }
+    }
+
+    @Override
+    public void setReadPaused (boolean paused) {
+        pauseLock.lock();
+        try {
+            readPaused = paused;
+            if ( !paused ) resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    // Нить rxThread: ждём, пока чтение на паузе. Прервут (close) - выходим
+    private void awaitResumed () throws InterruptedException {
+        pauseLock.lock();
+        try { while ( readPaused ) resumed.await(); }
+        finally { pauseLock.unlock(); }
+    }
+
+    @Override
+    public int queuedCount () { return outbound.size(); }
+
+    @Override
+    public WriteStats stats () { return stats; }
+
+    @Override
+    public void close () throws IOException {
+        if ( rxThread != null ) rxThread.interrupt();
+        Thread tx = txThread;
+        if ( tx != null ) tx.interrupt();
+        outbound.clear();
+        socket.close();
+    }
+
+    @Override
+    public String remoteAddress () {
+        return socket.getInetAddress() + ": " + socket.getPort();
+    }
+}
@@ -1,26 +1,79 @@
 package ru.lakin.network;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 // Класс TCPConnection - TCP-соединение с некоторым слушателем событий по некоторому сокету
 // Нитебезопасный метод. Обращаться можно из любых нитей. То есть, методы надо синхронизировать.
+// Синхронизируем через ReentrantLock, а не synchronized: виртуальная нить, уснувшая в записи в сокет
+// внутри synchronized, намертво занимает (pin) нить-носитель, а под ReentrantLock - отпускает её.
 public class TCPConnection {
+    // Фабрика нитей rxThread по умолчанию - обычные или виртуальные, по NetworkEnv.THREADS
+    private static final ThreadFactory DEFAULT_RX_THREADS = ThreadFactories.of("rxThread-");
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final AtomicLong ids = new AtomicLong(); // Счётчик номеров соединений в этом процессе
+    private static final BroadcastFrame PING = BroadcastFrame.of(FrameType.PING, 0, "");
+    private static final BroadcastFrame PONG = BroadcastFrame.of(FrameType.PONG, 0, "");
 
-    private final Socket socket;    // Сокет данного TCP-соединения
-    private final Thread rxThread;  // На каждом клиенте - нить данного TCP-соединения, которая будет постоянно
-                                    // читать поток ввода ( слушать входящие сообщения ). И, если строчка прилетела,
-                                    // будет генерить событие ( событийная система )
+    private final long id = ids.incrementAndGet(); // Номер соединения: им подписываются двоичные кадры рассылки
+
+    // Транспорт, на котором едут байты: блокирующий сокет со своей нитью rxThread (SocketTransport)
+    // или неблокирующий канал на общем селекторе (NioTransport). Снаружи разницы не видно.
+    private final Transport transport;
 
     // Если серверу пришло сообщение, он его должен разослать клиентам.
     // Если клиенту пришло сообщение, он его должен вывести в своё окошко.
     // Дабы объекты классов "сервер" и "клиент", слушая входной поток, могли пользоваться одним и тем же
     // классом TCPConnection, применим написанный нами интерфейс TCPConnectionListener
     private final TCPConnectionListener eventListener;
-    private final BufferedReader in;  // Буферизированный поток ввода, работающий со строками
-    private final BufferedWriter out; // Буферизированный поток вывода, работающий со строками
+    private final ReentrantLock lock = new ReentrantLock(); // Замок на отправку и на пачку pending
+
+    // Склейка исходящих строк (см. setBatching). Всё - под замком lock
+    private int batchBytes = NetworkEnv.BATCH_BYTES;   // Сбрасываем, когда накопилось столько байт. 0 - склейки нет
+    private long batchMicros = NetworkEnv.BATCH_MICROS; // ... или когда первая строка пачки ждёт столько мкс
+    private ByteBuffer[] pending;  // Накопленная пачка: по буферу на строку. Заводим при первой склейке
+    private int pendingCount;
+    private int pendingBytes;
+    private long batchGeneration; // Номер текущей пачки: будильник сбрасывает только ту пачку, к которой заведён
+
+    // Протокол соединения: текстовый (строки с "\r\n") или двоичный (кадры FrameCodec).
+    // Начинаем всегда с текстового, на двоичный переходим по рукопожатию HELLO / HELLO_OK.
+    private volatile boolean outboundBinary; // Пишем кадрами. Меняем только под записью modeLock
+    private boolean inboundBinary;           // Читаем кадрами. Только из нити чтения
+    // Рассылка берёт замок на чтение (все вместе, не мешая друг другу), переключение протокола - на запись:
+    // так ни один текстовый кадр не проскочит в очередь после ответа HELLO_OK
+    private final ReentrantReadWriteLock modeLock = new ReentrantReadWriteLock();
+    private final CountDownLatch helloAck = new CountDownLatch(1); // Сервер согласился на двоичный протокол
+    // Сжатие (FrameCompressor): пишем сжатые кадры, когда собеседник сказал, что умеет их разжимать
+    private volatile boolean outboundCompressed;
+    private volatile boolean compressionRequested; // Мы попросили - пришедший OPTIONS будет ответом
+    private FrameInflater inflater; // Заводим при первом сжатом кадре. Только из нити чтения
+    private final AtomicLong streamIds = new AtomicLong(); // Номера наших исходящих потоков (openStream)
+    private volatile boolean closed; // Соединение разорвано: писать в поток больше некуда
+    // Пульс и простой (см. startHeartbeat). Проверяет нить колеса таймеров, один таймер на соединение
+    private volatile long lastRead = System.nanoTime(); // Когда собеседник что-то прислал. Пишет нить чтения
+    private volatile boolean heartbeatKnown;            // Собеседник хоть раз прислал PING или PONG - умеет пульс
+    private volatile TimerWheel.Timeout heartbeat;
+    private long pingNanos, idleNanos, textIdleNanos;
+    private long pingedAt; // Когда послали последний PING. Только нить колеса
+    // Почему порвали по простою. Колесо лишь закрывает транспорт, а слушателю об этом скажет fireDisconnect
+    private volatile SocketTimeoutException idleFailure;
+    private final LineDecoder lineDecoder = new LineDecoder(MAX_LINE_LENGTH);
+    private FrameDecoder frameDecoder; // Заводим при переходе на двоичный протокол
+    // Сколько пришло. Пишет только нить чтения, читать можно откуда угодно (для метрик)
+    private volatile long bytesIn;
+    private volatile long messagesIn;
 
 // ------- КОНСТРУКТОРЫ ---------------------
     // --- Конструктор 2. Создаёт сокет (соединение) по ip-адресу и номеру порта
@@ -30,74 +83,439 @@ public class TCPConnection {
     // --- Конструктор 1. Принимает готовый сокет, созданный снаружи.
     // На входе - готовый объект "сокет", интерфейс слушателя событий.
     // Класс - TCP-соединение по этому сокету с этим интерфейсом.
+    // Соединение обслуживает своя нить rxThread (см. SocketTransport), взятая из фабрики по умолчанию
+    // (обычная или виртуальная - по NetworkEnv.THREADS)
     public TCPConnection (TCPConnectionListener eventListener, Socket socket) throws IOException {
+        this(eventListener, socket, DEFAULT_RX_THREADS);
+    }
+    // --- Конструктор 1а. То же, но нить rxThread берём из заданной фабрики
+    public TCPConnection (TCPConnectionListener eventListener, Socket socket, ThreadFactory threadFactory)
+            throws IOException {
+        this(eventListener, new SocketTransport(socket, threadFactory));
+    }
+    // --- Конструктор 0. Соединение поверх готового транспорта (например, NioTransport от NioServer)
+    TCPConnection (TCPConnectionListener eventListener, Transport transport) {
         this.eventListener = eventListener;
-        this.socket = socket;
-        // На сокете читаем входящий и пишем исходящий потоки - строки в заданной кодировке
-        // Берем простой поток ввода|вывода.
-        // На его основе разбираем кодировку [Input|Output]Stream[Reader|Writer]
-        // Результат оборачиваем в буферизацию
-        in = new BufferedReader( new InputStreamReader( socket.getInputStream(),
-                                 Charset.forName("UTF-8")));
-//                                 Charset.forName(String.valueOf(StandardCharsets.UTF_8)))); //правка!!!
-        out = new BufferedWriter( new OutputStreamWriter( socket.getOutputStream(),
-                                 Charset.forName("UTF-8")));
-//                                 Charset.forName(String.valueOf(StandardCharsets.UTF_8)))); //правка!!!
-
-        // --- СЛУШАЕМ И ПРИНИМАЕМ СООБЩЕНИЕ
-        // Создаём нить, которая будет слушать вход TCP-соединение
-        // передать ему экземпляр класса, кторый реализует интерфейс Runnable
-        // Создаём через анонимный класс: прямо здесь описываем класс Thread(),
-        //                                который реализует интерфейс Runnable(): Thread( new Runnable() {}); ,
-        //                                оверрайдим у него метод run
-        //                                и создаём его экземпляр rxThread = new Thread ...
-        rxThread = new Thread ( new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // после запуска нити, слушаем вход сокета
-                    // Тут this относилось бы к анонимному классу, который реализует интерфейс, а зачем нам такой сюр?
-                    // Нам нужен экземпляр обрамляющего класса TCPConnection - собственно, соединение. Поэтому вот так:
-                    eventListener.onConnectionReady(TCPConnection.this);
-                    while ( !rxThread.isInterrupted() ) { // Пока нить не прервана, стандартный механизм Java
-                        // String msg = in.readLine();
-                        // передаём туда объект нашего соединения и саму строчку
-                        // eventListener.onReceiveString(TCPConnection.this, msg);
-                        eventListener.onReceiveString(TCPConnection.this, in.readLine());
-                    }
-                } catch ( IOException e) {
-                    eventListener.onException(TCPConnection.this, e); // Коль не сложилось, пусть разбирается eventListener
-                } finally {
-                    eventListener.onDisconnect(TCPConnection.this); // Оповещаем eventListener о разрыве соединения
+        this.transport = transport;
+        NetworkMetrics.get().connectionOpened();
+        transport.start(this); // Транспорт начинает слушать вход и генерить события
+    }
 
+    // --- СОБЫТИЯ ТРАНСПОРТА. Транспорт сообщает о них из своей нити, мы передаём их слушателю
+    void fireConnectionReady () { eventListener.onConnectionReady(this); }
+    void fireDisconnect () {
+        // Зовёт нить чтения, как и onBytesReceived, так что разборщики трогать можно: недописанное - в пул
+        lineDecoder.release();
+        if ( frameDecoder != null ) frameDecoder.release();
+        if ( inflater != null ) inflater.release();
+        closed = true;
+        TimerWheel.Timeout heartbeat = this.heartbeat;
+        if ( heartbeat != null ) heartbeat.cancel();
+        NetworkMetrics.get().connectionClosed();
+        SocketTimeoutException idle = idleFailure;
+        if ( idle != null ) fireException(idle); // Порвали по простою: причину - перед разрывом
+        eventListener.onDisconnect(this);
+    }
+    void fireException (Exception e) {
+        NetworkMetrics.get().exception(e);
+        eventListener.onException(this, e);
+    }
+
+    // --- ПРИНИМАЕМ БАЙТЫ. Транспорт отдаёт всё, что прочитал; разбираем строки или кадры и отдаём слушателю.
+    // Вызывается только из нити чтения соединения. Буфер после вызова полностью вычитан.
+    void onBytesReceived ( ByteBuffer buffer ) throws IOException {
+        NetworkMetrics metrics = NetworkMetrics.get();
+        bytesIn += buffer.remaining();
+        lastRead = System.nanoTime();
+        metrics.read(buffer.remaining());
+        while ( buffer.hasRemaining() ) {
+            if ( inboundBinary ) {
+                Frame frame = frameDecoder.next(buffer);
+                if ( frame == null ) return; // Кадр пришёл не целиком - ждём следующего куска
+                if ( frame.type() == FrameType.DEFLATE ) { // Сжатый - разжимаем и разбираем как обычный
+                    if ( inflater == null ) inflater = new FrameInflater();
+                    frame = inflater.inflate(frame);
+                }
+                if ( frame.type() == null ) continue; // Неизвестный тип пропускаем
+                if ( frame.type() == FrameType.OPTIONS ) { onOptions(frame.payloadAsString()); continue; }
+                if ( frame.type() == FrameType.PING || frame.type() == FrameType.PONG ) {
+                    heartbeatKnown = true;
+                    if ( frame.type() == FrameType.PING ) enqueueFrame(PONG);
+                    continue;
                 }
+                messagesIn++;
+                metrics.messageIn();
+                eventListener.onReceiveFrame(this, frame);
+            } else {
+                String line = lineDecoder.next(buffer);
+                if ( line == null ) return; // Строка пришла не целиком - ждём следующего куска
+                if ( FrameCodec.HELLO.equals(line) ) acceptBinary();    // Мы - сервер, клиент просит двоичный
+                else if ( FrameCodec.HELLO_OK.equals(line) ) switchToBinary(); // Мы - клиент, сервер согласился
+                else {
+                    messagesIn++;
+                    metrics.messageIn();
+                    eventListener.onReceiveString(this, line);
+                }
+            }
+        }
+    }
+
+    // Сервер: отвечаем HELLO_OK последней текстовой строкой и дальше говорим кадрами.
+    // Ответ идёт через очередь исходящих, следом за уже стоящими там текстовыми строками
+    private void acceptBinary () throws IOException {
+        modeLock.writeLock().lock();
+        try {
+            transport.enqueue(BroadcastFrame.ofLine(FrameCodec.HELLO_OK, false).slice());
+            outboundBinary = true;
+        } finally {
+            modeLock.writeLock().unlock();
+        }
+        inboundBinary = true;
+        frameDecoder = new FrameDecoder(FrameCodec.MAX_FRAME_LENGTH);
+    }
+
+    // Клиент: всё, что сервер пришлёт после HELLO_OK, - кадры; и сами пишем кадрами
+    private void switchToBinary () {
+        inboundBinary = true;
+        frameDecoder = new FrameDecoder(FrameCodec.MAX_FRAME_LENGTH);
+        modeLock.writeLock().lock();
+        try { outboundBinary = true; }
+        finally { modeLock.writeLock().unlock(); }
+        helloAck.countDown();
+    }
+
+    // --- ПРОСИМ СЕРВЕР ПЕРЕЙТИ НА ДВОИЧНЫЙ ПРОТОКОЛ (вызывает клиент сразу после подключения).
+    // Ждём ответа не дольше timeoutMillis. Старый сервер не ответит - остаёмся на текстовом, вернём false.
+    // Пока ждём, sendString других нитей ждёт вместе с нами: ни одна строка не уйдёт не тем протоколом.
+    public boolean requestBinary ( long timeoutMillis ) {
+        lock.lock();
+        try {
+            if ( !outboundBinary ) {
+                flushLocked();
+                writeNow(new ByteBuffer[] { BroadcastFrame.ofLine(FrameCodec.HELLO, false).slice() }, 1);
             }
-        });
-        rxThread.start(); // Запустили нить, слушающую входящее соединение
+            return helloAck.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    // --- ПРОСИМ СЖАТИЕ (клиент, после requestBinary). Не ждём: пока сервер не ответил, пишем как есть,
+    // а разжимать его кадры готовы сразу. Старый сервер не ответит - так и останемся без сжатия.
+    // false - сжатие выключено у нас (-Deasychat.compression=none) или собеседник говорит строками
+    public boolean requestCompression () {
+        if ( !outboundBinary || !FrameCompressor.isEnabled() ) return false;
+        compressionRequested = true;
+        sendEncoded(FrameCodec.encode(FrameType.OPTIONS, 0, FrameCompressor.NAME));
+        return true;
+    }
+
+    // Пришёл OPTIONS. Мы просили - это ответ; нет - просят нас (мы сервер): соглашаемся, если умеем
+    private void onOptions ( String offer ) {
+        boolean supported = FrameCompressor.isEnabled() && FrameCompressor.NAME.equals(offer);
+        if ( compressionRequested ) { outboundCompressed = supported; return; }
+        enqueueFrame(BroadcastFrame.of(FrameType.OPTIONS, 0, supported ? FrameCompressor.NAME : ""));
+        outboundCompressed = supported;
+    }
+
+    // --- ПУЛЬС И ПРОСТОЙ. Собеседник молчит pingMillis - шлём ему PING (он ответит PONG); молчит idleMillis -
+    // рвём соединение: полуоткрытый сокет (собеседник пропал без FIN) иначе висел бы вечно.
+    // PING понимает только двоичный собеседник, да и то не всякий: старый молча пропустит. Пока собеседник ни разу
+    // не прислал PING или PONG, ждём его по-старому, textIdleMillis. 0 - не слать PING / не рвать.
+    // Таймер на соединение - один, в общем колесе (TimerWheel), и переставляется только по его срабатыванию:
+    // приём байтов лишь запоминает время, так что пульс почти ничего не стоит, сколько бы ни было соединений
+    public void startHeartbeat ( long pingMillis, long idleMillis, long textIdleMillis ) {
+        pingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, pingMillis));
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleMillis));
+        textIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, textIdleMillis));
+        if ( pingNanos == 0 && idleNanos == 0 && textIdleNanos == 0 ) return;
+        lastRead = System.nanoTime();
+        checkLater(Math.min(pingNanos > 0 ? pingNanos : Long.MAX_VALUE, textIdleNanos > 0 ? textIdleNanos : idleNanos));
+    }
+
+    // Нить колеса: порвать, пора ли PING и когда смотреть снова. Слушателя отсюда не зовём - колесо одно на все
+    // соединения, и медленный слушатель задержал бы чужие таймеры. Рвём закрытием транспорта, а onException
+    // и onDisconnect слушатель получит из нити самого соединения (нить чтения или цикл NIO, см. fireDisconnect)
+    private void checkIdle () {
+        if ( closed ) return;
+        long now = System.nanoTime(), silent = now - lastRead;
+        boolean beats = outboundBinary && heartbeatKnown;
+        long limit = beats ? idleNanos : textIdleNanos;
+        if ( limit > 0 && silent >= limit ) {
+            NetworkMetrics.get().idleClosed();
+            long millis = TimeUnit.NANOSECONDS.toMillis(silent);
+            idleFailure = new SocketTimeoutException("Собеседник молчит " + millis + " мс");
+            try { transport.close(); }
+            catch ( IOException e ) { NetworkMetrics.get().exception(e); }
+            return;
+        }
+        long next = limit > 0 ? limit - silent : Long.MAX_VALUE;
+        if ( outboundBinary && pingNanos > 0 ) {
+            // Очередь не пуста - данные и так идут, PING в хвосте ничего не добавит
+            if ( silent >= pingNanos && now - pingedAt >= pingNanos && transport.queuedCount() == 0 ) {
+                pingedAt = now;
+                NetworkMetrics.get().pinged();
+                enqueueFrame(PING);
+            }
+            next = Math.min(next, silent < pingNanos ? pingNanos - silent : pingNanos);
+        } else if ( pingNanos > 0 ) {
+            next = Math.min(next, pingNanos); // Ещё говорим строками - вдруг перейдём на кадры
+        }
+        if ( next != Long.MAX_VALUE ) checkLater(next);
+    }
+
+    // Соединение порвали по простою: что сокет закрыт, транспорту уже не ошибка (причину скажет fireDisconnect)
+    boolean isIdleEvicted () { return idleFailure != null; }
+
+    private void checkLater ( long nanos ) {
+        if ( nanos == Long.MAX_VALUE || closed ) return;
+        heartbeat = TimerWheel.get().schedule(this::checkIdle, TimeUnit.NANOSECONDS.toMillis(nanos) + 1);
+    }
+
+    public boolean isBinary () { return outboundBinary; }
+    public boolean isCompressed () { return outboundCompressed; }
+    public long getId () { return id; }
+
     // --- ОТПРАВЛЯЕМ СООБЩЕНИЕ
-    public synchronized void sendString ( String value ) {
+    // Без склейки строка уходит в сокет сразу. Со склейкой (setBatching) - копится в пачке и уходит вместе
+    // с соседями: по размеру пачки, по таймеру или по явному flush()
+    public void sendString ( String value ) {
+        sendFrame(FrameType.TEXT, value);
+    }
+
+    // То же с типом сообщения. Текстовому собеседнику тип не передать - уйдёт просто строка
+    public void sendFrame ( FrameType type, String value ) {
+        lock.lock();
+        try {
+            ByteBuffer data = encode(type, value);
+            if ( batchBytes <= 0 ) { writeNow(new ByteBuffer[] { data }, 1); return; }
+            append(data);
+            if ( pendingBytes >= batchBytes ) flushLocked();
+            else if ( pendingCount == 1 ) { // Первая строка пачки - заводим будильник
+                long generation = batchGeneration;
+                FlushTimer.schedule( () -> flushGeneration(generation), batchMicros );
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- ОТПРАВЛЯЕМ ПАЧКУ СООБЩЕНИЙ. Все строки (и то, что уже накопилось) уходят в сокет одной записью
+    public void sendStrings ( List<String> values ) {
+        lock.lock();
         try {
-            out.write(value + "\r\n"); // Выдаёт строку в буфер с приписанным концом строки
-            out.flush(); // Выдаёт буфер в сокет
+            for ( String value : values ) append(encode(FrameType.TEXT, value));
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- ОТПРАВЛЯЕМ ГОТОВЫЕ КАДРЫ ПАЧКОЙ (FrameCodec.encode). Уходят в сокет одной записью вместе с накопленным.
+    // Только когда собеседник говорит кадрами: так ходят, например, связи между узлами кластера
+    public void sendFrames ( ByteBuffer[] frames, int count ) {
+        lock.lock();
+        try {
+            if ( !outboundBinary ) throw new IllegalStateException("Собеседник не перешёл на двоичный протокол");
+            for ( int i = 0; i < count; i++ ) append(frames[i]);
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- СБРАСЫВАЕМ НАКОПЛЕННУЮ ПАЧКУ В СОКЕТ
+    public void flush () {
+        lock.lock();
+        try { flushLocked(); }
+        finally { lock.unlock(); }
+    }
+
+    // --- СКЛЕЙКА ИСХОДЯЩИХ СТРОК
+    // flushBytes - сбрасываем пачку, когда в ней накопилось столько байт (0 - склейка выключена);
+    // flushMicros - и не держим первую строку пачки дольше стольких микросекунд.
+    // Больше пачка - меньше системных вызовов, но дольше ждут строки. Подбирать по getWriteStats()
+    public void setBatching ( int flushBytes, long flushMicros ) {
+        lock.lock();
+        try {
+            flushLocked(); // Накопленное по старым правилам не держим
+            batchBytes = flushBytes;
+            batchMicros = Math.max(1, flushMicros);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Счётчики записи: сколько было сбросов в сокет и сколько сообщений в среднем уходило за раз
+    public WriteStats getWriteStats () { return transport.stats(); }
+
+    // --- БОЛЬШОЕ СООБЩЕНИЕ ПО КУСКАМ. Пишите в поток сколько угодно: уходит кусками по STREAM_CHUNK_BYTES
+    // (кадры STREAM_DATA, каждый сжимается сам), в памяти - не больше куска. close() - конец сообщения.
+    // Собеседник получает куски по одному в onStreamChunk. Только когда собеседник говорит кадрами
+    public OutputStream openStream ( String name ) {
+        if ( !outboundBinary ) throw new IllegalStateException("Собеседник не перешёл на двоичный протокол");
+        long streamId = streamIds.incrementAndGet();
+        sendEncoded(FrameCodec.encode(FrameType.STREAM_OPEN, streamId, name));
+        int chunk = Math.max(1, Math.min(NetworkEnv.STREAM_CHUNK_BYTES, FrameCodec.MAX_FRAME_LENGTH - 32));
+        return new ChunkedOutputStream(this, streamId, chunk);
+    }
+
+    void sendChunk ( long streamId, byte[] data, int length ) throws IOException {
+        if ( closed ) throw new IOException("Соединение разорвано");
+        sendEncoded(FrameCodec.encode(FrameType.STREAM_DATA, streamId, data, 0, length));
+        if ( closed ) throw new IOException("Соединение разорвано");
+    }
+
+    void closeStream ( long streamId ) throws IOException {
+        if ( closed ) throw new IOException("Соединение разорвано");
+        sendEncoded(FrameCodec.encode(FrameType.STREAM_CLOSE, streamId, new byte[0]));
+    }
+
+    // Готовый кадр - в сокет сейчас, вместе с накопленной пачкой; сжимаем, если договорились
+    private void sendEncoded ( ByteBuffer frame ) {
+        lock.lock();
+        try {
+            append(outboundCompressed ? FrameCompressor.compress(frame) : frame);
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Строка в байтах текущего протокола: строка UTF-8 с "\r\n" или кадр. Только под замком lock
+    private ByteBuffer encode ( FrameType type, String value ) {
+        if ( outboundBinary ) {
+            ByteBuffer frame = FrameCodec.encode(type, 0, value);
+            return outboundCompressed ? FrameCompressor.compress(frame) : frame;
+        }
+        return BroadcastFrame.ofLine(value, false).slice();
+    }
+
+    private void append ( ByteBuffer data ) {
+        if ( pending == null ) pending = new ByteBuffer[16];
+        else if ( pendingCount == pending.length ) pending = Arrays.copyOf(pending, pending.length * 2);
+        pending[pendingCount++] = data;
+        pendingBytes += data.remaining();
+    }
+
+    // Будильник пачки: сбрасываем, только если это всё ещё та же пачка (её не сбросили по размеру раньше)
+    private void flushGeneration ( long generation ) {
+        lock.lock();
+        try { if ( generation == batchGeneration ) flushLocked(); }
+        finally { lock.unlock(); }
+    }
+
+    private void flushLocked () {
+        if ( pendingCount == 0 ) return;
+        int count = pendingCount;
+        pendingCount = 0;
+        pendingBytes = 0;
+        batchGeneration++;
+        writeNow(pending, count);
+        Arrays.fill(pending, 0, count, null);
+    }
+
+    // Записать байты сейчас, под замком: из sendString и из писателя очереди транспорта
+    void writeNow ( ByteBuffer[] data, int count ) {
+        lock.lock();
+        try {
+            transport.write(data, count);
         } catch (IOException e) {
-            eventListener.onException(TCPConnection.this, e); // Коль не сложилось, пусть разбирается eventListener
+            closed = true;
+            fireException(e); // Коль не сложилось, пусть разбирается eventListener
             disconnect(); // Раз не смогли записать, рассоединяемся
+        } finally {
+            lock.unlock();
         }
     }
 
+    // --- СТАВИМ СООБЩЕНИЕ В ОЧЕРЕДЬ НА ОТПРАВКУ
+    // В отличие от sendString, сокета не ждём: строку запишет писатель этого соединения.
+    // Для рассылок: медленный клиент копит свою очередь и не тормозит отправителя.
+    // Если клиент безнадёжно отстал (см. SlowConsumerPolicy) - слушатель получит SlowConsumerException,
+    // а соединение порвётся.
+    public void enqueueString ( String value ) {
+        enqueueFrame(BroadcastFrame.ofLine(value));
+    }
+
+    // То же для готового кадра. Рассылка кодирует строку в кадр один раз и отдаёт его всем соединениям
+    public void enqueueFrame ( BroadcastFrame frame ) {
+        modeLock.readLock().lock();
+        try {
+            transport.enqueue(frame.slice(outboundBinary, outboundCompressed));
+        } catch (IOException e) {
+            fireException(e);
+            disconnect();
+        } finally {
+            modeLock.readLock().unlock();
+        }
+    }
+
+    // Готовые кадры двоичного протокола одним куском, например прямо из файла истории (см. FrameCodec).
+    // Двоичному собеседнику уходят как есть: без разбора и копирования, в очереди - один элемент на весь кусок.
+    // Текстовому - перекладываем в строки (FrameCodec.toLines)
+    public void enqueueFrames ( ByteBuffer frames ) {
+        enqueueFrames(frames, false);
+    }
+
+    // lossless - кадры, которые терять нельзя (куски чужого большого сообщения): очередь их не выкинет
+    // ни при какой политике. Места нет и ждать нельзя - соединение рвётся с SlowConsumerException
+    public void enqueueFrames ( ByteBuffer frames, boolean lossless ) {
+        modeLock.readLock().lock();
+        try {
+            ByteBuffer data = outboundBinary ? frames.duplicate() : FrameCodec.toLines(frames);
+            if ( lossless ) transport.enqueueLossless(data, true);
+            else transport.enqueue(data);
+        } catch (IOException e) {
+            fireException(e);
+            disconnect();
+        } finally {
+            modeLock.readLock().unlock();
+        }
+    }
+
+    // То же без потерь, но и без ожидания места: для нитей, которым ждать нельзя (общий таймер). false - кадры
+    // не легли (места нет или соединение закрыто); слушателю об этом не сообщаем, что делать - решает вызывающий
+    public boolean tryEnqueueFrames ( ByteBuffer frames ) {
+        modeLock.readLock().lock();
+        try {
+            transport.enqueueLossless(outboundBinary ? frames.duplicate() : FrameCodec.toLines(frames), false);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            modeLock.readLock().unlock();
+        }
+    }
+
+    // Сколько сообщений ждёт отправки в очереди
+    public int getQueuedCount () { return transport.queuedCount(); }
+
+    // --- ПЕРЕСТАЁМ ЧИТАТЬ СОБЕСЕДНИКА (и снова начинаем). Непрочитанное копится в сокете, а когда там
+    // места не останется, TCP притормозит самого собеседника. Так сервер подстраивает отправителя большого
+    // сообщения под самого медленного получателя. Пока чтение стоит, не доходят и ответы на PING
+    public void pauseReading () { transport.setReadPaused(true); }
+    public void resumeReading () { transport.setReadPaused(false); }
+
+    // Сколько пришло байтов и сообщений (строк или кадров). Сколько ушло - getWriteStats()
+    public long getBytesIn () { return bytesIn; }
+    public long getMessagesIn () { return messagesIn; }
+
     // --- ОБРЫВАЕМ СОЕДИНЕНИЕ
-    public synchronized void disconnect () {
-        rxThread.interrupt();
-        try { socket.close(); }
+    // Без замка на отправку: писатель может намертво висеть в записи медленному клиенту, держа замок,
+    // а закрытие сокета как раз и выдернет его оттуда. Транспорт сам закрывается безопасно из любой нити.
+    public void disconnect () {
+        try { transport.close(); }
         catch (IOException e) {
-            eventListener.onException(TCPConnection.this, e); // Коль не сложилось, пусть разбирается eventListener
+            fireException(e); // Коль не сложилось, пусть разбирается eventListener
         }
     }
     // Переопределим метод toString для вывода логов
     @Override
     public String toString() {
-        return ("TCPConnection: " + socket.getInetAddress() + ": " + socket.getPort());
+        return ("TCPConnection: " + transport.remoteAddress());
     }
 }
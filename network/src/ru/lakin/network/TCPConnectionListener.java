@@ -1,5 +1,7 @@
 package ru.lakin.network;
 
+import java.nio.ByteBuffer;
+
 // Если серверу пришло сообщение, он его должен разослать клиентам.
 // Если клиенту пришло сообщение, он его должен вывести в своё окошко.
 // Дабы объекты классов "сервер" и "клиент", слушая входной поток, могли пользоваться одним и тем же
@@ -10,4 +12,31 @@ public interface TCPConnectionListener {
     void onReceiveString (TCPConnection tcpConnection, String value);  // Приняли входящую строку
     void onDisconnect (TCPConnection tcpConnection);                   // Соединение разорвалось
     void onException (TCPConnection tcpConnection, Exception e);       // Ошибка соединения
+
+    // Принят кадр двоичного протокола (см. FrameCodec). Кадр действителен только внутри вызова.
+    // По умолчанию сообщения чата и служебные объявления приходят как обычные строки в onReceiveString,
+    // так что слушателю, которому тип и отправитель не важны, ничего менять не надо.
+    default void onReceiveFrame (TCPConnection tcpConnection, Frame frame) {
+        FrameType type = frame.type();
+        if ( type == FrameType.TEXT || type == FrameType.SYSTEM )
+            onReceiveString(tcpConnection, frame.payloadAsString());
+        else if ( type == FrameType.STREAM_OPEN ) onStreamOpen(tcpConnection, frame.senderId(), frame.payloadAsString());
+        else if ( type == FrameType.STREAM_DATA ) onStreamChunk(tcpConnection, frame.senderId(), frame.payload());
+        else if ( type == FrameType.STREAM_CLOSE ) {
+            if ( frame.payloadLength() == 0 ) onStreamClose(tcpConnection, frame.senderId());
+            else onStreamAbort(tcpConnection, frame.senderId(), frame.payloadAsString());
+        }
+    }
+
+    // Большое сообщение по кускам (см. TCPConnection.openStream). Целиком оно нигде не собирается:
+    // кусок chunk действителен только внутри вызова - сохранить, переслать или посчитать его надо сразу.
+    // Кто потоки не принимает, ничего не переопределяет: куски просто пропадут
+    default void onStreamOpen (TCPConnection tcpConnection, long streamId, String name) {}
+    default void onStreamChunk (TCPConnection tcpConnection, long streamId, ByteBuffer chunk) {}
+    default void onStreamClose (TCPConnection tcpConnection, long streamId) {}
+    // Поток оборвался недопереданным (отправитель отключился, получатель не успевал принимать): пришедшие
+    // куски - не всё сообщение. По умолчанию - как конец потока, чтобы слушатель прибрал за ним
+    default void onStreamAbort (TCPConnection tcpConnection, long streamId, String reason) {
+        onStreamClose(tcpConnection, streamId);
+    }
 }
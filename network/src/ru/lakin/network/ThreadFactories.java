@@ -0,0 +1,49 @@
+package ru.lakin.network;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Откуда берутся нити соединений и цикла приёма ChatServer.
+// "platform" - обычные нити ОС, по нити со стеком на каждого клиента.
+// "virtual"  - виртуальные нити (JDK 21+): тысячи ждущих в readLine()/accept() клиентов стоят копейки,
+//              потому что ждущая виртуальная нить отпускает нить-носитель.
+// Проект собирается на JDK 17, поэтому виртуальные нити достаём через рефлексию. Если JDK их не умеет,
+// тихо (с одной строчкой в консоль) откатываемся на обычные нити.
+public final class ThreadFactories {
+    private static final boolean VIRTUAL_SUPPORTED = virtual("probe-") != null; // Проверяем JDK один раз
+    private static final AtomicBoolean warned = new AtomicBoolean(); // Про откат пишем в консоль один раз
+
+    private ThreadFactories () {}
+
+    // Фабрика по режиму из NetworkEnv.THREADS (-Deasychat.threads=virtual|platform)
+    public static ThreadFactory of (String prefix) { return of(NetworkEnv.THREADS, prefix); }
+
+    public static ThreadFactory of (String mode, String prefix) {
+        if ( "virtual".equals(mode) ) {
+            if ( VIRTUAL_SUPPORTED ) return virtual(prefix);
+            if ( warned.compareAndSet(false, true) ) AsyncLog.info("Виртуальные нити недоступны в JDK " + Runtime.version().feature()
+                               + ", работаем на обычных");
+        }
+        return platform(prefix);
+    }
+
+    public static ThreadFactory platform (String prefix) {
+        AtomicLong counter = new AtomicLong();
+        return task -> new Thread(task, prefix + counter.getAndIncrement());
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory() без компиляции под JDK 21. null - если не вышло
+    public static ThreadFactory virtual (String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch ( ReflectiveOperationException e ) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtualSupported () { return VIRTUAL_SUPPORTED; }
+}
@@ -0,0 +1,125 @@
+package ru.lakin.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Колесо таймеров: одна нить на все таймеры процесса - пульс и простой соединений (см. TCPConnection.startHeartbeat).
+// Таймеров - по одному на соединение, их десятки тысяч, а сработать вовремя с точностью до миллисекунды
+// не нужно. Очередь с приоритетом (ScheduledThreadPoolExecutor) на каждую постановку и отмену тратит
+// log(n) и замок; колесо - O(1) и без общих замков.
+//
+// Колесо - кольцо из slots ячеек, стрелка раз в tick переходит на следующую. Таймер кладём в ячейку, на которую
+// стрелка придёт к его сроку; если до срока больше оборота - в ту же ячейку, но с числом оборотов rounds,
+// которые стрелка пропустит. Срабатывает таймер не раньше срока и не позже срока плюс один tick.
+//
+// Ячейки трогает только нить колеса. Новые таймеры из других нитей она забирает из очереди в начале каждого
+// шага; отмена - просто флаг, отменённый таймер выкинем, когда стрелка до него дойдёт.
+// Задачи выполняются в нити колеса: они должны быть короткими и не ждать сокетов и замков.
+public final class TimerWheel {
+    private static final class Holder { // Общее колесо заводим при первом обращении
+        static final TimerWheel INSTANCE =
+                new TimerWheel("timer-wheel", NetworkEnv.TIMER_TICK_MS, NetworkEnv.TIMER_SLOTS);
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots; // Головы двусвязных списков. Только нить колеса
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(); // Таймеров ждёт (включая отменённые, но не выкинутые)
+    private final long start = System.nanoTime();
+    private long tick; // Номер последнего шага стрелки. Только нить колеса
+
+    // Колесо с шагом tickMillis и slots ячейками (округляем вверх до степени двойки). Нить - демон, своя
+    public TimerWheel (String name, long tickMillis, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static TimerWheel get () { return Holder.INSTANCE; }
+
+    // Выполнить task в нити колеса через delayMillis. Из любой нити
+    public Timeout schedule (Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    public int getPending () { return pending.get(); }
+
+    // --- НИТЬ КОЛЕСА
+    private void run () {
+        OutboundQueue.forbidWaiting(); // PING медленному клиенту при BLOCK не должен держать таймеры всех остальных
+        while ( true ) {
+            long deadline = start + (tick + 1) * tickNanos;
+            for ( long wait; (wait = deadline - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+            tick++;
+            for ( Timeout timeout; (timeout = added.poll()) != null; ) place(timeout);
+            expire((int) (tick & mask));
+        }
+    }
+
+    // Шаг, на котором наступает срок (не раньше текущего), ячейка и сколько оборотов пропустить
+    private void place (Timeout timeout) {
+        if ( timeout.cancelled ) { pending.decrementAndGet(); return; }
+        long target = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos);
+        timeout.rounds = (target - tick) / slots.length;
+        int slot = (int) (target & mask);
+        timeout.next = slots[slot];
+        if ( timeout.next != null ) timeout.next.prev = timeout;
+        slots[slot] = timeout;
+    }
+
+    private void expire (int slot) {
+        for ( Timeout timeout = slots[slot]; timeout != null; ) {
+            Timeout next = timeout.next;
+            if ( timeout.cancelled || timeout.rounds == 0 ) {
+                unlink(slot, timeout);
+                pending.decrementAndGet();
+                if ( !timeout.cancelled ) timeout.fire();
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink (int slot, Timeout timeout) {
+        if ( timeout.prev != null ) timeout.prev.next = timeout.next;
+        else slots[slot] = timeout.next;
+        if ( timeout.next != null ) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    // Поставленный таймер. cancel() - из любой нити: задача не выполнится, если ещё не начала
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private long rounds;          // Дальше - только нить колеса
+        private Timeout prev, next;
+
+        private Timeout (Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel () { cancelled = true; }
+
+        private void fire () {
+            try {
+                task.run();
+            } catch ( RuntimeException e ) { // Упавшая задача не должна останавливать колесо
+                AsyncLog.error("Таймер: задача упала: " + e, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.lakin.network;
+
+// Ограничитель частоты "ведро с жетонами": в ведре до burst жетонов, каждую секунду досыпается rate.
+// Событие забирает жетон; жетонов нет - событие сверх нормы. Так разрешаем короткий всплеск до burst,
+// а в среднем - не больше rate в секунду.
+// Жетоны досыпаем не таймером, а при обращении - по времени, прошедшему с прошлого раза.
+// Без замков: ведро трогает одна нить (нить чтения соединения, нить приёма сервера)
+public final class TokenBucket {
+    private final double rate;  // Жетонов в секунду
+    private final double burst; // Больше в ведре не помещается
+    private double tokens;
+    private long last;          // Когда досыпали, нс
+
+    public TokenBucket (double rate, double burst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst; // Новое ведро - полное
+        this.last = System.nanoTime();
+    }
+
+    // Забрать жетон. false - жетонов нет, событие сверх нормы
+    public boolean tryAcquire () {
+        refill(System.nanoTime());
+        if ( tokens < 1 ) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    // Ведро снова полное: про него можно забыть, новое будет таким же
+    public boolean isFull () {
+        refill(System.nanoTime());
+        return tokens >= burst;
+    }
+
+    private void refill (long now) {
+        tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+        last = now;
+    }
+}
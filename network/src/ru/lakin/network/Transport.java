@@ -0,0 +1,23 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Транспорт - то, на чём реально едут байты TCPConnection.
+// TCPConnection отвечает за протокол и за события слушателя, а транспорт - за сокет и за нити:
+// - SocketTransport - классика: блокирующий сокет и своя нить rxThread на каждое соединение;
+// - NioTransport    - неблокирующий SocketChannel, обслуживаемый общим NioEventLoop.
+// Слушатель (TCPConnectionListener) разницы не видит - ему всегда приходит TCPConnection.
+interface Transport {
+    void start (TCPConnection connection);           // Начать слушать вход и генерить события соединения
+    WriteStats stats ();                              // Счётчики записи: сбросы считает тот, кто реально пишет
+    // Записать count буферов сейчас, одной пачкой (неблокирующий транспорт - в очередь). Буфер = одно сообщение
+    void write (ByteBuffer[] data, int count) throws IOException;
+    void enqueue (ByteBuffer data) throws IOException; // Поставить байты в очередь исходящих, запишет писатель
+    // То же, но очередь их не выкинет (OutboundQueue.put). mayWait = false - места нет, сразу SlowConsumerException
+    void enqueueLossless (ByteBuffer data, boolean mayWait) throws IOException;
+    void setReadPaused (boolean paused);              // Перестать читать (и снова начать): собеседник подождёт
+    int queuedCount ();                               // Сколько сообщений ждёт в очереди исходящих
+    void close () throws IOException;                 // Закрыть соединение
+    String remoteAddress ();                          // Адрес удалённой стороны для логов
+}
@@ -0,0 +1,34 @@
+package ru.lakin.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Счётчики записи одного соединения. "Сброс" (flush) - одна передача пачки байтов в сокет, то есть примерно
+// один системный вызов. Сообщений на сброс - главный показатель склейки: 1 - каждое сообщение своим вызовом,
+// больше - склеиваем. Пишут в счётчики нити записи, читать можно из любой нити.
+public final class WriteStats {
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    void record (int messageCount, long byteCount) {
+        flushes.increment();
+        messages.add(messageCount);
+        bytes.add(byteCount);
+        NetworkMetrics.get().written(messageCount, byteCount);
+    }
+
+    public long getFlushes () { return flushes.sum(); }
+    public long getMessages () { return messages.sum(); }
+    public long getBytes () { return bytes.sum(); }
+
+    public double getMessagesPerFlush () {
+        long f = flushes.sum();
+        return f == 0 ? 0 : (double) messages.sum() / f;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("сбросов: %d, сообщений: %d, байт: %d, сообщений на сброс: %.2f",
+                             getFlushes(), getMessages(), getBytes(), getMessagesPerFlush());
+    }
+}
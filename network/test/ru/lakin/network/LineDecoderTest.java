@@ -0,0 +1,82 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Разбор строк LineDecoder: строки приходят кусками как попало, конец строки - "\n" или "\r\n"
+class LineDecoderTest {
+    private static final String TEXT = "раз\r\n\r\nдва\nтри с пробелом \r\n";
+    private static final List<String> LINES = List.of("раз", "", "два", "три с пробелом ");
+
+    private static List<String> decode (LineDecoder decoder, ByteBuffer... chunks) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for ( ByteBuffer chunk : chunks ) {
+            decoder.decode(chunk, lines::add);
+            assertFalse(chunk.hasRemaining(), "разборщик должен вычитать кусок целиком");
+        }
+        return lines;
+    }
+
+    @Test
+    void decodesLinesSplitAtEveryByte () throws IOException {
+        byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+        for ( int cut = 0; cut <= bytes.length; cut++ ) {
+            LineDecoder decoder = new LineDecoder(1024);
+            List<String> lines = decode(decoder, ByteBuffer.wrap(bytes, 0, cut),
+                                        ByteBuffer.wrap(bytes, cut, bytes.length - cut));
+            assertEquals(LINES, lines, "разрез " + cut);
+            decoder.release();
+        }
+    }
+
+    @Test
+    void decodesLinesByteByByte () throws IOException {
+        byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer[] chunks = new ByteBuffer[bytes.length];
+        for ( int i = 0; i < bytes.length; i++ ) chunks[i] = ByteBuffer.wrap(bytes, i, 1);
+        LineDecoder decoder = new LineDecoder(1024);
+        assertEquals(LINES, decode(decoder, chunks));
+        decoder.release();
+    }
+
+    @Test
+    void decodesFromDirectBuffer () throws IOException {
+        byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertEquals(LINES, decode(new LineDecoder(1024), direct));
+    }
+
+    @Test
+    void nextStopsRightAfterLine () throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap("строка\r\nдальше".getBytes(StandardCharsets.UTF_8));
+        LineDecoder decoder = new LineDecoder(1024);
+        assertEquals("строка", decoder.next(buffer));
+        assertEquals("дальше", StandardCharsets.UTF_8.decode(buffer).toString(), "остаток не тронут");
+    }
+
+    @Test
+    void rejectsTooLongLine () {
+        LineDecoder whole = new LineDecoder(8);
+        assertThrows(IOException.class, () -> decode(whole, ByteBuffer.wrap("123456789\n".getBytes())));
+
+        // Хвост без конца строки растёт по кускам - проверяем и его
+        LineDecoder split = new LineDecoder(8);
+        assertThrows(IOException.class,
+                     () -> decode(split, ByteBuffer.wrap("12345".getBytes()), ByteBuffer.wrap("6789".getBytes())));
+        split.release();
+    }
+
+    @Test
+    void acceptsLineOfMaximumLength () throws IOException {
+        LineDecoder decoder = new LineDecoder(8);
+        assertEquals(List.of("12345678"), decode(decoder, ByteBuffer.wrap("1234".getBytes()),
+                                                 ByteBuffer.wrap("5678\n".getBytes())));
+    }
+}
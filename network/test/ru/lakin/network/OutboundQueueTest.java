@@ -0,0 +1,111 @@
+package ru.lakin.network;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Три политики медленного получателя (SlowConsumerPolicy) и сообщения, которые терять нельзя (put)
+class OutboundQueueTest {
+    private static OutboundQueue<String> full (SlowConsumerPolicy policy, long blockTimeoutMillis, String... items)
+            throws InterruptedException {
+        OutboundQueue<String> queue = new OutboundQueue<>(items.length, policy, blockTimeoutMillis);
+        for ( String item : items ) assertTrue(queue.offer(item, false));
+        return queue;
+    }
+
+    @Test
+    void dropOldestDropsOldestMessage () throws InterruptedException {
+        OutboundQueue<String> queue = full(SlowConsumerPolicy.DROP_OLDEST, 0, "1", "2", "3");
+        assertTrue(queue.offer("4", false));
+        assertEquals(1, queue.dropped());
+        assertEquals("2", queue.poll());
+        assertEquals("3", queue.poll());
+        assertEquals("4", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void dropOldestKeepsLosslessMessages () throws InterruptedException {
+        OutboundQueue<String> queue = new OutboundQueue<>(3, SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.put("кусок 1", false));
+        assertTrue(queue.offer("чат", false));
+        assertTrue(queue.put("кусок 2", false));
+        assertTrue(queue.offer("новое", false)); // Выкинули "чат", куски целы
+        assertEquals("кусок 1", queue.poll());
+        assertEquals("кусок 2", queue.poll());
+        assertEquals("новое", queue.poll());
+    }
+
+    @Test
+    void dropOldestGivesUpWhenOnlyLosslessLeft () throws InterruptedException {
+        OutboundQueue<String> queue = new OutboundQueue<>(2, SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.put("кусок 1", false));
+        assertTrue(queue.put("кусок 2", false));
+        assertFalse(queue.offer("чат", false), "выкинуть нечего - получателя рвём");
+        assertEquals(0, queue.dropped());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void disconnectRefusesWhenFull () throws InterruptedException {
+        OutboundQueue<String> queue = full(SlowConsumerPolicy.DISCONNECT, 1000, "1", "2");
+        assertFalse(queue.offer("3", true));
+        assertFalse(queue.put("3", false));
+        assertEquals("1", queue.poll(), "очередь не тронута");
+        assertTrue(queue.offer("3", false));
+    }
+
+    @Test
+    void blockRefusesWhenWaitingIsForbidden () throws InterruptedException {
+        OutboundQueue<String> queue = full(SlowConsumerPolicy.BLOCK, 10_000, "1");
+        long start = System.nanoTime();
+        assertFalse(queue.offer("2", false));
+        assertFalse(queue.put("2", false));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "ждать было нельзя");
+    }
+
+    @Test
+    void blockGivesUpAfterTimeout () throws InterruptedException {
+        OutboundQueue<String> queue = full(SlowConsumerPolicy.BLOCK, 50, "1");
+        long start = System.nanoTime();
+        assertFalse(queue.offer("2", true));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void blockWaitsForSpace () throws InterruptedException {
+        OutboundQueue<String> queue = full(SlowConsumerPolicy.BLOCK, 10_000, "1");
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicBoolean offered = new AtomicBoolean();
+        Thread sender = new Thread( () -> {
+            waiting.countDown();
+            try { offered.set(queue.offer("2", true)); }
+            catch ( InterruptedException e ) { Thread.currentThread().interrupt(); }
+        });
+        sender.start();
+        waiting.await();
+        Thread.sleep(50); // Отправитель упёрся в полную очередь
+        assertEquals("1", queue.take());
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(offered.get());
+        assertEquals("2", queue.poll());
+    }
+
+    @Test
+    void loopThreadsNeverWait () throws InterruptedException {
+        AtomicBoolean mayWait = new AtomicBoolean(true);
+        Thread loop = new Thread( () -> {
+            OutboundQueue.forbidWaiting();
+            mayWait.set(OutboundQueue.mayWait());
+        });
+        loop.start();
+        loop.join();
+        assertFalse(mayWait.get());
+        assertTrue(OutboundQueue.mayWait(), "запрет - только для своей нити");
+    }
+}
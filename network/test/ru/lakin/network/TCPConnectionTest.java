@@ -0,0 +1,103 @@
+package ru.lakin.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Рукопожатие HELLO на стороне сервера: клиент не ждёт HELLO_OK и шлёт кадры следом, часто в том же чтении
+class TCPConnectionTest {
+    // Что услышал слушатель: строки - как есть, кадры - "тип/отправитель/нагрузка"
+    private static final class Recorder implements TCPConnectionListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override public void onConnectionReady (TCPConnection tcpConnection) {}
+        @Override public void onReceiveString (TCPConnection tcpConnection, String value) { events.add(value); }
+        @Override public void onDisconnect (TCPConnection tcpConnection) {}
+        @Override public void onException (TCPConnection tcpConnection, Exception e) { events.add("! " + e); }
+        @Override public void onReceiveFrame (TCPConnection tcpConnection, Frame frame) {
+            events.add(frame.type() + "/" + frame.senderId() + "/" + frame.payloadAsString());
+        }
+    }
+
+    // Транспорт без сокета: запоминает, что соединение поставило в очередь исходящих
+    private static final class RecordingTransport implements Transport {
+        private final WriteStats stats = new WriteStats();
+        final List<ByteBuffer> queued = new ArrayList<>();
+
+        @Override public void start (TCPConnection connection) { connection.fireConnectionReady(); }
+        @Override public WriteStats stats () { return stats; }
+        @Override public void write (ByteBuffer[] data, int count) {
+            for ( int i = 0; i < count; i++ ) queued.add(data[i].duplicate());
+        }
+        @Override public void enqueue (ByteBuffer data) { queued.add(data.duplicate()); }
+        @Override public void enqueueLossless (ByteBuffer data, boolean mayWait) { enqueue(data); }
+        @Override public void setReadPaused (boolean paused) {}
+        @Override public int queuedCount () { return queued.size(); }
+        @Override public void close () {}
+        @Override public String remoteAddress () { return "тест"; }
+    }
+
+    private static final List<String> EXPECTED = List.of("до рукопожатия", "TEXT/0/раз", "SYSTEM/5/два\nстроки",
+                                                         "TEXT/0/три");
+
+    // Строка, HELLO и сразу за ним кадры - одним куском, как их может отдать одно чтение из сокета
+    private static ByteBuffer handshakeAndFrames () {
+        ByteBuffer[] parts = {
+            ascii("до рукопожатия\r\n" + FrameCodec.HELLO + "\r\n"),
+            FrameCodec.encode(FrameType.TEXT, 0, "раз"),
+            FrameCodec.encode(FrameType.SYSTEM, 5, "два\nстроки"),
+            FrameCodec.encode(FrameType.PING, 0, ""), // Слушателю не приходит, соединение само ответит PONG
+            FrameCodec.encode(FrameType.TEXT, 0, "три"),
+        };
+        int total = 0;
+        for ( ByteBuffer part : parts ) total += part.remaining();
+        ByteBuffer all = ByteBuffer.allocate(total);
+        for ( ByteBuffer part : parts ) all.put(part);
+        return all.flip();
+    }
+
+    private static ByteBuffer ascii (String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Ответ сервера: HELLO_OK текстовой строкой, потом уже кадром - PONG
+    private static void assertAnswered (RecordingTransport transport) throws IOException {
+        assertEquals(2, transport.queued.size());
+        assertEquals(FrameCodec.HELLO_OK + "\r\n", StandardCharsets.UTF_8.decode(transport.queued.get(0)).toString());
+        Frame pong = new FrameDecoder(FrameCodec.MAX_FRAME_LENGTH).next(transport.queued.get(1));
+        assertNotNull(pong);
+        assertEquals(FrameType.PONG, pong.type());
+    }
+
+    @Test
+    void switchesToFramesInsideOneRead () throws IOException {
+        Recorder listener = new Recorder();
+        RecordingTransport transport = new RecordingTransport();
+        TCPConnection connection = new TCPConnection(listener, transport);
+        ByteBuffer all = handshakeAndFrames();
+        connection.onBytesReceived(all);
+        assertFalse(all.hasRemaining());
+        assertEquals(EXPECTED, listener.events);
+        assertAnswered(transport);
+    }
+
+    @Test
+    void switchesToFramesSplitAtEveryByte () throws IOException {
+        ByteBuffer all = handshakeAndFrames();
+        for ( int cut = 0; cut <= all.limit(); cut++ ) {
+            Recorder listener = new Recorder();
+            RecordingTransport transport = new RecordingTransport();
+            TCPConnection connection = new TCPConnection(listener, transport);
+            connection.onBytesReceived(all.slice(0, cut));
+            connection.onBytesReceived(all.slice(cut, all.limit() - cut));
+            assertEquals(EXPECTED, listener.events, "разрез " + cut);
+            assertAnswered(transport);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ru.lakin.chat.server;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import ru.lakin.network.*;
+
+// Допуск новых соединений: спрашивает нить приёма сразу после accept(), до того как заведено соединение
+// (и его нить или место в селекторе). Не пускаем, если соединений уже maxConnections или если с этого адреса
+// подключаются чаще rate в секунду (всплеск - до burst подряд). Так шквал подключений, в том числе
+// с одного адреса, стоит серверу accept() и close(), а не нити и буферов на каждое.
+// Соединения - клиенты этого сервера (clients, см. ChatServer.clients): не все TCPConnection процесса,
+// так что ни связи кластера, ни другой сервер в том же процессе чужой лимит не съедают. Место занимаем прямо
+// здесь, в нити приёма (reserve), а не когда соединение готово: иначе шквал с многих адресов прошёл бы допуск
+// целиком, пока ни одно соединение ещё не посчитано. Возвращает место сервер - в onDisconnect или сразу,
+// если соединение так и не завелось.
+//
+// Ведро жетонов (TokenBucket) - на каждый адрес. Трогает их только нить приёма, замков не нужно.
+// Полное ведро ничем не отличается от нового, такие время от времени выкидываем - память не растёт
+// от адресов, которые когда-то подключались. Ограничение 0 - не ограничиваем.
+final class Admission implements Predicate<InetAddress> {
+    private static final int SWEEP_EVERY = 1024; // Раз в столько подключений выкидываем полные вёдра
+
+    private final AtomicInteger clients;
+    private final int maxConnections;
+    private final double rate;
+    private final int burst;
+    private final HashMap<InetAddress, TokenBucket> buckets = new HashMap<>(); // Только нить приёма
+    private int sinceSweep;
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+
+    Admission (AtomicInteger clients, int maxConnections, double rate, int burst) {
+        this.clients = clients;
+        this.maxConnections = maxConnections;
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    @Override
+    public boolean test (InetAddress address) {
+        if ( !reserve() ) {
+            rejectedFull.increment();
+            AsyncLog.info("Не пустили " + address + ": уже " + maxConnections + " соединений");
+            return false;
+        }
+        if ( rate <= 0 ) return true;
+        if ( ++sinceSweep >= SWEEP_EVERY ) {
+            sinceSweep = 0;
+            buckets.values().removeIf(TokenBucket::isFull);
+        }
+        if ( buckets.computeIfAbsent(address, a -> new TokenBucket(rate, burst)).tryAcquire() ) return true;
+        clients.decrementAndGet(); // Место заняли зря
+        rejectedRate.increment();
+        AsyncLog.info("Не пустили " + address + ": подключается чаще " + rate + " раз в секунду");
+        return false;
+    }
+
+    // Занять место под соединение, если они ещё не кончились. Отпускают места другие нити, поэтому - CAS
+    private boolean reserve () {
+        while ( true ) {
+            int n = clients.get();
+            if ( maxConnections > 0 && n >= maxConnections ) return false;
+            if ( clients.compareAndSet(n, n + 1) ) return true;
+        }
+    }
+
+    long getRejectedFull () { return rejectedFull.sum(); }
+    long getRejectedRate () { return rejectedRate.sum(); }
+}
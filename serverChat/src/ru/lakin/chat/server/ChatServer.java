@@ -1,117 +1,599 @@
 package ru.lakin.chat.server;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ru.lakin.network.*;
+import static ru.lakin.network.NetworkEnv.CLUSTER_BACKLOG;
+import static ru.lakin.network.NetworkEnv.CLUSTER_BATCH;
+import static ru.lakin.network.NetworkEnv.CLUSTER_NODE;
+import static ru.lakin.network.NetworkEnv.CLUSTER_PEERS;
+import static ru.lakin.network.NetworkEnv.CLUSTER_PORT;
+import static ru.lakin.network.NetworkEnv.CONNECT_BURST;
+import static ru.lakin.network.NetworkEnv.CONNECT_RATE;
+import static ru.lakin.network.NetworkEnv.DEFAULT_ROOM;
+import static ru.lakin.network.NetworkEnv.ENGINE;
+import static ru.lakin.network.NetworkEnv.HEARTBEAT_MS;
+import static ru.lakin.network.NetworkEnv.IDLE_TEXT_TIMEOUT_MS;
+import static ru.lakin.network.NetworkEnv.IDLE_TIMEOUT_MS;
+import static ru.lakin.network.NetworkEnv.INBOUND_BURST;
+import static ru.lakin.network.NetworkEnv.INBOUND_RATE;
+import static ru.lakin.network.NetworkEnv.JOURNAL_DIR;
+import static ru.lakin.network.NetworkEnv.JOURNAL_FSYNC_MS;
+import static ru.lakin.network.NetworkEnv.JOURNAL_IDLE_MS;
+import static ru.lakin.network.NetworkEnv.JOURNAL_QUEUE;
+import static ru.lakin.network.NetworkEnv.JOURNAL_REPLAY_MAX;
+import static ru.lakin.network.NetworkEnv.JOURNAL_ROOMS;
+import static ru.lakin.network.NetworkEnv.JOURNAL_SEGMENTS;
+import static ru.lakin.network.NetworkEnv.JOURNAL_SEGMENT_BYTES;
+import static ru.lakin.network.NetworkEnv.MAX_CONNECTIONS;
+import static ru.lakin.network.NetworkEnv.METRICS_PORT;
+import static ru.lakin.network.NetworkEnv.NIO_LOOPS;
 import static ru.lakin.network.NetworkEnv.PORT;
+import static ru.lakin.network.NetworkEnv.STREAM_HIGH_WATER;
+import static ru.lakin.network.NetworkEnv.STREAM_LOW_WATER;
+import static ru.lakin.network.NetworkEnv.STREAM_STALL_MS;
+import static ru.lakin.network.NetworkEnv.TIMER_TICK_MS;
 
 // ChatServer будет слушателем событий соединения. То есть реализует интерфейс TCPConnectionListener
 public class ChatServer implements TCPConnectionListener {
-    public static void main ( String[] args ) { new ChatServer(); }
+    public static void main ( String[] args ) { new ChatServer().listen(ENGINE, PORT); }
 
-    // Соединений может быть много, и нужен список этих соединений
-    // Стандартный класс ArrayList реализует список, где можно добавлять и убирать сущности,
-    // в нашем случае - TCP-соединения
-    private final ArrayList<TCPConnection> connections = new ArrayList<>();
+    // Соединений может быть много, и нужен реестр этих соединений.
+    // Множество на ConcurrentHashMap можно одновременно обходить из одних нитей и менять из других без общего
+    // замка: рассылка не ждёт подключений и отключений, а они - рассылки
+    private final Set<TCPConnection> connections = ConcurrentHashMap.newKeySet();
+    // Указатель комнат: кто в какой комнате и чей это ник. Рассылка идёт только участникам комнаты
+    private final Rooms rooms = new Rooms();
+    // Метрики сервера: JMX, текстом по HTTP (-Deasychat.metrics.port) и getMetrics() для своих
+    private final ServerMetrics metrics = new ServerMetrics(connections, rooms);
+    // История сообщений комнат на диске (/history). null - историю не ведём, см. openJournal()
+    private volatile Journal journal;
+    // Соседи по кластеру (-Deasychat.cluster.port). null - сервер сам по себе, см. joinCluster()
+    private volatile Cluster cluster;
+    // Большие сообщения, которые сейчас идут кусками: (соединение, номер у отправителя) -> поток (см. onStreamOpen)
+    private final ConcurrentHashMap<StreamKey, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicLong relayIds = new AtomicLong(); // Номера потоков для получателей, свои на весь сервер
+    // Клиенты этого сервера: +1 - когда допуск пустил соединение (Admission), -1 - в onDisconnect или когда
+    // соединение так и не завелось. Серверу без listen() (бенчмарки) допуск не нужен, ему счётчик ничего не значит
+    private final AtomicInteger clients = new AtomicInteger();
+    // Кого пускать (см. Admission) и сколько сообщений в секунду принимать от клиента (см. withinRate)
+    private volatile Admission admission = new Admission(clients, MAX_CONNECTIONS, CONNECT_RATE, CONNECT_BURST);
+    private volatile double inboundRate = INBOUND_RATE;
+    private volatile int inboundBurst = INBOUND_BURST;
 
-    // Конструктор
-    private ChatServer() {
-        System.out.println("Сервер стартует, порт " + PORT);
-        // Базовый класс ServerSocket умеет слушать порт и принимать входящее соединение. Слушаем по порту PORT.
-        // Ниже - синтаксическая конструкция try, которая, при наступлении исключения, сама закрывает ресурс
-        try ( ServerSocket serverSocket = new ServerSocket(PORT) ) {
-            System.out.println("Сервер пашет...");
-            // Сервер слушает. На каждое пришедшее новое входящее соединение создаёт TCPConnection
-            // Сервер прост и не рассчитан на сложное внешнее управление
-            while (true) {
-                // На каждое новое соединение надо создать новый TCPConnection
-                try {
-                    // Инициатор общения - клиентский Socket. Со стороны сервера он лишь воссоздаётся.
-                    // Создать объект типа Socket на стороне клиента и воссоздать его с помощью ServerSocket на стороне
-                    // сервера – необходимый минимум для соединения.
-                    //
-                    // На стороне клиента в виде экземпляра класса Socket объявляется запрос на соединение. Чтобы его
-                    // принять и, в свою очередь, воссоздать клиентский Socket на стороне сервера, сервер имеет
-                    // стандартный класс ServerSocket, и в нём - метод accept().
-                    //
-                    // ServerSocket - это, как и Socket, - стандартный класс. Но его природа совершенно иная, нежели у
-                    // Socket. ServerSocket нужен лишь на этапе создания соединения. Его метод accept() ждёт, пока
-                    // кто-либо захочет подсоединится к серверу. Если дождался, то возвращает объект типа Socket -
-                    // воссозданный клиентский сокет. И когда сокет клиента воссоздан на стороне сервера, можно
-                    // начинать двухстороннее общение.
-                    //
-                    // ChatServer - одновременно и чат-сервер, и TCPConnectionListener (через интерфейс)
-                    // ChatServer может вызвать соединение, передавая ему:
-                    // - себя, как слушателя (eventListener)
-                    // - экземпляр сокета, по которому слушаем
-                    //
-                    // Короче...
-                    // Создаём serverSocket (выше)
-                    // Этот serverSocket в бесконечном цикле который слушает по порту PORT,
-                    // постоянно вися в методе accept. accept ждёт соединения, и как только соединение появилось,
-                    // возвращает готовый объект Socket, который пришёл от клиента и связан с этим соединением. И тут же
-                    // передаём этот объект Socket и себя, как слушателя, в конструктор класса TCPConnection, создавая
-                    // новый экземпляр TCP-соединения.
-                    new TCPConnection( this, serverSocket.accept());
-                }
-                catch (IOException e) { System.out.println("Исключение TCPConnection: " + e); }
-            }
+    // Конструктор. Сервер без порта - просто реестр соединений с рассылкой; соединения ему можно отдавать
+    // и самим (так его гоняют бенчмарки). Слушать порт - listen()
+    public ChatServer() { metrics.attach(admission); }
+
+    public ServerMetrics getMetrics() { return metrics; }
+
+    // Ограничения по умолчанию - из NetworkEnv (-Deasychat.maxConnections и т.д.). Поменять - до listen()
+    // (inbound - до подключения клиентов). 0 - не ограничивать. Бенчмарки так снимают ограничения вовсе
+    public void limitConnections(int max, double ratePerAddress, int burst) {
+        admission = new Admission(clients, max, ratePerAddress, burst);
+        metrics.attach(admission);
+    }
+
+    public void limitInbound(double rate, int burst) {
+        inboundRate = rate;
+        inboundBurst = burst;
+    }
+
+    // Вести историю сообщений комнат в папке dir. Что там уже было - поднимаем, номера сообщений продолжаются
+    public void openJournal(String dir) throws IOException {
+        journal = Journal.open(Path.of(dir), JOURNAL_SEGMENT_BYTES, JOURNAL_SEGMENTS, JOURNAL_FSYNC_MS, JOURNAL_QUEUE,
+                               JOURNAL_ROOMS, JOURNAL_IDLE_MS);
+        metrics.attach(journal);
+        AsyncLog.info("История сообщений: " + Path.of(dir).toAbsolutePath());
+    }
+
+    // Войти в кластер: слушать связи соседей на порту port и подключиться к peers. node - имя этого узла,
+    // у всех узлов разное. Сообщения комнат расходятся по всем узлам, ники - общие на весь кластер
+    public void joinCluster(String node, int port, List<InetSocketAddress> peers) throws IOException {
+        Cluster cluster = new Cluster(this, node, peers, CLUSTER_BACKLOG, CLUSTER_BATCH);
+        this.cluster = cluster;
+        metrics.attach(cluster);
+        cluster.start(port);
+    }
+
+    // Слушаем порт и принимаем соединения. Не возвращается, пока сервер пашет
+    public void listen(String engine, int port) {
+        AsyncLog.info("Сервер стартует, порт " + port + ", движок " + engine);
+        metrics.register(port);
+        if ( METRICS_PORT > 0 ) MetricsEndpoint.start(METRICS_PORT, metrics);
+        try { if ( !JOURNAL_DIR.isEmpty() ) openJournal(JOURNAL_DIR); }
+        catch ( IOException e ) { throw new RuntimeException(e); }
+        try { if ( CLUSTER_PORT > 0 ) joinCluster(CLUSTER_NODE.isEmpty() ? "node-" + port : CLUSTER_NODE,
+                                                  CLUSTER_PORT, peers(CLUSTER_PEERS)); }
+        catch ( IOException e ) { throw new RuntimeException(e); }
+        if ( "nio".equals(engine) ) runNio(port); // Неблокирующий движок: пара нитей-селекторов на всех клиентов
+        else runBlocking(port);                    // Классика: по нити на каждого клиента
+    }
 
+    // "host:порт,host:порт" -> адреса
+    private static List<InetSocketAddress> peers(String list) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for ( String peer : list.split(",") ) {
+            peer = peer.trim();
+            if ( peer.isEmpty() ) continue;
+            int colon = peer.lastIndexOf(':');
+            peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
 
+    // Неблокирующий движок. NioServer сам принимает соединения и сам создаёт TCPConnection,
+    // а события приходят нам в те же методы TCPConnectionListener, что и при блокирующем движке.
+    private void runNio(int port) {
+        try ( NioServer server = new NioServer(this, port, NIO_LOOPS, admission, clients::decrementAndGet) ) {
+            AsyncLog.info("Сервер пашет (nio, циклов: " + NIO_LOOPS + ")...");
+            server.run();
         }
         catch ( IOException e ) { throw new RuntimeException(e); }
     }
 
+    // Блокирующий движок: на каждое соединение TCPConnection заводит свою нить
+    private void runBlocking(int port) {
+        // Базовый класс ServerSocket умеет слушать порт и принимать входящее соединение. Слушаем по порту port.
+        // Ниже - синтаксическая конструкция try, которая, при наступлении исключения, сама закрывает ресурс
+        try ( ServerSocket serverSocket = new ServerSocket(port) ) {
+            AsyncLog.info("Сервер пашет...");
+            // Цикл приёма крутится в своей нити из фабрики: обычной или виртуальной (-Deasychat.threads=virtual)
+            Thread acceptor = ThreadFactories.of("accept-").newThread( () -> acceptLoop(serverSocket) );
+            acceptor.start();
+            acceptor.join(); // Виртуальные нити - демоны, так что главная нить ждёт, пока сервер пашет
+        }
+        catch ( IOException e ) { throw new RuntimeException(e); }
+        catch ( InterruptedException e ) { Thread.currentThread().interrupt(); }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        // Сервер слушает. На каждое пришедшее новое входящее соединение создаёт TCPConnection
+        // Кого не пустил допуск (admission), закрываем сразу: ни нити, ни TCPConnection на него не заводим
+        Admission admission = this.admission;
+        while (true) {
+            // На каждое новое соединение надо создать новый TCPConnection
+            try {
+                // Инициатор общения - клиентский Socket. Со стороны сервера он лишь воссоздаётся.
+                // Создать объект типа Socket на стороне клиента и воссоздать его с помощью ServerSocket на стороне
+                // сервера – необходимый минимум для соединения.
+                //
+                // На стороне клиента в виде экземпляра класса Socket объявляется запрос на соединение. Чтобы его
+                // принять и, в свою очередь, воссоздать клиентский Socket на стороне сервера, сервер имеет
+                // стандартный класс ServerSocket, и в нём - метод accept().
+                //
+                // ServerSocket - это, как и Socket, - стандартный класс. Но его природа совершенно иная, нежели у
+                // Socket. ServerSocket нужен лишь на этапе создания соединения. Его метод accept() ждёт, пока
+                // кто-либо захочет подсоединится к серверу. Если дождался, то возвращает объект типа Socket -
+                // воссозданный клиентский сокет. И когда сокет клиента воссоздан на стороне сервера, можно
+                // начинать двухстороннее общение.
+                //
+                // ChatServer - одновременно и чат-сервер, и TCPConnectionListener (через интерфейс)
+                // ChatServer может вызвать соединение, передавая ему:
+                // - себя, как слушателя (eventListener)
+                // - экземпляр сокета, по которому слушаем
+                //
+                // Короче...
+                // Создаём serverSocket (выше)
+                // Этот serverSocket в бесконечном цикле который слушает по порту PORT,
+                // постоянно вися в методе accept. accept ждёт соединения, и как только соединение появилось,
+                // возвращает готовый объект Socket, который пришёл от клиента и связан с этим соединением. И тут же
+                // передаём этот объект Socket и себя, как слушателя, в конструктор класса TCPConnection, создавая
+                // новый экземпляр TCP-соединения.
+                Socket socket = serverSocket.accept();
+                if ( !admission.test(socket.getInetAddress()) ) { socket.close(); continue; }
+                try { new TCPConnection( this, socket); }
+                catch ( IOException e ) { clients.decrementAndGet(); socket.close(); throw e; } // Не завелось
+                NetworkMetrics.get().accepted();
+            }
+            catch (IOException e) {
+                NetworkMetrics.get().exception(e);
+                AsyncLog.info("Исключение TCPConnection: " + e);
+            }
+        }
+    }
     // Реализация методов интерфейса TCPConnectionListener: обработка событий.
-    // Эти методы синхронизируем, чтобы нельзя было одновременно попасть в них из разных нитей.
+    // Эти методы вызываются одновременно из разных нитей, но общего замка на них больше нет:
+    // реестр соединений и указатель комнат нитебезопасные, а рассылка лишь раскладывает строку по очередям соединений.
     @Override
     // Соединение запустилось, можно работать
-    public synchronized void onConnectionReady(TCPConnection tcpConnection) {
-        // Когда готово соединение, мы его добавляем в список соединений
+    public void onConnectionReady(TCPConnection tcpConnection) {
+        // Когда готово соединение, мы его добавляем в список соединений и в указатель комнат
         connections.add(tcpConnection);
-        // Во все соединения выдаём строку о присоединении клиента.
+        Rooms.Member member = rooms.add(tcpConnection);
+        if ( inboundRate > 0 ) member.inbound = new TokenBucket(inboundRate, inboundBurst);
+        // Молчащего клиента спросим PING, а замолчавшего совсем - отключим (полуоткрытый сокет не висит вечно)
+        tcpConnection.startHeartbeat(HEARTBEAT_MS, IDLE_TIMEOUT_MS, IDLE_TEXT_TIMEOUT_MS);
+        if ( DEFAULT_ROOM.isEmpty() ) return; // Комнату клиент выберет сам
+        // В комнату по умолчанию выдаём строку о присоединении клиента.
         // Когда мы складываем TCPConnection со строкой, у экземпляра класса автоматом вызывается
         // метод toString. А он у нас в классе TCPConnection переопредделён и выдаёт интернет-адрес с портом.
-        sendToAllConnections("Клиент подключился: " + tcpConnection);
+        rooms.join(member, DEFAULT_ROOM);
+        sendToRoom(DEFAULT_ROOM, FrameType.SYSTEM, 0, "Клиент подключился: " + tcpConnection);
     }
     @Override
     // Приняли входящую строку
-    public synchronized void onReceiveString(TCPConnection tcpConnection, String value) {
-        // Приняли строчку и рассылаем всем соединениям (клиентам)
-        // Когда мы складываем TCPConnection со строкой, у экземпляра класса автоматом вызывается
-        // метод toString. А он у нас в классе TCPConnection переопредделён и выдаёт интернет-адрес с портом.
-        sendToAllConnections("Клиент " + tcpConnection + " говорит: " + value);
+    public void onReceiveString(TCPConnection tcpConnection, String value) {
+        Rooms.Member member = rooms.member(tcpConnection);
+        if ( member == null ) return; // Соединение уже отключили
+        if ( !withinRate(member) ) return;
+        // Строка с косой черты - команда: ник, комнаты, личное сообщение
+        if ( value.startsWith("/") ) { command(member, value); return; }
+        // Обычная строка уходит в текущую комнату клиента, подписанная его ником
+        String room = member.current();
+        if ( room == null ) { reply(tcpConnection, "Вы не в комнате. " + HELP); return; }
+        sendMessage(room, tcpConnection.getId(), "[" + room, "] " + member.name() + ": " + value);
     }
     @Override
     // Соединение разорвалось
-    public synchronized void onDisconnect(TCPConnection tcpConnection) {
-        // Когда соединение отвалилось, мы его изымаем из списка соединений
+    public void onDisconnect(TCPConnection tcpConnection) {
+        // Когда соединение отвалилось, мы его изымаем из списка соединений и из всех его комнат
+        clients.decrementAndGet(); // Место допуска - обратно. Зовётся ровно раз на соединение, даже не готовое
         connections.remove(tcpConnection);
-        // Во все соединения выдаём строку о том, что клиент отвалился.
-        // Когда мы складываем TCPConnection со строкой, у экземпляра класса автоматом вызывается
-        // метод toString. А он у нас в классе TCPConnection переопредделён и выдаёт интернет-адрес с портом.
-        sendToAllConnections("Клиент отвалился: " + tcpConnection);
-
+        Rooms.Member member = rooms.remove(tcpConnection);
+        if ( member == null ) return;
+        for ( Stream stream : streams.values() ) // Недопереданное обрываем: получатели узнают, что это не всё
+            if ( stream.owner == tcpConnection && streams.remove(stream.key, stream) )
+                relayStream(stream,
+                            FrameCodec.encode(FrameType.STREAM_CLOSE, stream.relayId, "отправитель отключился"));
+        Cluster cluster = this.cluster;
+        if ( cluster != null && member.nickname() != null ) cluster.offline(member.nickname());
+        // В каждую комнату клиента выдаём строку о том, что клиент отвалился
+        for ( String room : member.rooms() )
+            sendToRoom(room, FrameType.SYSTEM, 0, "Клиент отвалился: " + member.name());
     }
     @Override
     // Ошибка соединения
-    public synchronized void onException(TCPConnection tcpConnection, Exception e) {
-        // Когда случилось исключение, пишем в консоль
-        System.out.println("Исключение TCPConnection: " + e);
+    public void onException(TCPConnection tcpConnection, Exception e) {
+        // Когда случилось исключение, пишем в журнал (счётчик ошибок уже увеличило само соединение)
+        AsyncLog.info("Исключение TCPConnection: " + e);
         connections.remove(tcpConnection);
+    }
+
+    // --- БОЛЬШИЕ СООБЩЕНИЯ кусками (TCPConnection.openStream). Целиком сервер их не собирает: каждый кусок
+    // сразу уходит участникам комнаты отправителя, которые говорят кадрами, - сжатым один раз на всех, кто
+    // договорился о сжатии. Текстовым клиентам - только объявления о начале и конце. Номера потоков выбирают
+    // отправители, и у разных они совпадают, поэтому поток ищем по паре (соединение, номер отправителя),
+    // а получателям даём свой номер на весь сервер (relayIds). Между узлами кластера потоки не ходят
+    //
+    // Куски терять нельзя - пропавший кусок молча испортит файл, поэтому в очереди получателей они идут
+    // мимо DROP_OLDEST (enqueueFrames(..., true)). Чтобы очереди при этом не росли, сервер подстраивает
+    // отправителя под самого медленного получателя: как только у кого-то в очереди STREAM_HIGH_WATER
+    // сообщений, перестаём читать отправителя (pauseReading - дальше его притормозит TCP) и раз в шаг колеса
+    // таймеров смотрим, разгреблись ли очереди до STREAM_LOW_WATER. Получатель, который не разгрёбся
+    // за STREAM_STALL_MS, остальных не держит: поток ему обрываем (STREAM_CLOSE с причиной) и читаем дальше.
+    // В памяти сервера на поток - не больше STREAM_HIGH_WATER кусков на получателя, и те общие на всех
+    private record StreamKey (long connection, long stream) {}
+
+    private static final class Stream {
+        final StreamKey key;
+        final TCPConnection owner;
+        final long relayId;
+        final String room;
+        final String name;
+        final Set<TCPConnection> aborted = ConcurrentHashMap.newKeySet(); // Кому поток оборвали
+        final AtomicBoolean paused = new AtomicBoolean(); // Отправителя не читаем, ждём получателей
+        volatile long pausedAt;
+        long bytes; // Только нить чтения отправителя
+
+        Stream (StreamKey key, TCPConnection owner, long relayId, String room, String name) {
+            this.key = key;
+            this.owner = owner;
+            this.relayId = relayId;
+            this.room = room;
+            this.name = name;
+        }
+    }
+
+    @Override
+    public void onStreamOpen(TCPConnection tcpConnection, long streamId, String name) {
+        Rooms.Member member = rooms.member(tcpConnection);
+        if ( member == null || !withinRate(member) ) return;
+        String room = member.current();
+        if ( room == null ) { reply(tcpConnection, "Вы не в комнате: " + name + " никому не уйдёт"); return; }
+        StreamKey key = new StreamKey(tcpConnection.getId(), streamId);
+        Stream stream = new Stream(key, tcpConnection, relayIds.incrementAndGet(), room, name);
+        Stream old = streams.put(key, stream);
+        if ( old != null ) // Тот же номер ещё открыт: старый поток получатели должны закрыть, а не склеить с новым
+            relayStream(old, FrameCodec.encode(FrameType.STREAM_CLOSE, old.relayId, "поток открыт заново"));
+        sendToRoom(room, FrameType.SYSTEM, 0, member.name() + " передаёт " + name);
+        relayStream(stream, FrameCodec.encode(FrameType.STREAM_OPEN, stream.relayId, name));
+    }
+
+    @Override
+    public void onStreamChunk(TCPConnection tcpConnection, long streamId, ByteBuffer chunk) {
+        Stream stream = streams.get(new StreamKey(tcpConnection.getId(), streamId));
+        if ( stream == null ) return;
+        stream.bytes += chunk.remaining();
+        // Кусок живёт только внутри вызова, а в очередях - дольше: копируем его прямо в кадр
+        relayStream(stream, FrameCodec.encode(FrameType.STREAM_DATA, stream.relayId, chunk));
+        if ( lagging(stream, STREAM_HIGH_WATER) && stream.paused.compareAndSet(false, true) ) {
+            stream.pausedAt = System.nanoTime();
+            tcpConnection.pauseReading();
+            TimerWheel.get().schedule( () -> checkStream(stream), TIMER_TICK_MS );
+        }
+    }
+
+    @Override
+    public void onStreamClose(TCPConnection tcpConnection, long streamId) {
+        Stream stream = streams.remove(new StreamKey(tcpConnection.getId(), streamId));
+        if ( stream == null ) return;
+        relayStream(stream, FrameCodec.encode(FrameType.STREAM_CLOSE, stream.relayId, new byte[0]));
+        Rooms.Member member = rooms.member(tcpConnection);
+        String from = member != null ? member.name() : String.valueOf(tcpConnection);
+        sendToRoom(stream.room, FrameType.SYSTEM, 0,
+                   from + " передал " + stream.name + ": " + stream.bytes + " байт");
+    }
+
+    // Отправитель сам оборвал поток - передаём получателям его причину
+    @Override
+    public void onStreamAbort(TCPConnection tcpConnection, long streamId, String reason) {
+        Stream stream = streams.remove(new StreamKey(tcpConnection.getId(), streamId));
+        if ( stream == null ) return;
+        relayStream(stream, FrameCodec.encode(FrameType.STREAM_CLOSE, stream.relayId, reason));
+    }
 
+    // Кадр потока - всем, кто его принимает; сжимаем один раз на всех, кто договорился о сжатии
+    private void relayStream (Stream stream, ByteBuffer frame) {
+        ByteBuffer packed = null;
+        for ( TCPConnection cnct : rooms.members(stream.room) ) {
+            if ( !receives(stream, cnct) ) continue;
+            if ( !cnct.isCompressed() ) { cnct.enqueueFrames(frame, true); continue; }
+            if ( packed == null ) packed = FrameCompressor.compress(frame);
+            cnct.enqueueFrames(packed, true);
+        }
+    }
+
+    private static boolean receives (Stream stream, TCPConnection cnct) {
+        return cnct != stream.owner && cnct.isBinary() && !stream.aborted.contains(cnct);
     }
 
-    // Рассылка всем соединениям строки value
-    private void sendToAllConnections (String value) {
-        System.out.println(value); // Печатаем строчку в консоль
-/*
-        int cnt = connections.size(); // Дабы каждый раз в цикле не считать connections.size()
-        for ( int i=0; i < cnt; i++ ) connections.get(i).sendString(value); // Рассылаем строчку всем соединениям
-*/
-        for ( TCPConnection cnct : connections ) cnct.sendString(value); // Рассылаем строчку всем соединениям
+    // Есть получатель, у которого в очереди не меньше mark сообщений
+    private boolean lagging (Stream stream, int mark) {
+        for ( TCPConnection cnct : rooms.members(stream.room) )
+            if ( receives(stream, cnct) && cnct.getQueuedCount() >= mark ) return true;
+        return false;
+    }
+
+    // Нить колеса таймеров, пока отправитель на паузе. Только смотрим очереди и кладём в них кадр обрыва,
+    // не дожидаясь места (tryEnqueueFrames): колесо не ждёт ни сокетов, ни очередей. Кадр обрыва не лёг -
+    // получатель безнадёжен, отключаем его
+    private void checkStream (Stream stream) {
+        if ( streams.get(stream.key) == stream ) {
+            boolean stalled = System.nanoTime() - stream.pausedAt > TimeUnit.MILLISECONDS.toNanos(STREAM_STALL_MS);
+            for ( TCPConnection cnct : rooms.members(stream.room) ) {
+                if ( !stalled || !receives(stream, cnct) || cnct.getQueuedCount() <= STREAM_LOW_WATER ) continue;
+                stream.aborted.add(cnct); // Не успевает - обрываем поток ему одному
+                ByteBuffer frame =
+                        FrameCodec.encode(FrameType.STREAM_CLOSE, stream.relayId, "вы не успевали принимать");
+                if ( !cnct.tryEnqueueFrames(cnct.isCompressed() ? FrameCompressor.compress(frame) : frame) )
+                    cnct.disconnect();
+                AsyncLog.info("Поток " + stream.name + ": оборвали получателю " + cnct + " - не успевал принимать");
+            }
+            if ( lagging(stream, STREAM_LOW_WATER + 1) ) { // Ждём дальше
+                TimerWheel.get().schedule( () -> checkStream(stream), TIMER_TICK_MS );
+                return;
+            }
+        }
+        stream.owner.resumeReading(); // Сначала читаем, потом снимаем флаг: следующий кусок может снова встать
+        stream.paused.set(false);
+    }
+
+    // --- КОМАНДЫ. Приходят обычными строками (или кадрами TEXT), так что годятся и старому клиенту
+    private static final String HELP =
+            "Команды: /nick <ник>, /join <комната>, /leave [комната], /msg <ник> <текст>, /rooms, "
+            + "/history [сколько | since <номер> | minutes <минут>], /who <ник>";
+
+    private void command (Rooms.Member member, String line) {
+        TCPConnection tcpConnection = member.connection;
+        String[] parts = line.split(" ", 3); // Команда, аргумент и остаток строки (текст личного сообщения)
+        String arg = parts.length > 1 ? parts[1] : "";
+        switch ( parts[0] ) {
+            case "/nick" -> {
+                if ( !Rooms.isValidName(arg) ) {
+                    reply(tcpConnection, "Ник - без пробелов, до " + Rooms.MAX_NAME_LENGTH + " знаков");
+                    return;
+                }
+                String old = member.name();
+                String oldNickname = member.nickname();
+                Cluster cluster = this.cluster;
+                if ( cluster != null && cluster.nodeOf(arg) != null ) { // Занят на другом узле кластера
+                    reply(tcpConnection, "Ник " + arg + " занят");
+                    return;
+                }
+                if ( !rooms.rename(member, arg) ) { reply(tcpConnection, "Ник " + arg + " занят"); return; }
+                reply(tcpConnection, "Теперь вы " + arg);
+                if ( cluster != null && !arg.equals(oldNickname) ) {
+                    cluster.online(arg);
+                    if ( oldNickname != null ) cluster.offline(oldNickname);
+                }
+                if ( !old.equals(arg) ) for ( String room : member.rooms() )
+                    sendToRoom(room, FrameType.SYSTEM, 0, old + " теперь " + arg);
+            }
+            case "/join" -> {
+                if ( !Rooms.isValidName(arg) ) {
+                    reply(tcpConnection, "Комната - без пробелов, до " + Rooms.MAX_NAME_LENGTH + " знаков");
+                    return;
+                }
+                if ( rooms.join(member, arg) )
+                    sendToRoom(arg, FrameType.SYSTEM, 0, member.name() + " зашёл в комнату " + arg);
+                else reply(tcpConnection, "Пишем в комнату " + arg);
+            }
+            case "/leave" -> {
+                String room = arg.isEmpty() ? member.current() : arg;
+                if ( room == null || !rooms.leave(member, room) ) {
+                    reply(tcpConnection, "Вас нет в комнате " + room);
+                    return;
+                }
+                String current = member.current();
+                reply(tcpConnection, "Вы вышли из комнаты " + room + (current != null ? ", пишем в " + current : ""));
+                sendToRoom(room, FrameType.SYSTEM, 0, member.name() + " вышел из комнаты " + room);
+            }
+            case "/msg" -> {
+                TCPConnection target = rooms.find(arg);
+                Cluster cluster = this.cluster;
+                String node = target == null && cluster != null ? cluster.nodeOf(arg) : null;
+                if ( (target == null && node == null) || parts.length < 3 ) {
+                    reply(tcpConnection, "Нет такого ника: " + arg);
+                    return;
+                }
+                if ( target != null ) sendPrivate(member, target, arg, parts[2]);
+                else sendRemotePrivate(cluster, node, member, arg, parts[2]);
+            }
+            case "/who" -> {
+                Cluster cluster = this.cluster;
+                String node = cluster == null ? null : cluster.nodeOf(arg);
+                if ( rooms.find(arg) != null ) reply(tcpConnection, arg + " на этом сервере"
+                                                     + (cluster != null ? " (" + cluster.nodeName() + ")" : ""));
+                else if ( node != null ) reply(tcpConnection, arg + " на узле " + node);
+                else reply(tcpConnection, "Нет такого ника: " + arg);
+            }
+            case "/rooms" -> reply(tcpConnection, "Ваши комнаты: " + member.rooms() + ", пишем в " + member.current()
+                                                   + ". Всего комнат на сервере: " + rooms.getRoomCount());
+            case "/history" -> history(member, arg, parts.length > 2 ? parts[2] : "");
+            default -> reply(tcpConnection, HELP);
+        }
+    }
 
-        // for (TCPConnection connection : connections) connection.sendString(value); // Рассылаем строчку всем соединениям
+    // История текущей комнаты: последние count сообщений, после сообщения с номером (since) или за последние
+    // минуты (minutes). Кадры уходят клиенту прямо из отображённых в память файлов истории, без разбора
+    // и копирования (текстовому клиенту - переложенные в строки). За раз - не больше JOURNAL_REPLAY_MAX
+    private void history (Rooms.Member member, String arg, String value) {
+        TCPConnection tcpConnection = member.connection;
+        Journal journal = this.journal;
+        String room = member.current();
+        if ( journal == null ) { reply(tcpConnection, "История на этом сервере не ведётся"); return; }
+        if ( room == null ) { reply(tcpConnection, "Вы не в комнате. " + HELP); return; }
+        long last = journal.lastId(room);
+        long from;
+        try {
+            if ( "since".equals(arg) ) from = Long.parseLong(value) + 1;
+            else if ( "minutes".equals(arg) )
+                from = journal.firstIdSince(room, System.currentTimeMillis() - Long.parseLong(value) * 60_000);
+            else from = last + 1 - (arg.isEmpty() ? 20 : Long.parseLong(arg));
+        } catch ( NumberFormatException e ) {
+            reply(tcpConnection, HELP);
+            return;
+        }
+        from = Math.max(from, journal.firstId(room));
+        long to = Math.min(last + 1, from + JOURNAL_REPLAY_MAX);
+        if ( last == 0 || from >= to ) { reply(tcpConnection, "В комнате " + room + " нет таких сообщений"); return; }
+        for ( ByteBuffer frames : journal.read(room, from, to) ) tcpConnection.enqueueFrames(frames);
+        reply(tcpConnection, "История комнаты " + room + ": #" + from + "-#" + (to - 1)
+                             + (to <= last ? ", дальше - /history since " + (to - 1) : ""));
+    }
+
+    // Не больше inboundRate сообщений (и команд) в секунду от клиента. Лишние выкидываем; предупреждаем один раз
+    // за серию, чтобы сам ответ не стал рассылкой на каждое лишнее сообщение. Нить чтения соединения
+    private boolean withinRate (Rooms.Member member) {
+        TokenBucket bucket = member.inbound;
+        if ( bucket == null || bucket.tryAcquire() ) { member.throttled = false; return true; }
+        metrics.throttled();
+        if ( !member.throttled ) {
+            member.throttled = true;
+            reply(member.connection, "Слишком часто пишете: лишние сообщения не доставлены");
+        }
+        return false;
+    }
+
+    // Служебный ответ одному клиенту
+    private void reply (TCPConnection tcpConnection, String value) {
+        tcpConnection.enqueueFrame(BroadcastFrame.of(FrameType.SYSTEM, 0, value));
+    }
+
+    // Личное сообщение: адресат находится по нику за одно обращение к указателю, копия - отправителю.
+    // В журнал текст личных сообщений не пишем
+    private void sendPrivate (Rooms.Member from, TCPConnection target, String nickname, String value) {
+        long start = System.nanoTime();
+        BroadcastFrame frame = BroadcastFrame.of(FrameType.TEXT, from.connection.getId(),
+                                                 "[лично " + from.name() + " → " + nickname + "] " + value);
+        target.enqueueFrame(frame);
+        if ( target != from.connection ) from.connection.enqueueFrame(frame);
+        metrics.privateMessage(System.nanoTime() - start);
+    }
+
+    // Личное сообщение адресату на другом узле: текст уходит узлу адресата, копия - отправителю
+    private void sendRemotePrivate (Cluster cluster, String node, Rooms.Member from, String nickname, String value) {
+        long start = System.nanoTime();
+        if ( !cluster.relayPrivate(node, from.connection.getId(), from.name(), nickname, value) ) {
+            reply(from.connection, "Нет связи с узлом " + node);
+            return;
+        }
+        from.connection.enqueueFrame(BroadcastFrame.of(FrameType.TEXT, from.connection.getId(),
+                                                       "[лично " + from.name() + " → " + nickname + "] " + value));
+        metrics.privateMessage(System.nanoTime() - start);
+    }
+
+    // Рассылка участникам комнаты room строки value.
+    // Строку не пишем в сокеты сами, а ставим в очередь каждого соединения: сколько бы ни тормозил
+    // самый медленный клиент, рассылка стоит одинаково. Что делать с отстающим - см. SlowConsumerPolicy.
+    // Цена сообщения зависит только от размера комнаты, а не от того, сколько всего клиентов на сервере.
+    // В UTF-8 строку кодируем один раз: все соединения получают один и тот же кадр BroadcastFrame.
+    // Двоичным клиентам кадр уходит с типом (сообщение или служебное объявление) и номером отправителя,
+    // текстовым - просто строкой.
+    // Время рассылки (кодирование, номер в истории и раскладка по очередям) идёт в гистограмму метрик.
+    private void sendToRoom (String room, FrameType type, long senderId, String value) {
+        long start = System.nanoTime();
+        deliver(room, BroadcastFrame.of(type, senderId, value), start);
+        Cluster cluster = this.cluster;
+        if ( cluster != null && type == FrameType.SYSTEM ) cluster.relaySystem(room, value);
+    }
+
+    // Сообщение чата head + body. Если ведём историю - сообщение получает номер ("[комната #номер] ник: текст")
+    // и попадает в историю; пишет её своя нить, рассылка записи не ждёт
+    private void sendMessage (String room, long senderId, String head, String body) {
+        Cluster cluster = this.cluster;
+        if ( cluster != null ) cluster.relayMessage(room, senderId, head, body);
+        stampAndDeliver(room, senderId, head, body);
+    }
+
+    private void stampAndDeliver (String room, long senderId, String head, String body) {
+        long start = System.nanoTime();
+        Journal journal = this.journal;
+        BroadcastFrame frame = journal == null ? BroadcastFrame.of(FrameType.TEXT, senderId, head + body)
+                : journal.append(room, id -> BroadcastFrame.of(FrameType.TEXT, senderId,
+                                                               id > 0 ? head + " #" + id + body : head + body));
+        deliver(room, frame, start);
+    }
+
+    // --- ОТ СОСЕДЕЙ ПО КЛАСТЕРУ (нити чтения связей). Раздаём своим клиентам и дальше не пересылаем.
+    // Номер в истории у пересланного сообщения - наш, в каждом узле своя нумерация
+    Set<String> localNicknames () { return rooms.nicknames(); }
+
+    void onRelayedMessage (String room, long senderId, String head, String body) {
+        stampAndDeliver(room, senderId, head, body);
+    }
+
+    void onRelayedSystem (String room, String value) {
+        deliver(room, BroadcastFrame.of(FrameType.SYSTEM, 0, value), System.nanoTime());
+    }
+
+    void onRelayedPrivate (long senderId, String from, String nickname, String value) {
+        TCPConnection target = rooms.find(nickname);
+        if ( target == null ) return; // Адресат успел уйти
+        target.enqueueFrame(BroadcastFrame.of(FrameType.TEXT, senderId,
+                                              "[лично " + from + " → " + nickname + "] " + value));
+    }
+
+    private void deliver (String room, BroadcastFrame frame, long start) {
+        AsyncLog.info(frame.text()); // Пишем строчку в журнал: в консоль её выведет нить журнала, рассылку не ждём
+        int recipients = 0;
+        for ( TCPConnection cnct : rooms.members(room) ) { // Рассылаем строчку комнате
+            cnct.enqueueFrame(frame);
+            recipients++;
+        }
+        metrics.broadcast(recipients, System.nanoTime() - start);
     }
 }
@@ -0,0 +1,319 @@
+package ru.lakin.chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.lakin.network.*;
+
+// Кластер из нескольких ChatServer: у каждого узла свои клиенты, а комнаты и ники - общие.
+// Узлы связаны каждый с каждым. К каждому соседу у нас своя исходящая связь (ClusterLink), а его связь к нам
+// мы принимаем на порту кластера. Всё, что узел рассылает своим клиентам сам (сообщения и объявления комнат),
+// он пересылает всем соседям, а личное сообщение - только узлу адресата. Соседи раздают пересланное своим
+// клиентам и дальше не пересылают: при связях "каждый с каждым" одного шага хватает, и петель нет.
+//
+// Повторы. Кадры от каждого узла пронумерованы подряд (номер в кадре - вместо отправителя). После обрыва связи
+// сосед досылает всё, что могло не дойти, - часть этого мы уже видели. Для каждого узла-источника помним
+// последний принятый номер и всё, что не новее, выкидываем. Узел перезапустился - у него новая эпоха
+// (время запуска), номера начинаются заново.
+// Досылка - только тому, кто уже принимал от этой эпохи соседа. Если мы соседа в этой эпохе ещё не видели
+// (перезапустились сами, он перезапустился или знакомимся впервые), отвечаем FROM_NOW: досылать не надо,
+// слать с текущего кадра. Иначе сосед вывалил бы нам всё своё кольцо - старые сообщения ушли бы клиентам
+// и в журнал как новые.
+//
+// Порт кластера принимает связи только с адресов соседей из списка peers (пароля нет - это забота сети).
+// Сосед шлёт нам кадры, разобранные нами же, но проверяем их всё равно: кривой кадр (обрезанный, с длиной
+// больше самого кадра) - обрываем связь с этим соседом, он переподключится и дошлёт.
+//
+// Присутствие: какой ник на каком узле. Узел сообщает соседям о появлении и уходе своих ников, а после каждого
+// (пере)подключения - весь свой список заново. Связь от соседа оборвалась - его ники считаем ушедшими.
+final class Cluster implements TCPConnectionListener {
+    // Что внутри кадра RELAY: первый байт нагрузки
+    private static final int MESSAGE = 1, SYSTEM = 2, PRIVATE = 3;
+    // Что внутри кадра PRESENCE
+    private static final int OFFLINE = 0, ONLINE = 1, RESET = 2;
+    // Ответ на знакомство вместо последнего номера: от этой эпохи соседа мы ничего не видели, досылать не надо
+    static final long FROM_NOW = -1;
+
+    private final ChatServer server;
+    private final String nodeName;
+    private final long epoch = System.currentTimeMillis();
+    private final List<ClusterLink> links = new ArrayList<>();
+    private final Set<InetAddress> peerAddresses = new HashSet<>(); // С каких адресов принимаем связи
+    private final ConcurrentHashMap<String, Origin> origins = new ConcurrentHashMap<>();     // Имя узла -> что от него видели
+    private final ConcurrentHashMap<TCPConnection, Origin> inbound = new ConcurrentHashMap<>(); // Входящая связь -> чья
+    private final ConcurrentHashMap<String, String> presence = new ConcurrentHashMap<>();    // Чужой ник -> имя узла
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder writes = new LongAdder(); // Записей в сокеты связей: relayedOut / writes - кадров за раз
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private NioServer acceptor;
+
+    Cluster (ChatServer server, String nodeName, List<InetSocketAddress> peers, int backlog, int batch) {
+        this.server = server;
+        this.nodeName = nodeName;
+        for ( InetSocketAddress peer : peers ) {
+            links.add(new ClusterLink(this, peer, backlog, batch));
+            try {
+                for ( InetAddress address : InetAddress.getAllByName(peer.getHostString()) ) peerAddresses.add(address);
+            } catch ( UnknownHostException e ) {
+                AsyncLog.info("Кластер: адрес соседа " + peer + " не найден, связи с него не примем: " + e);
+            }
+        }
+    }
+
+    // Слушаем порт кластера и подключаемся к соседям. Связи поднимаются сами, в своих нитях
+    void start (int port) throws IOException {
+        acceptor = new NioServer(this, port, 1, this::isPeer, () -> {});
+        Thread thread = new Thread( () -> {
+            try { acceptor.run(); }
+            catch ( IOException e ) { AsyncLog.info("Кластер: приём связей остановлен: " + e); }
+        }, "cluster-accept");
+        thread.setDaemon(true);
+        thread.start();
+        for ( ClusterLink link : links ) link.start();
+        AsyncLog.info("Кластер: узел " + nodeName + ", порт " + port + ", соседей " + links.size());
+    }
+
+    // Допуск на порт кластера: только соседи. Зовёт нить приёма
+    private boolean isPeer (InetAddress address) {
+        if ( peerAddresses.contains(address) ) return true;
+        AsyncLog.info("Кластер: не пустили " + address + ": не сосед");
+        return false;
+    }
+
+    String nodeName () { return nodeName; }
+    long epoch () { return epoch; }
+
+    // --- ОТ НАС СОСЕДЯМ. Из нитей рассылки: только кодируем и кладём в кольца связей
+    void relayMessage (String room, long senderId, String head, String body) {
+        broadcast(FrameType.RELAY, encode(MESSAGE, senderId, room, head, body));
+    }
+
+    void relaySystem (String room, String text) {
+        broadcast(FrameType.RELAY, encode(SYSTEM, 0, room, text, ""));
+    }
+
+    // Личное сообщение - только узлу, где сидит адресат. false - такого узла сейчас нет на связи
+    boolean relayPrivate (String node, long senderId, String from, String nickname, String text) {
+        for ( ClusterLink link : links ) {
+            if ( !node.equals(link.peerName()) ) continue;
+            link.send(FrameType.RELAY, encode(PRIVATE, senderId, nickname, from, text));
+            return true;
+        }
+        return false;
+    }
+
+    void online (String nickname) { broadcast(FrameType.PRESENCE, presenceOp(ONLINE, nickname)); }
+    void offline (String nickname) { broadcast(FrameType.PRESENCE, presenceOp(OFFLINE, nickname)); }
+
+    // На каком узле ник (null - ни на каком из соседей)
+    String nodeOf (String nickname) { return presence.get(nickname); }
+
+    private void broadcast (FrameType type, byte[] payload) {
+        for ( ClusterLink link : links ) link.send(type, payload);
+    }
+
+    // Связь с соседом поднялась (и досылка уже в кольце): следом - весь наш список ников
+    void linkUp (ClusterLink link) {
+        link.send(FrameType.PRESENCE, presenceOp(RESET, ""));
+        for ( String nickname : server.localNicknames() ) link.send(FrameType.PRESENCE, presenceOp(ONLINE, nickname));
+    }
+
+    // Связь отдала в сокет пачку из count кадров
+    void relayed (int count) {
+        relayedOut.add(count);
+        writes.increment();
+    }
+
+    // --- ОТ СОСЕДЕЙ НАМ: события входящих связей (нити чтения этих соединений)
+    // Пропавшего без FIN соседа рвём по молчанию, как и клиентов: иначе его связь висела бы вечно
+    @Override
+    public void onConnectionReady (TCPConnection tcpConnection) {
+        tcpConnection.startHeartbeat(NetworkEnv.HEARTBEAT_MS, NetworkEnv.IDLE_TIMEOUT_MS, 0);
+    }
+
+    @Override
+    public void onReceiveString (TCPConnection tcpConnection, String value) {} // Соседи говорят только кадрами
+
+    @Override
+    public void onReceiveFrame (TCPConnection tcpConnection, Frame frame) {
+        if ( frame.type() == FrameType.NODE ) { hello(tcpConnection, frame); return; }
+        Origin origin = inbound.get(tcpConnection);
+        if ( origin == null || (frame.type() != FrameType.RELAY && frame.type() != FrameType.PRESENCE) ) return;
+        origin.lock.lock(); // После переподключения старое соединение может ещё что-то дочитывать
+        try {
+            long seq = frame.senderId();
+            if ( seq <= origin.lastSeq ) { duplicates.increment(); return; }
+            // Первый кадр после FROM_NOW - с какого номера сосед начал, мы не знаем, пропуском не считаем
+            if ( origin.lastSeq != FROM_NOW && seq > origin.lastSeq + 1 ) gaps.add(seq - origin.lastSeq - 1);
+            origin.lastSeq = seq;
+        } finally {
+            origin.lock.unlock();
+        }
+        ByteBuffer payload = ByteBuffer.wrap(frame.copyPayload());
+        try {
+            if ( frame.type() == FrameType.PRESENCE ) presence(origin, payload);
+            else relay(payload);
+        } catch ( IOException e ) {
+            malformed.increment();
+            AsyncLog.info("Кластер: кривой кадр от узла " + origin.name + ", обрываем связь: " + e.getMessage());
+            tcpConnection.disconnect();
+        }
+    }
+
+    // Сосед знакомится: имя и эпоха. Отвечаем своим именем и последним номером, который от него видели,
+    // а если от этой эпохи ничего не видели - FROM_NOW
+    private void hello (TCPConnection tcpConnection, Frame frame) {
+        String name = frame.payloadAsString();
+        Origin origin = origins.computeIfAbsent(name, Origin::new);
+        long lastSeq;
+        origin.lock.lock();
+        try {
+            if ( origin.epoch != frame.senderId() ) { // Новый для нас сосед или он перезапустился
+                origin.epoch = frame.senderId();
+                origin.lastSeq = FROM_NOW;
+            }
+            origin.connection = tcpConnection;
+            lastSeq = origin.lastSeq;
+        } finally {
+            origin.lock.unlock();
+        }
+        inbound.put(tcpConnection, origin);
+        byte[] reply = nodeName.getBytes(StandardCharsets.UTF_8);
+        tcpConnection.sendFrames(new ByteBuffer[] { FrameCodec.encode(FrameType.NODE, lastSeq, reply) }, 1);
+    }
+
+    private void relay (ByteBuffer payload) throws IOException {
+        relayedIn.increment();
+        if ( !payload.hasRemaining() ) throw new IOException("Пустой кадр");
+        int kind = payload.get();
+        long senderId = getVarint(payload);
+        String target = getString(payload), first = getString(payload), second = getString(payload);
+        switch ( kind ) {
+            case MESSAGE -> server.onRelayedMessage(target, senderId, first, second);
+            case SYSTEM -> server.onRelayedSystem(target, first);
+            case PRIVATE -> server.onRelayedPrivate(senderId, first, target, second);
+            default -> { } // Новый вид от узла поновее - пропускаем
+        }
+    }
+
+    private void presence (Origin origin, ByteBuffer payload) throws IOException {
+        if ( !payload.hasRemaining() ) throw new IOException("Пустой кадр");
+        int op = payload.get();
+        String nickname = new String(payload.array(), payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+        switch ( op ) {
+            case ONLINE -> presence.put(nickname, origin.name);
+            case OFFLINE -> presence.remove(nickname, origin.name);
+            case RESET -> presence.values().removeIf(origin.name::equals);
+            default -> { }
+        }
+    }
+
+    @Override
+    public void onDisconnect (TCPConnection tcpConnection) {
+        Origin origin = inbound.remove(tcpConnection);
+        if ( origin == null ) return;
+        origin.lock.lock();
+        try { if ( origin.connection != tcpConnection ) return; } // Уже переподключился
+        finally { origin.lock.unlock(); }
+        presence.values().removeIf(origin.name::equals);
+        AsyncLog.info("Кластер: узел " + origin.name + " отключился");
+    }
+
+    @Override
+    public void onException (TCPConnection tcpConnection, Exception e) {
+        AsyncLog.info("Кластер: ошибка входящей связи: " + e);
+    }
+
+    // --- КОДИРОВАНИЕ нагрузки: вид, отправитель (varint) и строки (длина varint + UTF-8)
+    private static byte[] encode (int kind, long senderId, String... fields) {
+        byte[][] bytes = new byte[fields.length][];
+        int size = 1 + FrameCodec.varintSize(senderId);
+        for ( int i = 0; i < fields.length; i++ ) {
+            bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            size += FrameCodec.varintSize(bytes[i].length) + bytes[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put((byte) kind);
+        FrameCodec.putVarint(out, senderId);
+        for ( byte[] field : bytes ) {
+            FrameCodec.putVarint(out, field.length);
+            out.put(field);
+        }
+        return out.array();
+    }
+
+    private static byte[] presenceOp (int op, String nickname) {
+        byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[1 + name.length];
+        out[0] = (byte) op;
+        System.arraycopy(name, 0, out, 1, name.length);
+        return out;
+    }
+
+    // Разбор - с проверкой границ: кадр пришёл из сети
+    private static long getVarint (ByteBuffer in) throws IOException {
+        long value = 0;
+        for ( int shift = 0; ; shift += 7 ) {
+            if ( !in.hasRemaining() ) throw new IOException("Обрезанный varint");
+            if ( shift >= 64 ) throw new IOException("Слишком длинный varint");
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ( b >= 0 ) return value;
+        }
+    }
+
+    private static String getString (ByteBuffer in) throws IOException {
+        long length = getVarint(in);
+        if ( length < 0 || length > in.remaining() )
+            throw new IOException("Строка длиной " + length + ", а в кадре осталось " + in.remaining());
+        String value = new String(in.array(), in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return value;
+    }
+
+    // --- МЕТРИКИ
+    long getRelayedOut () { return relayedOut.sum(); }
+    long getWrites () { return writes.sum(); }
+    long getRelayedIn () { return relayedIn.sum(); }
+    long getDuplicates () { return duplicates.sum(); }
+    long getGaps () { return gaps.sum(); }
+    long getMalformed () { return malformed.sum(); }
+    long getOverflow () {
+        long total = 0;
+        for ( ClusterLink link : links ) total += link.getOverflow();
+        return total;
+    }
+    int getLinksUp () {
+        int up = 0;
+        for ( ClusterLink link : links ) if ( link.isUp() ) up++;
+        return up;
+    }
+    int getRemoteNicknames () { return presence.size(); }
+    Map<String, String> presence () { return presence; }
+
+    // Что мы видели от одного узла-источника. Под lock
+    private static final class Origin {
+        final String name;
+        final ReentrantLock lock = new ReentrantLock();
+        long epoch;
+        long lastSeq = FROM_NOW; // FROM_NOW - от этой эпохи ещё ничего не приняли
+        TCPConnection connection; // Текущая входящая связь от этого узла
+
+        Origin (String name) { this.name = name; }
+    }
+}
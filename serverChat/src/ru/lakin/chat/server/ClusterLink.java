@@ -0,0 +1,202 @@
+package ru.lakin.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.lakin.network.*;
+
+// Связь узла с одним соседом по кластеру - в одну сторону, от нас к нему (обратно он ходит своей связью).
+// Обычный TCPConnection в двоичном режиме, на своей нити: она подключается (и переподключается после обрыва),
+// знакомится и пересылает кадры пачками - всё, что накопилось с прошлой записи, одной записью в сокет.
+//
+// Рассылка на связь не ждёт: send() лишь кладёт кадр в кольцо и будит нить связи. Кольцо - это и очередь,
+// и запас для досылки: кадры нумеруются подряд, сосед при знакомстве говорит, какой номер от нас видел
+// последним, и мы досылаем с него (лишнее сосед выкинет по номеру). Если связь лежит долго и кольцо
+// переполнилось, старые кадры пропадают - сосед увидит пропуск номеров. Сосед, который нас в этой эпохе
+// ещё не видел, отвечает Cluster.FROM_NOW - ему шлём только новое.
+final class ClusterLink implements TCPConnectionListener {
+    private static final long RECONNECT_MS = 1000;
+
+    private final Cluster cluster;
+    private final InetSocketAddress address;
+    private final ByteBuffer[] ring;   // Кадр с номером seq лежит в ring[seq % ring.length]
+    private final ByteBuffer[] batch;  // Пачка на запись, только нить связи
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition(); // Есть что слать, сосед ответил или связь оборвалась
+    // Всё ниже - под lock
+    private long nextSeq = 1;          // Номер следующего кадра
+    private long sentSeq;              // Последний отданный в сокет
+    private long overflow;             // Сколько кадров вытеснено из кольца неотправленными
+    private TCPConnection connection;  // Текущее соединение, null - нет связи
+    private boolean ready;             // Сосед ответил на знакомство - можно слать
+    private volatile String peerName;  // Имя соседа, узнаём при знакомстве
+    private volatile boolean running = true;
+
+    ClusterLink (Cluster cluster, InetSocketAddress address, int backlog, int batchSize) {
+        this.cluster = cluster;
+        this.address = address;
+        this.ring = new ByteBuffer[Math.max(16, backlog)];
+        this.batch = new ByteBuffer[Math.max(1, batchSize)];
+    }
+
+    void start () {
+        Thread thread = new Thread(this::run, "cluster-link-" + address.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Кадр соседу. Из любой нити, не ждёт ни сокета, ни соседа
+    void send (FrameType type, byte[] payload) {
+        lock.lock();
+        try {
+            long seq = nextSeq++;
+            if ( seq - sentSeq > ring.length ) { // Затираем ещё не отправленный: он пропал, сосед увидит пропуск
+                overflow++;
+                sentSeq = seq - ring.length;
+            }
+            ring[(int) (seq % ring.length)] = FrameCodec.encode(type, seq, payload).asReadOnlyBuffer();
+            if ( ready && seq == sentSeq + 1 ) changed.signal(); // Нить связи спит, только если ей было нечего слать
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String peerName () { return peerName; }
+
+    boolean isUp () {
+        lock.lock();
+        try { return ready; }
+        finally { lock.unlock(); }
+    }
+
+    long getOverflow () {
+        lock.lock();
+        try { return overflow; }
+        finally { lock.unlock(); }
+    }
+
+    TCPConnection connection () {
+        lock.lock();
+        try { return connection; }
+        finally { lock.unlock(); }
+    }
+
+    void stop () {
+        running = false;
+        TCPConnection current = connection();
+        if ( current != null ) current.disconnect();
+    }
+
+    // --- НИТЬ СВЯЗИ: подключиться, познакомиться, пересылать; оборвалось - через секунду снова
+    private void run () {
+        while ( running ) {
+            TCPConnection current = null;
+            try {
+                current = new TCPConnection(this, address.getHostString(), address.getPort());
+                if ( !current.requestBinary(NetworkEnv.HANDSHAKE_TIMEOUT_MS) )
+                    throw new IOException("Сосед не говорит кадрами");
+                // Сосед пропал без FIN - узнаем по молчанию в ответ на PING, а не будем вечно копить ему кольцо
+                current.startHeartbeat(NetworkEnv.HEARTBEAT_MS, NetworkEnv.IDLE_TIMEOUT_MS, 0);
+                setConnection(current);
+                byte[] name = cluster.nodeName().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer hello = FrameCodec.encode(FrameType.NODE, cluster.epoch(), name);
+                current.sendFrames(new ByteBuffer[] { hello }, 1);
+                pump(current);
+            } catch ( IOException e ) {
+                AsyncLog.info("Кластер: нет связи с " + address + ": " + e);
+            } catch ( InterruptedException e ) {
+                return;
+            } finally {
+                if ( current != null ) current.disconnect();
+                lock.lock();
+                try { connection = null; ready = false; }
+                finally { lock.unlock(); }
+            }
+            try { Thread.sleep(RECONNECT_MS); }
+            catch ( InterruptedException e ) { return; }
+        }
+    }
+
+    private void setConnection (TCPConnection current) {
+        lock.lock();
+        try { connection = current; }
+        finally { lock.unlock(); }
+    }
+
+    // Ждём ответа на знакомство, потом шлём пачками, пока связь жива
+    private void pump (TCPConnection current) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + NetworkEnv.HANDSHAKE_TIMEOUT_MS;
+        while ( true ) {
+            int count = 0;
+            lock.lock();
+            try {
+                while ( connection == current && (!ready || sentSeq + 1 == nextSeq) ) {
+                    if ( ready ) { changed.await(); continue; }
+                    long wait = deadline - System.currentTimeMillis();
+                    if ( wait <= 0 ) throw new IOException("Сосед не ответил на знакомство");
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                }
+                if ( connection != current ) return; // Связь оборвалась
+                while ( count < batch.length && sentSeq + 1 < nextSeq )
+                    batch[count++] = ring[(int) (++sentSeq % ring.length)].duplicate();
+            } finally {
+                lock.unlock();
+            }
+            current.sendFrames(batch, count); // Сокет ждём уже без замка: send() тем временем копит кольцо
+            Arrays.fill(batch, 0, count, null);
+            cluster.relayed(count);
+        }
+    }
+
+    // --- СОБЫТИЯ СОЕДИНЕНИЯ СО СОСЕДОМ (нить чтения соединения)
+    @Override
+    public void onConnectionReady (TCPConnection tcpConnection) {}
+
+    @Override
+    public void onReceiveString (TCPConnection tcpConnection, String value) {}
+
+    // Ответ на знакомство: имя соседа и последний номер, который он от нас видел. С него и досылаем;
+    // FROM_NOW - не досылаем ничего
+    @Override
+    public void onReceiveFrame (TCPConnection tcpConnection, Frame frame) {
+        if ( frame.type() != FrameType.NODE ) return;
+        peerName = frame.payloadAsString();
+        lock.lock();
+        try {
+            if ( tcpConnection != connection ) return;
+            long oldest = nextSeq - 1 - ring.length; // Старее этого в кольце уже ничего нет
+            if ( frame.senderId() == Cluster.FROM_NOW ) sentSeq = nextSeq - 1;
+            else sentSeq = Math.min(nextSeq - 1, Math.max(frame.senderId(), Math.max(0, oldest)));
+            ready = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        AsyncLog.info("Кластер: связь с узлом " + peerName + " (" + address + ")");
+        cluster.linkUp(this); // Свежий список наших ников - следом за досылкой
+    }
+
+    @Override
+    public void onDisconnect (TCPConnection tcpConnection) {
+        lock.lock();
+        try {
+            if ( tcpConnection != connection ) return;
+            connection = null;
+            ready = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onException (TCPConnection tcpConnection, Exception e) {
+        AsyncLog.info("Кластер: ошибка связи с " + address + ": " + e);
+    }
+}
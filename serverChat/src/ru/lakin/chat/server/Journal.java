@@ -0,0 +1,374 @@
+package ru.lakin.chat.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+import ru.lakin.network.*;
+
+// Журнал сообщений комнат: история, которую можно отдать клиенту после подключения (/history).
+// У каждой комнаты своя папка (имя комнаты в шестнадцатеричном UTF-8 - в имени комнаты может быть что угодно),
+// в ней сегменты JournalSegment: файлы, отображённые в память, в которые только дописываем. Старые сегменты
+// сверх maxSegments удаляем.
+//
+// Рассылку журнал не задерживает. На её пути - только номер сообщения (счётчик под замком комнаты,
+// чтобы номера шли в очередь по порядку) и постановка в очередь. Пишет в файлы своя нить, пачками:
+// берёт из очереди всё, что накопилось, дописывает в отображённую память и сбрасывает на диск одним
+// force() на сегмент не чаще раза в fsyncMs (групповая фиксация). Процесс упал - записанное в отображённую
+// память всё равно попадёт на диск (это страницы ядра); теряется только то, что ещё ждало в очереди.
+// Очередь ограничена: переполнилась - сообщение уходит без номера и в журнал не попадает (считаем в dropped).
+//
+// Комнату может завести любой клиент (/join), поэтому журнал держит не больше maxRooms комнат: сообщения
+// комнат сверх этого уходят без номера, как при полной очереди. Открыт журнал комнаты (отображённые сегменты
+// и файл указателя) только пока ей пользуются: комнату, в которую idleMs не писали и из которой не читали,
+// нить записи закрывает, а при следующем обращении журнал комнаты снова поднимается с диска.
+final class Journal {
+    private static final int MAX_BATCH = 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long fsyncNanos;
+    private final int capacity;
+    private final int maxRooms;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String, RoomLog> rooms = new ConcurrentHashMap<>(); // Открытые
+    private final Set<String> stored = ConcurrentHashMap.newKeySet(); // Все комнаты журнала, и закрытые
+    private final AtomicInteger storedCount = new AtomicInteger(); // Места под комнаты, вместе с заводимыми сейчас
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(); // Сколько ждёт записи; граница - capacity
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram fsync = new LatencyHistogram();
+
+    private record Entry (RoomLog log, long id, long timeMillis, BroadcastFrame frame) {}
+
+    private Journal (Path dir, int segmentBytes, int maxSegments, long fsyncMillis, int capacity, int maxRooms,
+                     long idleMillis) {
+        this.dir = dir;
+        // Кадр любого допустимого размера должен влезать в пустой сегмент
+        this.segmentBytes = Math.max(segmentBytes, FrameCodec.MAX_FRAME_LENGTH + FrameCodec.MAX_VARINT_LENGTH);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.capacity = capacity;
+        this.maxRooms = maxRooms;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleMillis));
+    }
+
+    // Открываем журнал в папке dir: запоминаем, какие комнаты есть на диске, и запускаем нить записи.
+    // Сами комнаты поднимаем с диска при первом обращении
+    static Journal open (Path dir, int segmentBytes, int maxSegments, long fsyncMillis, int capacity, int maxRooms,
+                         long idleMillis) throws IOException {
+        Journal journal = new Journal(dir, segmentBytes, maxSegments, fsyncMillis, capacity, maxRooms, idleMillis);
+        Files.createDirectories(dir);
+        try ( Stream<Path> roomDirs = Files.list(dir) ) {
+            for ( Path roomDir : (Iterable<Path>) roomDirs.filter(Files::isDirectory)::iterator ) {
+                byte[] name = HexFormat.of().parseHex(roomDir.getFileName().toString());
+                journal.stored.add(new String(name, StandardCharsets.UTF_8));
+            }
+        } catch ( IllegalArgumentException e ) {
+            throw new IOException("В папке журнала чужая папка: " + e.getMessage(), e);
+        }
+        journal.storedCount.set(journal.stored.size());
+        Thread writer = new Thread(journal::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return journal;
+    }
+
+    // --- ЗАПИСЬ. Из нити рассылки: даём сообщению номер, build собирает по номеру кадр, кадр - в очередь записи.
+    // Вернёт кадр для рассылки. Очередь полна или комнат уже maxRooms - кадр без номера (build получит 0),
+    // в журнал он не попадёт
+    BroadcastFrame append (String room, LongFunction<BroadcastFrame> build) {
+        if ( pending.incrementAndGet() > capacity ) {
+            pending.decrementAndGet();
+            dropped.increment();
+            return build.apply(0);
+        }
+        while ( true ) {
+            RoomLog log = open(room, true);
+            if ( log == null ) {
+                pending.decrementAndGet();
+                dropped.increment();
+                return build.apply(0);
+            }
+            log.lock.lock(); // Номера и порядок в очереди совпадают
+            try {
+                if ( log.closed ) continue; // Нить записи как раз закрыла комнату за простоем - открываем заново
+                long id = log.nextId++;
+                BroadcastFrame frame = build.apply(id);
+                log.queued.incrementAndGet();
+                log.lastUsed = System.nanoTime();
+                queue.add(new Entry(log, id, System.currentTimeMillis(), frame));
+                return frame;
+            } finally {
+                log.lock.unlock();
+            }
+        }
+    }
+
+    // Открытый журнал комнаты; закрытый - поднимаем с диска. Комнаты нет: create - заводим, если удалось занять
+    // место (их меньше maxRooms), иначе null. В stored комната попадает, только когда её журнал открылся
+    private RoomLog open (String room, boolean create) {
+        RoomLog log = rooms.get(room);
+        if ( log != null ) return log;
+        if ( !create && !stored.contains(room) ) return null;
+        try {
+            // Лямбда computeIfAbsent идёт по разу на комнату: одну комнату два раза не заведём
+            return rooms.computeIfAbsent(room, name -> {
+                boolean fresh = !stored.contains(name);
+                if ( fresh && !reserveRoom() ) return null;
+                try {
+                    RoomLog opened = recover(name);
+                    stored.add(name);
+                    return opened;
+                } catch ( IOException e ) {
+                    if ( fresh ) storedCount.decrementAndGet(); // Место не пропадает
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch ( UncheckedIOException e ) {
+            failed.increment();
+            AsyncLog.error("Журнал: комнату " + room + " не открыть: " + e.getCause(), e.getCause());
+            return null;
+        }
+    }
+
+    // Занимаем место под новую комнату: прибавляем, только пока меньше maxRooms
+    private boolean reserveRoom () {
+        while ( true ) {
+            int count = storedCount.get();
+            if ( count >= maxRooms ) return false;
+            if ( storedCount.compareAndSet(count, count + 1) ) return true;
+        }
+    }
+
+    // Нить записи: пачка из очереди - в отображённую память, потом групповой сброс на диск
+    private void writeLoop () {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        Set<JournalSegment> dirty = new HashSet<>();
+        long lastForce = System.nanoTime() - fsyncNanos;
+        long lastSweep = System.nanoTime();
+        while ( true ) {
+            try {
+                // Ждём сообщений, но не дольше срока сброса на диск (если есть что сбрасывать) и обхода простоя
+                long wait = idleNanos - (System.nanoTime() - lastSweep);
+                if ( !dirty.isEmpty() ) wait = Math.min(wait, fsyncNanos - (System.nanoTime() - lastForce));
+                Entry first = queue.poll(wait, TimeUnit.NANOSECONDS);
+                if ( first != null ) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for ( Entry entry : batch ) write(entry, dirty);
+                    pending.addAndGet(-batch.size());
+                    batch.clear();
+                }
+                if ( !dirty.isEmpty() && System.nanoTime() - lastForce >= fsyncNanos ) {
+                    for ( JournalSegment segment : dirty ) force(segment);
+                    dirty.clear();
+                    lastForce = System.nanoTime();
+                }
+                if ( System.nanoTime() - lastSweep >= idleNanos ) {
+                    closeIdle(dirty);
+                    lastSweep = System.nanoTime();
+                }
+            } catch ( InterruptedException e ) {
+                return;
+            }
+        }
+    }
+
+    private void write (Entry entry, Set<JournalSegment> dirty) {
+        RoomLog log = entry.log();
+        try {
+            ByteBuffer frame = entry.frame().slice(true);
+            // Номер не следующий по порядку (прошлая запись не удалась) или сегмент полон - заводим новый сегмент
+            // с этого номера: номера внутри сегмента идут подряд, а между сегментами может быть пропуск
+            JournalSegment active = log.active;
+            if ( active == null || active.nextId() != entry.id() || !active.append(frame, entry.timeMillis()) ) {
+                roll(log, entry.id(), dirty);
+                if ( !log.active.append(frame, entry.timeMillis()) ) throw new IOException("Кадр больше сегмента");
+            }
+            dirty.add(log.active);
+            written.increment();
+        } catch ( IOException e ) {
+            failed.increment();
+            AsyncLog.error("Журнал: сообщение " + entry.id() + " не записано: " + e, e);
+        } finally {
+            log.queued.decrementAndGet();
+        }
+    }
+
+    // Закрываем комнаты, которыми не пользовались idleNanos и у которых ничего не ждёт записи.
+    // Под замком комнаты - чтобы в закрытую комнату никто не успел дописать
+    private void closeIdle (Set<JournalSegment> dirty) {
+        long now = System.nanoTime();
+        for ( RoomLog log : rooms.values() ) {
+            if ( now - log.lastUsed < idleNanos ) continue;
+            log.lock.lock();
+            try {
+                if ( log.queued.get() > 0 || now - log.lastUsed < idleNanos ) continue;
+                log.closed = true;
+                rooms.remove(log.name, log);
+            } finally {
+                log.lock.unlock();
+            }
+            for ( JournalSegment segment : log.segments ) {
+                if ( dirty.remove(segment) ) force(segment);
+                try {
+                    segment.close(); // Отображение живёт, пока его держат читатели
+                } catch ( IOException e ) {
+                    failed.increment();
+                    AsyncLog.error("Журнал: сегмент комнаты " + log.name + " не закрыть: " + e, e);
+                }
+            }
+        }
+    }
+
+    private void roll (RoomLog log, long baseId, Set<JournalSegment> dirty) throws IOException {
+        if ( log.active != null ) log.active.seal();
+        if ( log.active != null && log.active.baseId == baseId ) { // Пустой испорченный сегмент с тем же номером
+            log.segments.remove(log.active);
+            dirty.remove(log.active);
+            log.active.delete();
+        }
+        Files.createDirectories(log.dir);
+        log.active = JournalSegment.open(log.dir, baseId, segmentBytes);
+        log.segments.add(log.active);
+        while ( log.segments.size() > maxSegments ) { // Старые сегменты - прочь
+            JournalSegment oldest = log.segments.remove(0);
+            if ( dirty.remove(oldest) ) force(oldest);
+            oldest.delete();
+        }
+    }
+
+    private void force (JournalSegment segment) {
+        long start = System.nanoTime();
+        try {
+            segment.force();
+        } catch ( IOException e ) {
+            failed.increment();
+            AsyncLog.error("Журнал: сброс на диск не удался: " + e, e);
+        }
+        fsync.record(System.nanoTime() - start);
+    }
+
+    private RoomLog recover (String room) throws IOException {
+        Path roomDir = dir.resolve(HexFormat.of().formatHex(room.getBytes(StandardCharsets.UTF_8)));
+        List<Long> baseIds = new ArrayList<>();
+        if ( Files.isDirectory(roomDir) ) try ( Stream<Path> files = Files.list(roomDir) ) {
+            files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".log"))
+                 .forEach(name -> baseIds.add(Long.parseLong(name.substring(0, name.length() - ".log".length()))));
+        }
+        baseIds.sort(null);
+        CopyOnWriteArrayList<JournalSegment> segments = new CopyOnWriteArrayList<>();
+        for ( long baseId : baseIds ) {
+            if ( !segments.isEmpty() ) segments.get(segments.size() - 1).seal(); // Дописываем только в последний
+            segments.add(JournalSegment.open(roomDir, baseId, segmentBytes));
+        }
+        RoomLog log = new RoomLog(room, roomDir, segments,
+                                  segments.isEmpty() ? 1 : segments.get(segments.size() - 1).nextId());
+        log.active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        return log;
+    }
+
+    // --- ЧТЕНИЕ. Из любой нити, видно всё, что уже дописано в отображённую память.
+    // Комнату, которую нить записи закрыла посреди чтения, читать можно: отображения живут, пока их держат
+
+    private RoomLog use (String room) {
+        RoomLog log = open(room, false);
+        if ( log != null ) log.lastUsed = System.nanoTime();
+        return log;
+    }
+
+    // Кадры сообщений комнаты с номерами [fromId, toId): по куску отображённой памяти на сегмент
+    List<ByteBuffer> read (String room, long fromId, long toId) {
+        List<ByteBuffer> result = new ArrayList<>();
+        RoomLog log = use(room);
+        if ( log == null ) return result;
+        for ( JournalSegment segment : log.segments ) {
+            ByteBuffer frames = segment.read(fromId, toId);
+            if ( frames != null ) result.add(frames);
+        }
+        return result;
+    }
+
+    // Номер первого хранимого сообщения комнаты (0 - истории нет)
+    long firstId (String room) {
+        RoomLog log = use(room);
+        if ( log == null ) return 0;
+        for ( JournalSegment segment : log.segments ) if ( segment.nextId() > segment.baseId ) return segment.baseId;
+        return 0;
+    }
+
+    // Номер последнего записанного сообщения комнаты (0 - истории нет)
+    long lastId (String room) {
+        RoomLog log = use(room);
+        if ( log == null ) return 0;
+        List<JournalSegment> segments = log.segments;
+        for ( int i = segments.size() - 1; i >= 0; i-- ) {
+            JournalSegment segment = segments.get(i);
+            if ( segment.nextId() > segment.baseId ) return segment.nextId() - 1;
+        }
+        return 0;
+    }
+
+    // Номер первого сообщения не раньше timeMillis (по разреженному указателю - чуть раньше)
+    long firstIdSince (String room, long timeMillis) {
+        RoomLog log = use(room);
+        if ( log == null ) return 0;
+        List<JournalSegment> segments = log.segments;
+        for ( int i = segments.size() - 1; i >= 0; i-- ) { // С конца: ищем последний сегмент, начатый раньше
+            long id = segments.get(i).firstIdSince(timeMillis);
+            if ( id >= 0 && (i == 0 || id > segments.get(i).baseId) ) return id;
+        }
+        return firstId(room);
+    }
+
+    // --- МЕТРИКИ
+    long getWritten () { return written.sum(); }
+    long getDropped () { return dropped.sum(); }
+    long getFailed () { return failed.sum(); }
+    int getQueued () { return pending.get(); }
+    int getOpenRooms () { return rooms.size(); }
+    LatencyHistogram getFsyncLatency () { return fsync; }
+
+    // Журнал одной комнаты. nextId - следующий номер и closed - закрыт за простоем (под lock), active - сегмент,
+    // в который пишет нить записи (только она), segments - все хранимые, по возрастанию номеров,
+    // queued - сколько сообщений комнаты ждёт записи
+    private static final class RoomLog {
+        final String name;
+        final Path dir;
+        final CopyOnWriteArrayList<JournalSegment> segments;
+        final ReentrantLock lock = new ReentrantLock();
+        final AtomicInteger queued = new AtomicInteger();
+        volatile long lastUsed = System.nanoTime();
+        long nextId;
+        boolean closed;
+        JournalSegment active;
+
+        RoomLog (String name, Path dir, CopyOnWriteArrayList<JournalSegment> segments, long nextId) {
+            this.name = name;
+            this.dir = dir;
+            this.segments = segments;
+            this.nextId = nextId;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package ru.lakin.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ru.lakin.network.FrameCodec;
+import ru.lakin.network.FrameType;
+
+// Сегмент журнала комнаты: файл <номер первого сообщения>.log, отображённый в память целиком, и при нём
+// разреженный указатель <номер>.idx.
+// В .log кадры двоичного протокола (FrameCodec) лежат подряд, байт в байт как уходят в сокет, - поэтому
+// историю можно отдать клиенту куском отображённой памяти, ничего не разбирая и не копируя.
+// Номер сообщения в файле не пишем: он равен номеру первого сообщения сегмента плюс порядковый номер кадра.
+// Конец данных - первый нулевой байт (кадр не бывает нулевой длины): файл при отображении заполнен нулями.
+// Указатель - каждое INDEX_INTERVAL-е сообщение (и всегда первое): номер, смещение в .log и время,
+// по 24 байта на запись. По нему ищем смещение сообщения по номеру (дальше - пропуская заголовки кадров)
+// и первое сообщение после заданного времени - с точностью до INDEX_INTERVAL сообщений.
+//
+// Файл указателя держим открытым, только пока в сегмент можно дописывать: у запечатанного он закрыт,
+// и у комнаты открыт один файл, сколько бы сегментов она ни хранила.
+//
+// Пишет одна нить - нить журнала (Journal). Читают любые нити: сначала читают опубликованное состояние
+// (volatile), потом только байты до опубликованной границы, которые больше не меняются.
+final class JournalSegment {
+    static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY = 3; // long-ов на запись указателя: номер, смещение, время
+
+    final long baseId;
+    private final Path logPath;
+    private final Path indexPath;
+    private final MappedByteBuffer map;
+    private final FileChannel indexChannel;
+    private final ByteBuffer indexScratch = ByteBuffer.allocate(INDEX_ENTRY * Long.BYTES);
+
+    // Опубликованное состояние: сколько сообщений и докуда записано, в одном long - чтобы читать согласованно
+    private volatile long state;
+    private volatile long[] index = new long[INDEX_ENTRY * 16];
+    private volatile int indexSize; // Записей в указателе
+    private volatile boolean sealed; // Дописывать нельзя: полон или испорчен хвост
+    private int dirtyFrom = -1; // С какого места не сброшено на диск. Только нить журнала
+
+    private JournalSegment (long baseId, Path logPath, Path indexPath, MappedByteBuffer map, FileChannel indexChannel) {
+        this.baseId = baseId;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.map = map;
+        this.indexChannel = indexChannel;
+    }
+
+    // Сегмент с диска (нет такого - новый, пустой): читаем указатель и досчитываем сообщения после последней
+    // его записи. Если за последним целым кадром - мусор (запись оборвалась), сегмент запечатываем: дописывать
+    // будем уже в следующий, чтобы новые кадры не смешались со старым мусором
+    static JournalSegment open (Path dir, long baseId, int size) throws IOException {
+        Path logPath = dir.resolve(String.format("%020d.log", baseId));
+        Path indexPath = dir.resolve(String.format("%020d.idx", baseId));
+        MappedByteBuffer map;
+        try ( FileChannel log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                 StandardOpenOption.WRITE) ) {
+            // Уже записанный сегмент берём его размера, даже если с тех пор размер сегментов поменяли
+            map = log.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, log.size()));
+        }
+        FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+        JournalSegment segment = new JournalSegment(baseId, logPath, indexPath, map, indexChannel);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover () throws IOException {
+        // Записи указателя, которые показывают на целые кадры
+        int entrySize = indexScratch.capacity();
+        ByteBuffer entries = ByteBuffer.allocate((int) indexChannel.size() / entrySize * entrySize);
+        indexChannel.read(entries, 0);
+        entries.flip();
+        long id = baseId;
+        int position = 0;
+        while ( entries.hasRemaining() ) {
+            long entryId = entries.getLong(), entryOffset = entries.getLong(), entryTime = entries.getLong();
+            if ( entryOffset >= map.capacity() || frameEnd(map, (int) entryOffset) < 0 ) break;
+            addIndex(entryId, entryOffset, entryTime);
+            id = entryId;
+            position = (int) entryOffset;
+        }
+        indexChannel.truncate((long) indexSize * entrySize);
+        indexChannel.position(indexChannel.size());
+        // От последней записи указателя идём по кадрам до конца данных
+        int end;
+        while ( (end = frameEnd(map, position)) >= 0 ) {
+            position = end;
+            id++;
+        }
+        if ( position < map.capacity() && map.get(position) != 0 ) sealed = true; // Оборванная запись
+        if ( indexSize == 0 && position > 0 ) { // Указатель потерян целиком - первая запись нужна всегда
+            indexScratch.clear();
+            indexScratch.putLong(baseId).putLong(0).putLong(0).flip();
+            while ( indexScratch.hasRemaining() ) indexChannel.write(indexScratch);
+            addIndex(baseId, 0, 0);
+        }
+        state = ((id - baseId) << 32) | position;
+    }
+
+    // Дописать кадр. false - не влезает (сегмент запечатан, пора заводить следующий)
+    boolean append (ByteBuffer frame, long timeMillis) throws IOException {
+        long current = state;
+        int count = (int) (current >>> 32), position = (int) current;
+        if ( sealed || frame.remaining() > map.capacity() - position ) {
+            sealed = true;
+            return false;
+        }
+        if ( count % INDEX_INTERVAL == 0 ) {
+            indexScratch.clear();
+            indexScratch.putLong(baseId + count).putLong(position).putLong(timeMillis).flip();
+            while ( indexScratch.hasRemaining() ) indexChannel.write(indexScratch);
+            addIndex(baseId + count, position, timeMillis);
+        }
+        int length = frame.remaining();
+        map.put(position, frame, frame.position(), length);
+        if ( dirtyFrom < 0 ) dirtyFrom = position;
+        state = ((long) (count + 1) << 32) | (position + length); // Публикуем: читатели теперь видят кадр
+        return true;
+    }
+
+    // Сбросить на диск всё, что дописали с прошлого раза
+    void force () throws IOException {
+        if ( dirtyFrom < 0 ) return;
+        int end = (int) state;
+        map.force(dirtyFrom, end - dirtyFrom);
+        indexChannel.force(false);
+        dirtyFrom = -1;
+        if ( sealed ) close(); // Всё сброшено, дописывать больше не будем
+    }
+
+    // Больше не дописываем. Файл указателя закрываем сразу, если сбрасывать нечего, иначе - после force()
+    void seal () throws IOException {
+        sealed = true;
+        if ( dirtyFrom < 0 ) close();
+    }
+
+    // Закрыть файл указателя. Читать сегмент можно и дальше: отображение живёт, пока его держат
+    void close () throws IOException {
+        sealed = true;
+        indexChannel.close();
+    }
+
+    void delete () throws IOException {
+        indexChannel.close();
+        Files.deleteIfExists(logPath); // Отображение живёт, пока его держат читатели, - файл можно удалять сразу
+        Files.deleteIfExists(indexPath);
+    }
+
+    // --- ЧТЕНИЕ. Из любой нити
+    long nextId () { return baseId + (state >>> 32); }
+
+    // Кадры сообщений [fromId, toId) этого сегмента - read-only кусок отображённой памяти
+    ByteBuffer read (long fromId, long toId) {
+        long current = state;
+        long next = baseId + (current >>> 32);
+        fromId = Math.max(fromId, baseId);
+        toId = Math.min(toId, next);
+        if ( fromId >= toId ) return null;
+        int from = offsetOf(fromId);
+        int to = toId == next ? (int) current : offsetOf(toId);
+        return map.slice(from, to - from).asReadOnlyBuffer();
+    }
+
+    // Номер первого сообщения не раньше timeMillis (с точностью до INDEX_INTERVAL) или -1, если все раньше
+    long firstIdSince (long timeMillis) {
+        int size = indexSize; // Сначала размер, потом массив: массив не старше размера
+        long[] entries = index;
+        for ( int i = 0; i < size; i++ ) {
+            if ( entries[i * INDEX_ENTRY + 2] >= timeMillis ) // Первая запись не раньше - берём и предыдущий отрезок
+                return i == 0 ? baseId : entries[(i - 1) * INDEX_ENTRY];
+        }
+        return size == 0 ? -1 : entries[(size - 1) * INDEX_ENTRY];
+    }
+
+    // Смещение сообщения id: ближайшая запись указателя не дальше id, дальше шагаем по заголовкам кадров
+    private int offsetOf (long id) {
+        int size = indexSize; // Сначала размер, потом массив: массив не старше размера
+        long[] entries = index;
+        int low = 0, high = size - 1, found = 0;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            if ( entries[mid * INDEX_ENTRY] <= id ) { found = mid; low = mid + 1; }
+            else high = mid - 1;
+        }
+        long at = entries[found * INDEX_ENTRY];
+        int position = (int) entries[found * INDEX_ENTRY + 1];
+        for ( ; at < id; at++ ) position = frameEnd(map, position);
+        return position;
+    }
+
+    private void addIndex (long id, long offset, long timeMillis) {
+        long[] entries = index;
+        int size = indexSize;
+        if ( (size + 1) * INDEX_ENTRY > entries.length ) {
+            long[] grown = new long[entries.length * 2];
+            System.arraycopy(entries, 0, grown, 0, size * INDEX_ENTRY);
+            index = entries = grown; // Новый массив публикуем раньше нового размера
+        }
+        entries[size * INDEX_ENTRY] = id;
+        entries[size * INDEX_ENTRY + 1] = offset;
+        entries[size * INDEX_ENTRY + 2] = timeMillis;
+        indexSize = size + 1;
+    }
+
+    // Конец целого кадра, который начинается в position, или -1: там конец данных, мусор или обрыв
+    private static int frameEnd (ByteBuffer map, int position) {
+        long length = 0;
+        int limit = map.capacity();
+        for ( int shift = 0; ; shift += 7 ) {
+            if ( position >= limit || shift > 28 ) return -1;
+            byte b = map.get(position++);
+            length |= (long) (b & 0x7F) << shift;
+            if ( b >= 0 ) break;
+        }
+        if ( length < 2 || length > FrameCodec.MAX_FRAME_LENGTH || position + length > limit ) return -1;
+        if ( FrameType.of(map.get(position)) == null ) return -1;
+        return (int) (position + length);
+    }
+}
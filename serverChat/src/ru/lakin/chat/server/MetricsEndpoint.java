@@ -0,0 +1,39 @@
+package ru.lakin.chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ru.lakin.network.AsyncLog;
+
+// Метрики сервера простым текстом по HTTP - чтобы их забирал сборщик метрик (или curl):
+//   /metrics      - все метрики в формате Prometheus
+//   /connections  - по строке на соединение
+// Включается -Deasychat.metrics.port=<порт>. HTTP-сервер - встроенный в JDK, одна своя нить.
+final class MetricsEndpoint {
+    private MetricsEndpoint () {}
+
+    static void start (int port, ServerMetrics metrics) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", exchange -> reply(exchange, metrics::text));
+            server.createContext("/connections", exchange -> reply(exchange, metrics::connectionsText));
+            server.start();
+            AsyncLog.info("Метрики: http://localhost:" + port + "/metrics");
+        } catch ( IOException e ) {
+            AsyncLog.error("Метрики по HTTP не запустились: " + e, e);
+        }
+    }
+
+    private static void reply (HttpExchange exchange, Supplier<String> body) throws IOException {
+        byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try ( OutputStream out = exchange.getResponseBody() ) { out.write(bytes); }
+    }
+}
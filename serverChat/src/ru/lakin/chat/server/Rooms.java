@@ -0,0 +1,135 @@
+package ru.lakin.chat.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ru.lakin.network.TCPConnection;
+import ru.lakin.network.TokenBucket;
+
+// Указатель комнат и участников чата.
+// Раньше каждое сообщение уходило всем соединениям: N клиентов пишут - N*N доставок, это первая стена при росте.
+// Теперь сообщение уходит только участникам своей комнаты, а личное - ровно одному адресату по нику.
+// Три указателя, все на ConcurrentHashMap, без общего замка:
+//   комната    -> участники      (по ней рассылка: берём множество и обходим)
+//   соединение -> участник       (ник, комнаты, текущая комната)
+//   ник        -> соединение     (по нему личные сообщения)
+// Рассылка лишь читает множество участников и никого не ждёт; вход и выход меняют его под compute() по имени
+// комнаты, так что опустевшая комната удаляется без гонки с тем, кто в неё как раз входит.
+final class Rooms {
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final ConcurrentHashMap<String, Set<TCPConnection>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TCPConnection, Member> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TCPConnection> nicknames = new ConcurrentHashMap<>();
+
+    // Новое соединение: пока без ника и без комнат
+    Member add (TCPConnection connection) {
+        Member member = new Member(connection);
+        members.put(connection, member);
+        return member;
+    }
+
+    // Соединение ушло: выводим из всех комнат и освобождаем ник. Вернёт участника (с его комнатами) или null
+    Member remove (TCPConnection connection) {
+        Member member = members.remove(connection);
+        if ( member == null ) return null;
+        for ( String room : member.rooms ) removeFromRoom(room, connection);
+        String nickname = member.nickname;
+        if ( nickname != null ) nicknames.remove(nickname, connection);
+        return member;
+    }
+
+    Member member (TCPConnection connection) { return members.get(connection); }
+
+    // Участники комнаты. Нет такой комнаты - пустое множество
+    Set<TCPConnection> members (String room) {
+        Set<TCPConnection> set = rooms.get(room);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    // Соединение по нику или null
+    TCPConnection find (String nickname) { return nicknames.get(nickname); }
+
+    // Все ники этого сервера (живой вид, для кластера)
+    Set<String> nicknames () { return Collections.unmodifiableSet(nicknames.keySet()); }
+
+    // Входим в комнату и делаем её текущей. false - уже были в ней
+    boolean join (Member member, String room) {
+        member.current = room;
+        if ( !member.rooms.add(room) ) return false;
+        rooms.compute(room, (name, set) -> {
+            if ( set == null ) set = ConcurrentHashMap.newKeySet();
+            set.add(member.connection);
+            return set;
+        });
+        // Соединение успело отключиться, пока мы входили, - remove() эту комнату уже не увидит, убираем сами
+        if ( !members.containsKey(member.connection) ) removeFromRoom(room, member.connection);
+        return true;
+    }
+
+    // Выходим из комнаты. Если она была текущей - текущей станет любая из оставшихся. false - нас там не было
+    boolean leave (Member member, String room) {
+        if ( !member.rooms.remove(room) ) return false;
+        removeFromRoom(room, member.connection);
+        if ( room.equals(member.current) ) {
+            String next = null;
+            for ( String other : member.rooms ) { next = other; break; }
+            member.current = next;
+        }
+        return true;
+    }
+
+    // Занимаем ник. false - он занят кем-то другим
+    boolean rename (Member member, String nickname) {
+        TCPConnection owner = nicknames.putIfAbsent(nickname, member.connection);
+        if ( owner != null ) return owner == member.connection;
+        String old = member.nickname;
+        member.nickname = nickname;
+        if ( old != null ) nicknames.remove(old, member.connection);
+        if ( !members.containsKey(member.connection) ) nicknames.remove(nickname, member.connection); // Как в join()
+        return true;
+    }
+
+    private void removeFromRoom (String room, TCPConnection connection) {
+        rooms.computeIfPresent(room, (name, set) -> {
+            set.remove(connection);
+            return set.isEmpty() ? null : set; // Опустевшую комнату убираем из указателя
+        });
+    }
+
+    // --- МЕТРИКИ
+    int getRoomCount () { return rooms.size(); }
+    int getNicknameCount () { return nicknames.size(); }
+
+    // Имя комнаты или ника: непустое, без пробелов и не длиннее MAX_NAME_LENGTH
+    static boolean isValidName (String name) {
+        if ( name.isEmpty() || name.length() > MAX_NAME_LENGTH ) return false;
+        for ( int i = 0; i < name.length(); i++ ) if ( Character.isWhitespace(name.charAt(i)) ) return false;
+        return true;
+    }
+
+    // Участник чата: соединение, ник и комнаты. Комнаты и текущую комнату меняет нить чтения соединения,
+    // а читают и другие (выход по отключению), поэтому множество конкурентное, а поля - volatile
+    static final class Member {
+        final TCPConnection connection;
+        private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        private volatile String nickname;
+        private volatile String current;
+        // Ограничение частоты сообщений клиента (ChatServer.withinRate). null - без ограничения. Только нить чтения
+        TokenBucket inbound;
+        boolean throttled; // Уже предупредили, что сообщения выкидываются
+
+        Member (TCPConnection connection) { this.connection = connection; }
+
+        // Как подписывать сообщения: ник, а пока его нет - адрес соединения, как раньше
+        String name () {
+            String nickname = this.nickname;
+            return nickname != null ? nickname : connection.toString();
+        }
+
+        String nickname () { return nickname; }
+        String current () { return current; }
+        Set<String> rooms () { return Collections.unmodifiableSet(rooms); }
+    }
+}
@@ -0,0 +1,223 @@
+package ru.lakin.chat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ru.lakin.network.*;
+
+// Метрики чат-сервера: свои (рассылки и их цена) плюс общие счётчики соединений NetworkMetrics.
+// Запись - без замков и без выделения памяти: рассылка лишь добавляет замер в LatencyHistogram.
+// Отдаём их двумя путями: через JMX (ServerMetricsMXBean) и простым текстом для сборщиков метрик
+// (формат Prometheus, см. MetricsEndpoint). Глубину очередей считаем при чтении, обходом соединений.
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final Set<TCPConnection> connections;
+    private final Rooms rooms;
+    private final NetworkMetrics network = NetworkMetrics.get();
+    private final LatencyHistogram fanOut = new LatencyHistogram(); // Время одной рассылки, нс
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LatencyHistogram privateLatency = new LatencyHistogram(); // Время одного личного сообщения, нс
+    private volatile Journal journal; // История сообщений, если сервер её ведёт
+    private volatile Cluster cluster; // Соседи по кластеру, если сервер в кластере
+    private volatile Admission admission;
+    private final LongAdder throttled = new LongAdder();
+
+    ServerMetrics (Set<TCPConnection> connections, Rooms rooms) {
+        this.connections = connections;
+        this.rooms = rooms;
+    }
+
+    // Рассылка одного сообщения count получателям заняла nanos
+    void broadcast (int count, long nanos) {
+        broadcasts.increment();
+        recipients.add(count);
+        fanOut.record(nanos);
+    }
+
+    // Личное сообщение (поиск адресата и постановка в очередь) заняло nanos
+    void privateMessage (long nanos) { privateLatency.record(nanos); }
+
+    void attach (Journal journal) { this.journal = journal; }
+    void attach (Cluster cluster) { this.cluster = cluster; }
+    void attach (Admission admission) { this.admission = admission; }
+
+    // Сообщение клиента выкинуто: пишет чаще, чем можно
+    void throttled () { throttled.increment(); }
+
+    // Регистрируемся в JMX. Сервер на другом порту в этом же процессе зарегистрируется под своим именем
+    void register (int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ru.lakin.chat:type=ChatServer,port=" + port));
+        } catch ( JMException e ) {
+            AsyncLog.error("Метрики в JMX не зарегистрированы: " + e, e);
+        }
+    }
+
+    @Override public int getActiveConnections () { return connections.size(); }
+    @Override public long getAcceptedTotal () { return network.getAccepted(); }
+    @Override public double getAcceptRate () { return network.getAcceptRate(); }
+    @Override public long getBytesIn () { return network.getBytesIn(); }
+    @Override public long getBytesOut () { return network.getBytesOut(); }
+    @Override public long getMessagesIn () { return network.getMessagesIn(); }
+    @Override public long getMessagesOut () { return network.getMessagesOut(); }
+    @Override public long getDroppedMessages () { return network.getDropped(); }
+    @Override public long getBroadcasts () { return broadcasts.sum(); }
+    @Override public long getFanOutP50Micros () { return micros(fanOut.getPercentileNanos(50)); }
+    @Override public long getFanOutP99Micros () { return micros(fanOut.getPercentileNanos(99)); }
+    @Override public long getFanOutP999Micros () { return micros(fanOut.getPercentileNanos(99.9)); }
+    @Override public long getFanOutMaxMicros () { return micros(fanOut.getMaxNanos()); }
+    @Override public int getRooms () { return rooms.getRoomCount(); }
+    @Override public int getNicknames () { return rooms.getNicknameCount(); }
+    @Override public long getPrivateMessages () { return privateLatency.getCount(); }
+    @Override public long getPrivateP99Micros () { return micros(privateLatency.getPercentileNanos(99)); }
+    @Override public long getJournalWritten () { Journal j = journal; return j == null ? 0 : j.getWritten(); }
+    @Override public long getJournalDropped () { Journal j = journal; return j == null ? 0 : j.getDropped(); }
+    @Override public long getJournalFailed () { Journal j = journal; return j == null ? 0 : j.getFailed(); }
+    @Override public int getJournalQueued () { Journal j = journal; return j == null ? 0 : j.getQueued(); }
+    @Override public int getJournalOpenRooms () { Journal j = journal; return j == null ? 0 : j.getOpenRooms(); }
+    @Override
+    public long getJournalFsyncP99Micros () {
+        Journal j = journal;
+        return j == null ? 0 : micros(j.getFsyncLatency().getPercentileNanos(99));
+    }
+    @Override public int getClusterLinksUp () { Cluster c = cluster; return c == null ? 0 : c.getLinksUp(); }
+    @Override public long getClusterRelayedOut () { Cluster c = cluster; return c == null ? 0 : c.getRelayedOut(); }
+    @Override public long getClusterWrites () { Cluster c = cluster; return c == null ? 0 : c.getWrites(); }
+    @Override public long getClusterRelayedIn () { Cluster c = cluster; return c == null ? 0 : c.getRelayedIn(); }
+    @Override public long getClusterDuplicates () { Cluster c = cluster; return c == null ? 0 : c.getDuplicates(); }
+    @Override public long getClusterGaps () { Cluster c = cluster; return c == null ? 0 : c.getGaps(); }
+    @Override public long getClusterMalformed () { Cluster c = cluster; return c == null ? 0 : c.getMalformed(); }
+    @Override public long getClusterOverflow () { Cluster c = cluster; return c == null ? 0 : c.getOverflow(); }
+    @Override public int getClusterRemoteNicknames () { Cluster c = cluster; return c == null ? 0 : c.getRemoteNicknames(); }
+    @Override public long getCompressedFrames () { return network.getCompressedFrames(); }
+    @Override public long getCompressedRawBytes () { return network.getCompressedRawBytes(); }
+    @Override public long getCompressedBytes () { return network.getCompressedBytes(); }
+    @Override public long getRejectedFull () { Admission a = admission; return a == null ? 0 : a.getRejectedFull(); }
+    @Override public long getRejectedRate () { Admission a = admission; return a == null ? 0 : a.getRejectedRate(); }
+    @Override public long getThrottledMessages () { return throttled.sum(); }
+    @Override public long getPings () { return network.getPings(); }
+    @Override public long getIdleClosed () { return network.getIdleClosed(); }
+    @Override public long getExceptions () { return network.getExceptions(); }
+    @Override public Map<String, Long> getExceptionsByType () { return network.getExceptionsByType(); }
+    @Override public long getLogLinesDropped () { return AsyncLog.getDropped(); }
+
+    @Override
+    public long getQueuedMessages () {
+        long total = 0;
+        for ( TCPConnection connection : connections ) total += connection.getQueuedCount();
+        return total;
+    }
+
+    @Override
+    public int getMaxQueueDepth () {
+        int max = 0;
+        for ( TCPConnection connection : connections ) max = Math.max(max, connection.getQueuedCount());
+        return max;
+    }
+
+    // Все метрики простым текстом в формате Prometheus
+    String text () {
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "easychat_connections_active", "Открытые соединения", getActiveConnections());
+        counter(sb, "easychat_connections_accepted_total", "Принятые соединения", getAcceptedTotal());
+        gauge(sb, "easychat_connections_accept_rate", "Принятых соединений в секунду за 10 секунд", getAcceptRate());
+        counter(sb, "easychat_bytes_in_total", "Принято байтов", getBytesIn());
+        counter(sb, "easychat_bytes_out_total", "Отправлено байтов", getBytesOut());
+        counter(sb, "easychat_messages_in_total", "Принято сообщений", getMessagesIn());
+        counter(sb, "easychat_messages_out_total", "Отправлено сообщений", getMessagesOut());
+        counter(sb, "easychat_messages_dropped_total", "Выкинуто сообщений медленным клиентам", getDroppedMessages());
+        gauge(sb, "easychat_queue_messages", "Сообщений во всех очередях отправки", getQueuedMessages());
+        gauge(sb, "easychat_queue_depth_max", "Самая длинная очередь отправки", getMaxQueueDepth());
+        counter(sb, "easychat_broadcasts_total", "Рассылок", getBroadcasts());
+        counter(sb, "easychat_broadcast_recipients_total", "Получателей во всех рассылках", recipients.sum());
+        summary(sb, "easychat_broadcast_seconds", "Время одной рассылки всем получателям комнаты", fanOut);
+        gauge(sb, "easychat_rooms", "Комнаты, в которых кто-то есть", getRooms());
+        gauge(sb, "easychat_nicknames", "Занятые ники", getNicknames());
+        summary(sb, "easychat_private_message_seconds", "Время одного личного сообщения", privateLatency);
+        Journal j = journal;
+        if ( j != null ) {
+            counter(sb, "easychat_journal_written_total", "Сообщений записано в историю", j.getWritten());
+            counter(sb, "easychat_journal_dropped_total", "Сообщений не попало в историю: очередь полна или комнат много",
+                    j.getDropped());
+            counter(sb, "easychat_journal_failed_total", "Ошибок записи истории", j.getFailed());
+            gauge(sb, "easychat_journal_queue", "Сообщений ждут записи в историю", j.getQueued());
+            gauge(sb, "easychat_journal_open_rooms", "Комнат истории с открытыми файлами", j.getOpenRooms());
+            summary(sb, "easychat_journal_fsync_seconds", "Время сброса сегмента истории на диск", j.getFsyncLatency());
+        }
+        Cluster c = cluster;
+        if ( c != null ) {
+            gauge(sb, "easychat_cluster_links_up", "Связи с соседями по кластеру, которые сейчас подняты", c.getLinksUp());
+            counter(sb, "easychat_cluster_relayed_out_total", "Кадров отправлено соседям", c.getRelayedOut());
+            counter(sb, "easychat_cluster_writes_total", "Записей в сокеты связей с соседями", c.getWrites());
+            counter(sb, "easychat_cluster_relayed_in_total", "Сообщений принято от соседей", c.getRelayedIn());
+            counter(sb, "easychat_cluster_duplicates_total", "Повторных кадров от соседей выкинуто", c.getDuplicates());
+            counter(sb, "easychat_cluster_gaps_total", "Кадров от соседей пропало", c.getGaps());
+            counter(sb, "easychat_cluster_malformed_total", "Кривых кадров от соседей (связь оборвали)",
+                    c.getMalformed());
+            counter(sb, "easychat_cluster_overflow_total", "Кадров вытеснено из колец досылки", c.getOverflow());
+            gauge(sb, "easychat_cluster_remote_nicknames", "Ники на других узлах", c.getRemoteNicknames());
+        }
+        counter(sb, "easychat_compressed_frames_total", "Кадров сжато (разосланный многим - один раз)",
+                getCompressedFrames());
+        counter(sb, "easychat_compressed_raw_bytes_total", "Байтов в сжатых кадрах до сжатия", getCompressedRawBytes());
+        counter(sb, "easychat_compressed_bytes_total", "Байтов в сжатых кадрах после сжатия", getCompressedBytes());
+        counter(sb, "easychat_connections_rejected_full_total", "Не пустили: соединений уже максимум",
+                getRejectedFull());
+        counter(sb, "easychat_connections_rejected_rate_total", "Не пустили: адрес подключается слишком часто",
+                getRejectedRate());
+        counter(sb, "easychat_messages_throttled_total", "Выкинуто сообщений: клиент пишет слишком часто",
+                getThrottledMessages());
+        counter(sb, "easychat_pings_total", "Послано PING молчащим собеседникам", getPings());
+        counter(sb, "easychat_connections_idle_closed_total", "Порвано соединений: собеседник молчал", getIdleClosed());
+        counter(sb, "easychat_exceptions_total", "Ошибки соединений", getExceptions());
+        sb.append("# TYPE easychat_exceptions_by_type_total counter\n");
+        getExceptionsByType().forEach( (type, count) ->
+                sb.append("easychat_exceptions_by_type_total{type=\"").append(type).append("\"} ").append(count).append('\n') );
+        counter(sb, "easychat_log_lines_dropped_total", "Строк журнала выкинуто ограничителем", getLogLinesDropped());
+        return sb.toString();
+    }
+
+    // По строке на соединение: номер, адрес, очередь, байты и сообщения туда и обратно
+    String connectionsText () {
+        StringBuilder sb = new StringBuilder("# id адрес очередь байт_вход байт_выход сообщ_вход сообщ_выход\n");
+        for ( TCPConnection connection : connections ) {
+            WriteStats out = connection.getWriteStats();
+            sb.append(connection.getId()).append(' ').append(connection).append(' ')
+              .append(connection.getQueuedCount()).append(' ')
+              .append(connection.getBytesIn()).append(' ').append(out.getBytes()).append(' ')
+              .append(connection.getMessagesIn()).append(' ').append(out.getMessages()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter (StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge (StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ');
+        if ( value == Math.rint(value) ) sb.append((long) value); else sb.append(value);
+        sb.append('\n');
+    }
+
+    private static void summary (StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for ( double q : new double[] { 0.5, 0.99, 0.999 } )
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+              .append(histogram.getPercentileNanos(q * 100) / 1e9).append('\n');
+        sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static long micros (long nanos) { return TimeUnit.NANOSECONDS.toMicros(nanos); }
+}
@@ -0,0 +1,52 @@
+package ru.lakin.chat.server;
+
+import java.util.Map;
+
+// Метрики чат-сервера для JMX (jconsole, VisualVM): ru.lakin.chat:type=ChatServer,port=<порт>
+public interface ServerMetricsMXBean {
+    int getActiveConnections ();
+    long getAcceptedTotal ();
+    double getAcceptRate ();            // Принятых соединений в секунду за последние 10 секунд
+    long getBytesIn ();
+    long getBytesOut ();
+    long getMessagesIn ();
+    long getMessagesOut ();
+    long getDroppedMessages ();         // Выкинуто медленным клиентам (SlowConsumerPolicy.DROP_OLDEST)
+    long getQueuedMessages ();          // Ждут отправки во всех очередях
+    int getMaxQueueDepth ();            // Самая длинная очередь одного соединения
+    long getBroadcasts ();
+    long getFanOutP50Micros ();         // Сколько стоит рассылка одного сообщения в комнату
+    long getFanOutP99Micros ();
+    long getFanOutP999Micros ();
+    long getFanOutMaxMicros ();
+    int getRooms ();                    // Комнаты, в которых кто-то есть
+    int getNicknames ();                // Занятые ники
+    long getPrivateMessages ();
+    long getPrivateP99Micros ();
+    long getJournalWritten ();          // История сообщений (0, если сервер её не ведёт)
+    long getJournalDropped ();
+    long getJournalFailed ();
+    int getJournalQueued ();
+    int getJournalOpenRooms ();         // Комнаты истории с открытыми файлами (остальные закрыты за простоем)
+    long getJournalFsyncP99Micros ();
+    int getClusterLinksUp ();           // Кластер (0, если сервер сам по себе)
+    long getClusterRelayedOut ();
+    long getClusterWrites ();
+    long getClusterRelayedIn ();
+    long getClusterDuplicates ();
+    long getClusterGaps ();
+    long getClusterMalformed ();
+    long getClusterOverflow ();
+    int getClusterRemoteNicknames ();
+    long getCompressedFrames ();        // Сжатие кадров: сколько сжато и сколько байт было и стало
+    long getCompressedRawBytes ();
+    long getCompressedBytes ();
+    long getRejectedFull ();            // Допуск: не пустили, соединений уже максимум
+    long getRejectedRate ();            // ... адрес подключается слишком часто
+    long getThrottledMessages ();       // Выкинуто сообщений: клиент пишет чаще, чем можно
+    long getPings ();                   // Пульс: послано PING и порвано молчащих соединений
+    long getIdleClosed ();
+    long getExceptions ();
+    Map<String, Long> getExceptionsByType ();
+    long getLogLinesDropped ();         // Строк журнала, выкинутых ограничителем частоты
+}